@@ -0,0 +1,372 @@
+/*
+        Tor Research Framework - easy to use tor client library/framework
+        Copyright (C) 2014  Dr Gareth Owen <drgowen@gmail.com>
+        www.ghowen.me / github.com/drgowen/tor-research-framework
+
+        This program is free software: you can redistribute it and/or modify
+        it under the terms of the GNU General Public License as published by
+        the Free Software Foundation, either version 3 of the License, or
+        (at your option) any later version.
+
+        This program is distributed in the hope that it will be useful,
+        but WITHOUT ANY WARRANTY; without even the implied warranty of
+        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+        GNU General Public License for more details.
+
+        You should have received a copy of the GNU General Public License
+        along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package tor;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import tor.util.MiscUtil;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.*;
+
+/**
+ * Compact binary snapshot of a parsed consensus, loaded with a MappedByteBuffer so a usable consensus is
+ * available without reading or parsing the text document.
+ * <p/>
+ * Layout (big endian):
+ * <pre>
+ * header:  magic, version, validUntil (long ms), count, flagCount, stringCount, recordsOffset, stringIndexOffset,
+ *          bandwidth-weights (string number, "K=V K=V...", -1 if absent)
+ * strings: u16 length + UTF-8 bytes each; flag names are strings 0..flagCount-1
+ * index:   int offset of each string
+ * records: count fixed size records sorted by fingerprint -
+ *          fingerprint[20], ipv4, orport u16, dirport u16, flag bitmask, name, version, exit summary (string
+ *          numbers, -1 if absent), bandwidth, microdesc digest[32], descriptor digest[20] (digests zeros if absent)
+ * </pre>
+ * OnionRouter objects are only created when a router is first looked up.
+ */
+public class BinaryConsensus {
+    final static Logger log = LogManager.getLogger();
+    final static Charset UTF8 = Charset.forName("UTF-8");
+
+    static final int MAGIC = 0x54524643; // "TRFC"
+    static final int VERSION = 4;
+    static final int HEADER_LEN = 40;
+    static final int RECORD_LEN = 100;
+
+    // record field offsets
+    static final int R_FP = 0, R_IP = 20, R_ORPORT = 24, R_DIRPORT = 26, R_FLAGS = 28, R_NAME = 32, R_VERSION = 36,
+            R_EXIT = 40, R_BW = 44, R_MD = 48, R_DESC = 80;
+
+    final ByteBuffer buf;
+    final long validUntil;
+    final int count;
+    final String flagNames[];
+    final int recordsOffset, stringIndexOffset;
+    final OnionRouter views[];
+    final int weightsString;
+
+    private BinaryConsensus(ByteBuffer buf) throws IOException {
+        this.buf = buf;
+        if (buf.capacity() < HEADER_LEN || buf.getInt(0) != MAGIC)
+            throw new IOException("not a binary consensus");
+        if (buf.getInt(4) != VERSION)
+            throw new IOException("unsupported binary consensus version " + buf.getInt(4));
+        validUntil = buf.getLong(8);
+        count = buf.getInt(16);
+        int flagCount = buf.getInt(20);
+        int stringCount = buf.getInt(24);
+        recordsOffset = buf.getInt(28);
+        stringIndexOffset = buf.getInt(32);
+        weightsString = buf.getInt(36);
+        if (recordsOffset + (long) count * RECORD_LEN > buf.capacity() || stringIndexOffset + 4L * stringCount > buf.capacity())
+            throw new IOException("truncated binary consensus");
+
+        flagNames = new String[flagCount];
+        for (int i = 0; i < flagCount; i++)
+            flagNames[i] = getString(i).intern();
+        views = new OnionRouter[count];
+    }
+
+    /**
+     * Maps a snapshot file
+     *
+     * @throws IOException if it can't be read or isn't a valid snapshot
+     */
+    public static BinaryConsensus load(File f) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(f, "r"); FileChannel ch = raf.getChannel()) {
+            MappedByteBuffer mb = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            return new BinaryConsensus(mb);
+        }
+    }
+
+    /**
+     * Writes a snapshot of parsed routers.  Written to a temporary file and renamed into place.
+     *
+     * @param f          Destination
+     * @param validUntil Consensus valid-until
+     * @param routers    Routers to store
+     * @param weights    bandwidth-weights, may be empty
+     */
+    public static void write(File f, Date validUntil, Collection<OnionRouter> routers, Map<String, Integer> weights) throws IOException {
+        // flag names first so they're strings 0..n-1
+        ArrayList<String> strings = new ArrayList<>();
+        HashMap<String, Integer> stringIdx = new HashMap<>();
+        TreeSet<String> flags = new TreeSet<>();
+        for (OnionRouter r : routers)
+            flags.addAll(r.flags);
+        if (flags.size() > 32)
+            throw new IOException("too many distinct flags for binary consensus: " + flags.size());
+        for (String fl : flags)
+            addString(strings, stringIdx, fl);
+
+        OnionRouter sorted[] = routers.toArray(new OnionRouter[routers.size()]);
+        Arrays.sort(sorted, new Comparator<OnionRouter>() {
+            @Override
+            public int compare(OnionRouter a, OnionRouter b) {
+                return a.identityhash.compareTo(b.identityhash);
+            }
+        });
+
+        ByteArrayOutputStream recs = new ByteArrayOutputStream(sorted.length * RECORD_LEN);
+        DataOutputStream rd = new DataOutputStream(recs);
+        for (OnionRouter r : sorted) {
+            if (r.fingerprint == null || r.fingerprint.length != 20)
+                throw new IOException("router without fingerprint: " + r);
+            rd.write(r.fingerprint);
+            rd.writeInt(r.ipv4);
+            rd.writeShort(r.orport);
+            rd.writeShort(r.dirport);
+            int mask = 0;
+            for (String fl : r.flags)
+                mask |= 1 << stringIdx.get(fl);
+            rd.writeInt(mask);
+            rd.writeInt(addString(strings, stringIdx, r.name));
+            rd.writeInt(r.version == null ? -1 : addString(strings, stringIdx, r.version));
+            rd.writeInt(r.consensusIPv4ExitPortSummary == null ? -1 : addString(strings, stringIdx, r.consensusIPv4ExitPortSummary));
+            rd.writeInt(r.bandwidth);
+            rd.write(r.microdescDigest != null && r.microdescDigest.length == 32 ? r.microdescDigest : new byte[32]);
+            rd.write(r.descriptorDigest != null && r.descriptorDigest.length == 20 ? r.descriptorDigest : new byte[20]);
+        }
+        rd.flush();
+
+        int weightsString = -1;
+        if (weights != null && !weights.isEmpty()) {
+            StringBuilder sb = new StringBuilder();
+            for (Map.Entry<String, Integer> e : new TreeMap<>(weights).entrySet())
+                sb.append(sb.length() > 0 ? " " : "").append(e.getKey()).append('=').append(e.getValue());
+            weightsString = addString(strings, stringIdx, sb.toString());
+        }
+
+        ByteArrayOutputStream strs = new ByteArrayOutputStream();
+        DataOutputStream sd = new DataOutputStream(strs);
+        int offsets[] = new int[strings.size()];
+        for (int i = 0; i < strings.size(); i++) {
+            offsets[i] = HEADER_LEN + sd.size();
+            byte b[] = strings.get(i).getBytes(UTF8);
+            sd.writeShort(b.length);
+            sd.write(b);
+        }
+        sd.flush();
+
+        int stringIndexOffset = HEADER_LEN + strs.size();
+        int recordsOffset = stringIndexOffset + 4 * offsets.length;
+
+        File tmp = new File(f.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(validUntil == null ? 0 : validUntil.getTime());
+            out.writeInt(sorted.length);
+            out.writeInt(flags.size());
+            out.writeInt(strings.size());
+            out.writeInt(recordsOffset);
+            out.writeInt(stringIndexOffset);
+            out.writeInt(weightsString);
+            strs.writeTo(out);
+            for (int o : offsets)
+                out.writeInt(o);
+            recs.writeTo(out);
+        }
+        if (f.exists() && !f.delete())
+            throw new IOException("can't replace " + f);
+        if (!tmp.renameTo(f))
+            throw new IOException("can't rename " + tmp + " to " + f);
+    }
+
+    private static int addString(ArrayList<String> strings, HashMap<String, Integer> idx, String s) {
+        Integer i = idx.get(s);
+        if (i == null) {
+            i = strings.size();
+            strings.add(s);
+            idx.put(s, i);
+        }
+        return i;
+    }
+
+    public Date getValidUntil() {
+        return new Date(validUntil);
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @return the consensus bandwidth-weights, empty if it had none
+     */
+    public HashMap<String, Integer> getBandwidthWeights() {
+        HashMap<String, Integer> w = new HashMap<>();
+        if (weightsString >= 0)
+            for (String kv : getString(weightsString).split(" ")) {
+                int eq = kv.indexOf('=');
+                if (eq > 0)
+                    w.put(kv.substring(0, eq), Integer.parseInt(kv.substring(eq + 1)));
+            }
+        return w;
+    }
+
+    /**
+     * Looks up a router by hex identity without materialising any others
+     *
+     * @return index, or -1 if absent
+     */
+    public int indexOf(String identityhex) {
+        if (identityhex == null || identityhex.length() != 40)
+            return -1;
+        byte fp[] = new byte[20];
+        for (int i = 0; i < 20; i++) {
+            int hi = Character.digit(identityhex.charAt(i * 2), 16), lo = Character.digit(identityhex.charAt(i * 2 + 1), 16);
+            if (hi < 0 || lo < 0)
+                return -1;
+            fp[i] = (byte) ((hi << 4) | lo);
+        }
+        int lo = 0, hi = count - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int c = compareFingerprint(mid, fp);
+            if (c < 0)
+                lo = mid + 1;
+            else if (c > 0)
+                hi = mid - 1;
+            else
+                return mid;
+        }
+        return -1;
+    }
+
+    private int compareFingerprint(int idx, byte fp[]) {
+        int base = recordsOffset + idx * RECORD_LEN + R_FP;
+        for (int i = 0; i < 20; i++) {
+            int a = buf.get(base + i) & 0xff, b = fp[i] & 0xff;
+            if (a != b)
+                return a - b;
+        }
+        return 0;
+    }
+
+    // raw column accessors - no objects created
+
+    public int getFlagMask(int idx) {
+        return buf.getInt(recordsOffset + idx * RECORD_LEN + R_FLAGS);
+    }
+
+    public String[] getFlagNames() {
+        return flagNames.clone();
+    }
+
+    public int getIPv4(int idx) {
+        return buf.getInt(recordsOffset + idx * RECORD_LEN + R_IP);
+    }
+
+    public int getORPort(int idx) {
+        return buf.getShort(recordsOffset + idx * RECORD_LEN + R_ORPORT) & 0xffff;
+    }
+
+    public String getIdentity(int idx) {
+        return MiscUtil.toHex(getFingerprint(idx));
+    }
+
+    public byte[] getFingerprint(int idx) {
+        byte fp[] = new byte[20];
+        int base = recordsOffset + idx * RECORD_LEN + R_FP;
+        for (int i = 0; i < 20; i++)
+            fp[i] = buf.get(base + i);
+        return fp;
+    }
+
+    /**
+     * The router at idx, created on first use (the same object is returned afterwards)
+     */
+    public synchronized OnionRouter get(int idx) {
+        OnionRouter r = views[idx];
+        if (r != null)
+            return r;
+
+        int base = recordsOffset + idx * RECORD_LEN;
+        r = new OnionRouter(getString(buf.getInt(base + R_NAME)), getFingerprint(idx), buf.getInt(base + R_IP),
+                buf.getShort(base + R_ORPORT) & 0xffff, buf.getShort(base + R_DIRPORT) & 0xffff);
+        int mask = buf.getInt(base + R_FLAGS);
+        for (int i = 0; i < flagNames.length; i++)
+            if ((mask & (1 << i)) != 0)
+                r.flags.add(flagNames[i]);
+        int v = buf.getInt(base + R_VERSION);
+        if (v >= 0)
+            r.version = getString(v);
+        int e = buf.getInt(base + R_EXIT);
+        if (e >= 0)
+            r.consensusIPv4ExitPortSummary = getString(e);
+        r.bandwidth = buf.getInt(base + R_BW);
+        r.microdescDigest = getDigest(base + R_MD, 32);
+        r.descriptorDigest = getDigest(base + R_DESC, 20);
+
+        views[idx] = r;
+        return r;
+    }
+
+    // a digest column, null if all zeros
+    private byte[] getDigest(int off, int len) {
+        byte d[] = new byte[len];
+        boolean set = false;
+        for (int i = 0; i < len; i++)
+            set |= (d[i] = buf.get(off + i)) != 0;
+        return set ? d : null;
+    }
+
+    String getString(int i) {
+        int off = buf.getInt(stringIndexOffset + 4 * i);
+        int len = buf.getShort(off) & 0xffff;
+        byte b[] = new byte[len];
+        for (int j = 0; j < len; j++)
+            b[j] = buf.get(off + 2 + j);
+        return new String(b, UTF8);
+    }
+
+    /**
+     * A read-only map view keyed by hex identity, in the same order as Consensus.routers.  Lookups are binary
+     * searches on the mapped file; routers are materialised as they're returned.
+     */
+    public SortedMap<String, OnionRouter> asMap() {
+        return new RouterListMap() {
+            @Override
+            int count() {
+                return count;
+            }
+
+            @Override
+            int indexOf(String identityhex) {
+                return BinaryConsensus.this.indexOf(identityhex);
+            }
+
+            @Override
+            OnionRouter router(int idx) {
+                return BinaryConsensus.this.get(idx);
+            }
+
+            @Override
+            String identity(int idx) {
+                return getIdentity(idx);
+            }
+        };
+    }
+}
@@ -24,16 +24,22 @@ import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import tor.util.TorDocumentParser;
+import tor.util.MiscUtil;
 
 import java.io.*;
 import java.net.*;
 import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
 import java.util.TreeMap;
-import java.util.zip.InflaterInputStream;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class Consensus {
 
@@ -41,11 +47,29 @@ public class Consensus {
     // The maximum number of connection tries to directory caches before falling back to authorities
     // TODO: we could do this much better with a setter method - on the class or object?
     public static int MAX_TRIES = 10;
-    private static Consensus consensus = null;
-    /**
-     * A map containing the parsed consensus (String is identity as a hex string)
-     */
-    public TreeMap<String, OnionRouter> routers = new TreeMap<>();
+    // whether to ask for a diff from an expired cached-consensus rather than the whole document
+    public static boolean USE_DIFFS = true;
+    // fetch the microdesc flavoured consensus, and microdescriptors rather than server descriptors
+    public static boolean USE_MICRODESCS = false;
+    // descriptor digests per /tor/server/d/ request
+    public static int DESCRIPTOR_BATCH = 96;
+    // refresh this long (plus jitter) before valid-until, and retry this often after a failed refresh
+    public static long REFRESH_LEAD = 10 * 60 * 1000;
+    public static long REFRESH_JITTER = 60 * 60 * 1000;
+    public static long REFRESH_RETRY = 60 * 1000;
+    // whether getConsensus() keeps the consensus fresh from a background thread
+    public static boolean AUTO_REFRESH = true;
+    // whether each consensus gets all router descriptors (see fetchAllDescriptors) before it's published
+    public static boolean FETCH_ALL_DESCRIPTORS = false;
+
+    // the published consensus.  Published objects are never modified, so readers need no locking.
+    private static final AtomicReference<Consensus> current = new AtomicReference<>();
+    private static final Object loadLock = new Object();
+    private static FutureTask<Consensus> loading = null; // guarded by loadLock
+    private static ScheduledExecutorService refresher = null; // guarded by loadLock
+    private static ScheduledFuture<?> nextRefresh = null; // guarded by loadLock
+    // the parsed consensus keyed by identity as a hex string - a read-only view, see getRouters()
+    private SortedMap<String, OnionRouter> routers = Collections.unmodifiableSortedMap(new TreeMap<String, OnionRouter>());
     /**
      * Whether to use only the directory authorities to fetch the consensus and router descriptors?
      * Otherwise, will fetch from any directory node.
@@ -55,6 +79,13 @@ public class Consensus {
      * Date that the consensus is valid until - it's your responsibility to refetch this if you need to.
      */
     Date consensusValidUntil = null;
+    /**
+     * The consensus bandwidth-weights (Wgg, Wgd, Wmm...), scaled by 10000.  Empty if the consensus had none.
+     */
+    public Map<String, Integer> bandwidthWeights = new HashMap<>();
+    // lookup indexes over routers, built on first use
+    private RouterIndex index = null;
+    private PathSelector pathSelector = null;
     String authorities[] = {"moria1 orport=9101 v3ident=D586D18309DED4CD6D57C18FDB97EFA96D330566 128.31.0.39:9131 9695 DFC3 5FFE B861 329B 9F1A B04C 4639 7020 CE31",
             "tor26 orport=443 v3ident=14C131DFC5C6F93646BE72FA1401C02A8DF2E8B4 86.59.21.38:80 847B 1F85 0344 D787 6491 A548 92F9 0493 4E4E B85D",
             "dizum orport=443 v3ident=E8A9C45EDE6D711294FADF8E7951F4DE6CA56B58 194.109.206.212:80 7EA6 EAD6 FD83 083C 538F 4403 8BBF A077 587D D755",
@@ -78,7 +109,7 @@ public class Consensus {
     }
 
     /**
-     * Return a consensus, populating it if needed
+     * Return a consensus, populating it if needed.  Concurrent first calls share a single load.
      *
      * @return populated Consensus
      */
@@ -88,17 +119,129 @@ public class Consensus {
 
     /**
      * Return an updated, new consensus, leaving existing consensus references as-is;
-     * or return the existing consensus object with existing data
+     * or return the existing consensus object with existing data.
+     * <p/>
+     * Each Consensus is a snapshot - once returned it doesn't change, and refreshes publish a new object.  Callers
+     * that arrive while a refresh is running share it.  Unless AUTO_REFRESH is off, a background thread refreshes
+     * the consensus shortly before it expires, so getConsensus() keeps returning a valid one without blocking.
      *
      * @param forceNewConsensus whether to refetch a few consensus instead of using cached one
      * @return populated Consensus
      */
     public static Consensus getConsensus(boolean forceNewConsensus) throws RuntimeException {
-        if (consensus == null || forceNewConsensus) {
-            consensus = new Consensus();
-            consensus.fetchConsensus(forceNewConsensus);
+        if (!forceNewConsensus) {
+            Consensus c = current.get();
+            if (c != null)
+                return c;
+        }
+        return load(forceNewConsensus);
+    }
+
+    // single flight load - the first caller does the work, others wait for its result
+    private static Consensus load(final boolean force) {
+        FutureTask<Consensus> task;
+        boolean mine = false;
+        synchronized (loadLock) {
+            if (!force && current.get() != null)
+                return current.get();
+            if (loading == null) {
+                loading = new FutureTask<>(new Callable<Consensus>() {
+                    @Override
+                    public Consensus call() {
+                        Consensus c = new Consensus();
+                        boolean ok = c.fetchConsensus(force);
+                        // enrichment happens here, before anyone can see the new snapshot
+                        if (ok && USE_MICRODESCS)
+                            c.fetchMicrodescs();
+                        if (ok && FETCH_ALL_DESCRIPTORS) {
+                            try {
+                                c.fetchAllDescriptors();
+                            } catch (IOException | RuntimeException e) {
+                                log.warn("Failed to fetch all descriptors: " + e);
+                            }
+                        }
+                        if (ok && DescriptorStore.exists())
+                            DescriptorStore.getInstance().expire(c.routers.values());
+                        Consensus prev = current.get();
+                        if (ok && prev != null)
+                            c.getIndex(); // replacing one in use - build indexes before readers see it
+                        if (ok || prev == null) {
+                            current.set(c);
+                        } else {
+                            log.warn("Consensus refresh failed - keeping the existing one");
+                            c = prev;
+                        }
+                        scheduleRefresh(c, ok);
+                        return c;
+                    }
+                });
+                mine = true;
+            }
+            task = loading;
+        }
+
+        if (mine) {
+            try {
+                task.run();
+            } finally {
+                synchronized (loadLock) {
+                    loading = null;
+                }
+            }
+        }
+
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("interrupted waiting for consensus", e);
+        } catch (ExecutionException e) {
+            Throwable t = e.getCause();
+            throw t instanceof RuntimeException ? (RuntimeException) t : new RuntimeException(t);
+        }
+    }
+
+    // schedule the next background refresh: a random point before valid-until, or a retry after a failure
+    private static void scheduleRefresh(Consensus c, boolean ok) {
+        if (!AUTO_REFRESH)
+            return;
+
+        long delay;
+        if (!ok || c.consensusValidUntil == null) {
+            delay = REFRESH_RETRY;
+        } else {
+            long latest = c.consensusValidUntil.getTime() - REFRESH_LEAD - System.currentTimeMillis();
+            delay = latest - (long) (TorCrypto.rnd.nextDouble() * REFRESH_JITTER);
+            if (delay < 0) // already inside the window - spread out anyway
+                delay = (long) (TorCrypto.rnd.nextDouble() * Math.max(Math.min(latest, REFRESH_RETRY), 1));
+        }
+
+        synchronized (loadLock) {
+            if (refresher == null) {
+                refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "consensus-refresher");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+            }
+            if (nextRefresh != null)
+                nextRefresh.cancel(false);
+            log.debug("Next consensus refresh in " + delay / 1000 + "s");
+            nextRefresh = refresher.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        load(true);
+                    } catch (RuntimeException e) {
+                        log.warn("Background consensus refresh failed: " + e);
+                        scheduleRefresh(current.get(), false);
+                    }
+                }
+            }, delay, TimeUnit.MILLISECONDS);
         }
-        return consensus;
     }
 
     /**
@@ -115,71 +258,97 @@ public class Consensus {
     }
 
     /**
-     * Try random directories until we get a successful dir stream, falling back to the pre-configured authorities after MAX_TRIES,
-     * or if we don't have an existing consensus
+     * Race directories until we get a successful dir stream, falling back to the pre-configured authorities after MAX_TRIES,
+     * or if we don't have an existing consensus.  Mirrors are ranked by their past latency and success rate
+     * (see DirectoryFetcher).
      * <p/>
-     * If you're having speed issues, try adding "Fast" to the lists of flags below.
+     * Compression is negotiated with Accept-Encoding (a trailing .z on path is dropped), and bodies are inflated
+     * transparently - there's no uncompressed retry.
      *
      * @param path Desired dir path
      * @return InputStream for reading
      * @throws RuntimeException when it fails to download path after MAX_TRIES tries
      */
     public InputStream getDirectoryStream(String path) {
-        String directoryType = "directory cache";
-
-        // Avoid recursion by checking for an existing consensus before calling getRandomORWithFlag()
-        if (consensus != null && !useOnlyAuthorities) {
-            // Try up to MAX_TRIES random ORs,
-            // but don't try more than the number of running, valid, directory routers
-            // (because this is random, some may be tried twice, and some may be skipped)
-            int dirRouterCount = getORsWithFlag("V2Dir,Running,Valid").size();
-            int dirTriesLimit = Math.min(dirRouterCount, MAX_TRIES);
-
-            int i;
-            for (i = 0; i < dirTriesLimit; i++) {
-                // The V2Dir flag includes both authorities and directory caches
-                // These typically make up around 60% of routers
-                // We could filter out authorities, but they make up less than 1% of the directories
-
-                // Get a list of running, valid, directory routers, excluding bad exits
-                // Typically, 80% of routers are running, and almost all are valid
-                OnionRouter dir = getRandomORWithFlag("V2Dir,Running,Valid,Fast");
-
-                log.trace("Connecting to " + directoryType + " " + dir.name);
-                try {
-                    return connectToDirectory(dir.ip, dir.dirport, path);
-                } catch (IOException e) {
-                    log.warn("Failed to get " + path + " from " + directoryType + " "
-                            + dir.ip + ":" + String.valueOf(dir.dirport));
-                    continue;
-                }
+        return getDirectoryStream(path, null);
+    }
+
+    /**
+     * As getDirectoryStream(path), sending extra request headers
+     *
+     * @param path    Desired dir path
+     * @param headers Extra HTTP request headers, or null
+     */
+    public InputStream getDirectoryStream(String path, Map<String, String> headers) {
+        String plain = stripZ(path);
+        List<DirectoryFetcher.Mirror> caches = directoryCaches();
+        if (!caches.isEmpty()) {
+            try {
+                return DirectoryFetcher.fetch(caches, plain, headers, MAX_TRIES);
+            } catch (IOException e) {
+                log.warn("Failed to get " + path + " from directory caches: " + e);
             }
         }
+        try {
+            return DirectoryFetcher.fetch(directoryAuthorities(), plain, headers, MAX_TRIES);
+        } catch (IOException e) {
+            log.warn("Failed to get " + path + " from authorities: " + e);
+        }
 
-        directoryType = "authority";
-        int authTriesLimit = Math.min(authorities.length, MAX_TRIES);
-
-        // Try up to MAX_TRIES random authorities,
-        // but don't try more than the number of listed authorities
-        // (because this is random, some may be tried twice, and some may be skipped)
-
-        int tries;
-        for (tries = 0; tries < authTriesLimit; tries++) {
+        throw new RuntimeException("Can't get " + path + " after " + String.valueOf(MAX_TRIES) + " tries.");
+    }
 
-            int i = TorCrypto.rnd.nextInt(authorities.length);
-            String auth = authorities[i];
-            String sp[] = auth.split(" ");
-            String ipp[] = sp[3].split(":");
-            log.trace("Connecting to " + directoryType + " " + sp[0]);
+    /**
+     * Fetches several documents, pipelined to one mirror over a pooled connection (see DirectoryHttpClient).
+     * Mirrors are tried best first, as for getDirectoryStream.
+     *
+     * @param paths Desired dir paths
+     * @return bodies in the same order
+     * @throws RuntimeException when no mirror returned them all after MAX_TRIES tries
+     */
+    public List<byte[]> getDirectoryDocuments(List<String> paths) {
+        ArrayList<String> plain = new ArrayList<>(paths.size());
+        for (String p : paths)
+            plain.add(stripZ(p));
+
+        ArrayList<DirectoryFetcher.Mirror> mirrors = new ArrayList<>();
+        List<DirectoryFetcher.Mirror> caches = directoryCaches();
+        mirrors.addAll(caches.subList(0, Math.min(MAX_TRIES, caches.size())));
+        List<DirectoryFetcher.Mirror> auths = directoryAuthorities();
+        mirrors.addAll(auths.subList(0, Math.min(MAX_TRIES, auths.size())));
+        for (DirectoryFetcher.Mirror m : mirrors) {
+            long start = System.currentTimeMillis();
             try {
-                return connectToDirectory(ipp[0], ipp[1], path);
+                List<byte[]> docs = DirectoryHttpClient.getAll(m, plain);
+                DirectoryFetcher.getStats(m).update(true, (System.currentTimeMillis() - start) / plain.size());
+                return docs;
             } catch (IOException e) {
-                log.warn("Failed to get " + path + " from " + directoryType + " " + sp[0]);
-                continue;
+                DirectoryFetcher.getStats(m).update(false, 0);
+                log.warn("Failed to get " + paths.size() + " documents from " + m + ": " + e);
             }
         }
+        throw new RuntimeException("Can't get " + paths.size() + " documents after " + mirrors.size() + " tries.");
+    }
 
-        throw new RuntimeException("Can't get " + path + " after " + String.valueOf(MAX_TRIES) + " tries.");
+    // ranked directory caches from this consensus, or while it's being loaded, from the one it will replace
+    private List<DirectoryFetcher.Mirror> directoryCaches() {
+        Consensus src = routers.isEmpty() ? current.get() : this;
+        OnionRouter dirs[] = src == null || useOnlyAuthorities ? new OnionRouter[0]
+                : src.getIndex().withFlags("V2Dir,Running,Valid,Fast".split(","), true);
+        ArrayList<DirectoryFetcher.Mirror> mirrors = new ArrayList<>(dirs.length);
+        for (OnionRouter dir : dirs)
+            mirrors.add(new DirectoryFetcher.Mirror(dir.name, dir.ip.getHostAddress(), dir.dirport));
+        return DirectoryFetcher.rank(mirrors);
+    }
+
+    private List<DirectoryFetcher.Mirror> directoryAuthorities() {
+        ArrayList<DirectoryFetcher.Mirror> auths = new ArrayList<>(authorities.length);
+        for (String auth : authorities) {
+            String sp[] = auth.split(" ");
+            String ipp[] = sp[3].split(":");
+            auths.add(new DirectoryFetcher.Mirror(sp[0], ipp[0], Integer.parseInt(ipp[1])));
+        }
+        return DirectoryFetcher.rank(auths);
     }
 
     private InputStream connectToDirectory(InetAddress address, int port, String path) throws IOException {
@@ -187,137 +356,205 @@ public class Consensus {
     }
 
     private InputStream connectToDirectory(String address, String port, String path) throws IOException {
-        URL url = new URL("http://" + address + ":" + port + path);
-
-        // try the compressed version first, and transparently inflate it
-        if (!path.endsWith(".z")) {
-            try {
-                URL zurl = new URL("http://" + address + ":" + port + path + ".z");
-                log.debug("Downloading (from directory server): " + zurl.toString());
-                return new InflaterInputStream(zurl.openStream());
-            } catch (SocketException e) {
-                log.warn("Failed to connect: " + e);
-                throw e;
-            } catch (IOException e) {
-                log.warn("Transparent download of compressed stream failed, falling back to uncompressed."
-                        + " Exception: " + e.toString());
-            }
-        }
+        List<DirectoryFetcher.Mirror> m = Collections.singletonList(new DirectoryFetcher.Mirror(address, address, Integer.parseInt(port)));
+        return DirectoryFetcher.fetch(m, stripZ(path), null, 1);
+    }
 
-        log.debug("Downloading: " + url.toString());
-        InputStream in = url.openStream();
-        if (path.endsWith(".z"))
-            return new InflaterInputStream(in);
-        return in;
+    // documents are negotiated rather than asked for as .z
+    private static String stripZ(String path) {
+        return path.endsWith(".z") ? path.substring(0, path.length() - 2) : path;
     }
 
     /**
      * Fetch all router descriptors and add the keys to the OnionRouter objects
      * This saves directory fetches if you're doing a lot of route building
      * (normally this is done on a per router basis as required which is slow for lots of fetches)
+     * <p/>
+     * Descriptors already in the DescriptorStore aren't fetched again.  If most are missing, /tor/server/all is
+     * fetched, otherwise just the missing ones by digest, pipelined to one mirror.
+     * <p/>
+     * Only the routers' descriptor fields are filled in (as fetching them on demand would), so this is safe on a
+     * published consensus.  Set FETCH_ALL_DESCRIPTORS to have it done before each consensus is published.
      *
      * @throws IOException
      */
     public void fetchAllDescriptors() throws IOException {
-        BufferedReader in = new BufferedReader(new InputStreamReader(getDirectoryStream("/tor/server/all.z")));
-        String ln, descriptor = "";
-
-        while (true) {
-            ln = in.readLine();
-            if (ln == null || ln.startsWith("router ")) { // read a whole router descriptor
-                if (!descriptor.isEmpty()) { // parse it and extract keys
-                    TorDocumentParser tdp = new TorDocumentParser(descriptor);
-
-                    String fprint = StringUtils.replace(tdp.getItem("fingerprint"), "\\s+", "");
-                    if (fprint != null && consensus.routers.containsKey(fprint)) {
-                        OnionRouter or = consensus.routers.get(fprint);
-                        or.onionKeyRaw = Base64.decodeBase64(tdp.getItem("onion-key"));
-                        or.onionKey = TorCrypto.asn1GetPublicKey(or.onionKeyRaw);
-                    }
+        DescriptorStore store = DescriptorStore.getInstance();
+        ArrayList<String> missing = new ArrayList<>();
+        for (OnionRouter r : routers.values())
+            if (r.descriptorDigest == null || !store.contains(r.descriptorDigest))
+                missing.add(r.descriptorDigest == null ? null : MiscUtil.toHex(r.descriptorDigest));
+
+        // fetched descriptors are parsed as they stream in; routers the consensus doesn't name a descriptor for
+        // (microdesc flavour) are matched by fingerprint
+        ArrayList<ServerDescriptor> fetched = new ArrayList<>();
+        if (missing.contains(null) || missing.size() > routers.size() / 2) {
+            log.info("Fetching all descriptors (" + missing.size() + " of " + routers.size() + " missing)");
+            try (InputStream in = getDirectoryStream("/tor/server/all")) {
+                fetched.addAll(DescriptorPipeline.parse(in));
+            }
+        } else if (!missing.isEmpty()) {
+            log.info("Fetching " + missing.size() + " changed descriptors");
+            ArrayList<String> paths = new ArrayList<>();
+            for (int i = 0; i < missing.size(); i += DESCRIPTOR_BATCH) {
+                List<String> batch = missing.subList(i, Math.min(i + DESCRIPTOR_BATCH, missing.size()));
+                paths.add("/tor/server/d/" + StringUtils.join(batch.toArray(), "+"));
+            }
+            for (byte doc[] : getDirectoryDocuments(paths))
+                fetched.addAll(DescriptorPipeline.parse(new ByteArrayInputStream(doc)));
+        }
+        HashMap<String, ServerDescriptor> byDigest = new HashMap<>(), byFingerprint = new HashMap<>();
+        store.beginBulk();
+        try {
+            for (ServerDescriptor d : fetched) {
+                store.put(d.raw);
+                if (d.digest != null)
+                    byDigest.put(d.getDigestHex(), d);
+                if (d.fingerprint != null)
+                    byFingerprint.put(d.fingerprint, d);
+            }
+        } finally {
+            store.endBulk();
+        }
+
+        // the rest come from the store, parsed in parallel too
+        ArrayList<OnionRouter> fromStore = new ArrayList<>();
+        ArrayList<byte[]> stored = new ArrayList<>();
+        for (OnionRouter or : routers.values()) {
+            ServerDescriptor d = or.descriptorDigest != null ? byDigest.get(MiscUtil.toHex(or.descriptorDigest)) : byFingerprint.get(or.identityhash);
+            if (d != null) {
+                d.applyTo(or);
+            } else {
+                byte desc[] = store.get(or.descriptorDigest);
+                if (desc != null) {
+                    fromStore.add(or);
+                    stored.add(desc);
                 }
-                descriptor = "";
-                if (ln == null)
-                    break;
             }
-            descriptor += ln + "\n";
         }
+        HashMap<String, ServerDescriptor> parsed = new HashMap<>();
+        for (ServerDescriptor d : DescriptorPipeline.parse(stored))
+            parsed.put(d.getDigestHex(), d);
+        for (OnionRouter or : fromStore) {
+            ServerDescriptor d = parsed.get(MiscUtil.toHex(or.descriptorDigest));
+            if (d != null)
+                d.applyTo(or);
+        }
+    }
+
+    /**
+     * Fetch any microdescriptors we don't have for a microdesc flavoured consensus, and add their keys, family
+     * and exit summaries to the OnionRouter objects.  Microdescriptors are cached on disk (see MicrodescCache).
+     * Exit summaries feed the indexes, so this is only done while loading, before the consensus is published.
+     */
+    private void fetchMicrodescs() {
+        int before = 0;
+        for (OnionRouter r : routers.values())
+            if (r.consensusIPv4ExitPortSummary != null)
+                before++;
+        MicrodescCache.getInstance().fetchMissing(this, routers.values());
+
+        // the snapshot holds exit summaries - refresh it if microdescriptors added any
+        int after = 0;
+        for (OnionRouter r : routers.values())
+            if (r.consensusIPv4ExitPortSummary != null)
+                after++;
+        if (after != before) {
+            synchronized (this) {
+                index = null;
+                pathSelector = null;
+            }
+            writeBinaryConsensus(new File(cacheFile() + ".bin"));
+        }
+    }
 
+    // the consensus flavour we fetch, and the file it's cached in
+    private static String consensusPath() {
+        return USE_MICRODESCS ? "/tor/status-vote/current/consensus-microdesc" : "/tor/status-vote/current/consensus";
+    }
+
+    private static String cacheFile() {
+        return USE_MICRODESCS ? "cached-microdesc-consensus" : "cached-consensus";
+    }
+
+    // replace the routers, dropping anything derived from the old ones
+    private synchronized void setRouters(SortedMap<String, OnionRouter> r) {
+        routers = Collections.unmodifiableSortedMap(r);
+        index = null;
+        pathSelector = null;
     }
 
     private boolean fetchConsensus(boolean forceDownload) {
-        routers = new TreeMap<>(); // erase old one
+        setRouters(new TreeMap<String, OnionRouter>()); // erase old one
 
         try {
-            File cachedConsensus = new File("cached-consensus");
-            SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss zzz");
-            BufferedReader consensusReader = null; // used to read consensus
-            PrintWriter cachedConsensusWriter = null;
-
-            // examine cached consensus and assess whether still valid.
-            if (!forceDownload && cachedConsensus.exists() && cachedConsensus.canRead()) {
-                BufferedReader rdr = new BufferedReader(new FileReader(cachedConsensus));
-                String ln;
-                while ((ln = rdr.readLine()) != null) {
-                    if (ln.startsWith("valid-until")) {
-                        int idx = ln.indexOf(" ");
-                        Date valid = df.parse(ln.substring(idx + 1) + " GMT");
-                        if (valid.after(new Date())) { // saved consensus still valid
-                            log.info("cached-consensus exists in current directory - still valid so using. Expires: " + valid);
-                            consensusReader = rdr;
-                        }
-                        consensusValidUntil = valid;
-                        break;
+            File cachedConsensus = new File(cacheFile());
+            File binaryConsensus = new File(cacheFile() + ".bin");
+
+            // binary snapshot is quickest - just mapped, nothing parsed
+            if (!forceDownload && binaryConsensus.exists() && binaryConsensus.canRead()) {
+                try {
+                    BinaryConsensus bin = BinaryConsensus.load(binaryConsensus);
+                    if (bin.getValidUntil().after(new Date())) {
+                        log.info(binaryConsensus + " still valid so using. Expires: " + bin.getValidUntil());
+                        consensusValidUntil = bin.getValidUntil();
+                        bandwidthWeights = bin.getBandwidthWeights();
+                        setRouters(bin.asMap());
+                        return true;
                     }
+                } catch (IOException e) {
+                    log.warn("Ignoring unreadable " + binaryConsensus + ": " + e);
                 }
             }
 
-            if (consensusReader == null) { // if not using cached-consensus
-                log.info("No valid cached consensus - fetching.");
-                InputStream conStream = getDirectoryStream("/tor/status-vote/current/consensus.z");
-                consensusReader = new BufferedReader(new InputStreamReader(conStream));
-                if (new File(".").canWrite()) // can write to current directory?
-                    cachedConsensusWriter = new PrintWriter(cachedConsensus);
+            // examine cached consensus and assess whether still valid - if not, it's the base for a diff
+            byte base[] = null;
+            ConsensusParser baseParser = null;
+            if (cachedConsensus.exists() && cachedConsensus.canRead()) {
+                try (FileInputStream fin = new FileInputStream(cachedConsensus)) {
+                    base = IOUtils.toByteArray(fin);
+                }
+                baseParser = new ConsensusParser(new ByteArrayInputStream(base), null);
+                baseParser.parse();
+                Date valid = baseParser.getValidUntil();
+                if (!forceDownload && valid != null && valid.after(new Date())) { // saved consensus still valid
+                    log.info(cachedConsensus + " exists in current directory - still valid so using. Expires: " + valid);
+                    consensusValidUntil = valid;
+                    bandwidthWeights = baseParser.getBandwidthWeights();
+                    setRouters(baseParser.routers);
+                    writeBinaryConsensus(binaryConsensus);
+                    return true;
+                }
             }
 
-            // now go ahead and parse the consensus
-            String ln = null;
-            OnionRouter cur = null; // set after each router line to refer to current router
-            while ((ln = consensusReader.readLine()) != null) {
-                if (cachedConsensusWriter != null) // if getting new consensus then save to disk!
-                    cachedConsensusWriter.println(ln);
+            log.info("No valid cached consensus - fetching.");
+            if (base != null && USE_DIFFS && fetchConsensusDiff(base, baseParser.routers))
+                return true;
 
-                if (ln.startsWith("valid-until")) {
-                    int idx = ln.indexOf(" ");
-                    consensusValidUntil = df.parse(ln.substring(idx + 1) + " GMT");
-                }
+            InputStream conStream = getDirectoryStream(consensusPath());
 
-                if (ln.startsWith("r")) { // router line
-                    String dat[] = ln.split(" ");
-                    if (dat.length < 8)
-                        continue;
-
-                    String identityhex = Hex.encodeHexString(Base64.decodeBase64(dat[2]));
-                    cur = new OnionRouter(dat[1], identityhex, dat[6], Integer.parseInt(dat[7]), Integer.parseInt(dat[8]));
-
-                    routers.put(identityhex, cur);
-                } else if (ln.startsWith("s") && cur != null) {  // flags line
-                    for (String s : ln.split(" "))
-                        if (!s.equals("s"))
-                            cur.flags.add(s);
-                } else if (ln.startsWith("p") && cur != null) {  // exit policy line
-                    // "p" SP ("accept" / "reject") SP PortList NL
-                    String[] lineSplit = ln.split(" ");
-
-                    // tolerate extra junk at the end of the line
-                    if (lineSplit.length >= 3)
-                        cur.consensusIPv4ExitPortSummary = lineSplit[1] + " " + lineSplit[2];
-                } else if (ln.startsWith("v") && cur != null) { // version
-                    String[] lineSplit = ln.split(" ");
-                    if (lineSplit.length >= 3) {
-                        cur.version = lineSplit[1] + " " + lineSplit[2];
-                    }
-                }
+            // if getting new consensus then save to disk as we parse - only replacing the old one once complete
+            File tmp = new File(cacheFile() + ".tmp");
+            OutputStream cachedConsensusWriter = null;
+            if (new File(".").canWrite()) // can write to current directory?
+                cachedConsensusWriter = new BufferedOutputStream(new FileOutputStream(tmp));
+
+            ConsensusParser parser = new ConsensusParser(conStream, cachedConsensusWriter);
+            try {
+                parser.parse();
+            } finally {
+                conStream.close();
+                if (cachedConsensusWriter != null)
+                    cachedConsensusWriter.close();
             }
+            consensusValidUntil = parser.getValidUntil();
+            bandwidthWeights = parser.getBandwidthWeights();
+            setRouters(parser.routers);
+
+            if (cachedConsensusWriter != null && (!cachedConsensus.exists() || cachedConsensus.delete()))
+                tmp.renameTo(cachedConsensus);
+            if (cachedConsensusWriter != null)
+                writeBinaryConsensus(binaryConsensus);
         } catch (MalformedURLException e) {
             return false;
         } catch (UnknownHostException e) {
@@ -332,18 +569,203 @@ public class Consensus {
         return true;
     }
 
+    /**
+     * Asks for a diff from the consensus we hold to the current one, applies it and re-parses only the router
+     * entries it touched.
+     *
+     * @param base       The consensus we hold
+     * @param oldRouters Its parsed routers - unchanged entries are carried over
+     * @return false if a full fetch is needed (no diff available, or it didn't apply cleanly)
+     */
+    private boolean fetchConsensusDiff(byte base[], SortedMap<String, OnionRouter> oldRouters) {
+        byte asSigned[] = ConsensusDiff.digestAsSigned(base, base.length);
+        if (asSigned == null)
+            return false;
+
+        try {
+            HashMap<String, String> headers = new HashMap<>();
+            headers.put("X-Or-Diff-From-Consensus", Hex.encodeHexString(asSigned));
+            InputStream in = getDirectoryStream(consensusPath(), headers);
+            byte doc[];
+            try {
+                doc = IOUtils.toByteArray(in);
+            } finally {
+                in.close();
+            }
+
+            if (!ConsensusDiff.isDiff(doc, doc.length)) { // the directory sent the whole thing instead
+                log.info("Directory has no diff from our consensus - got the full document");
+                ConsensusParser parser = new ConsensusParser(new ByteArrayInputStream(doc), null);
+                parser.parse();
+                storeConsensus(doc, parser, parser.routers);
+                return true;
+            }
+
+            ConsensusDiff diff = ConsensusDiff.parse(new String(doc, ConsensusDiff.ASCII));
+            // the diff names its base by the as-signed digest we asked with, and its target by the full digest
+            if (!Arrays.equals(diff.getBaseDigest(), asSigned)) {
+                log.warn("Consensus diff is from a different base - fetching the full consensus");
+                return false;
+            }
+
+            String baseLines[] = new String(base, ConsensusDiff.ASCII).split("\n", -1);
+            int n = baseLines.length;
+            if (n > 0 && baseLines[n - 1].isEmpty())
+                n--;
+            ArrayList<Boolean> changed = new ArrayList<>();
+            List<String> lines = diff.apply(Arrays.asList(baseLines).subList(0, n), changed);
+
+            StringBuilder sb = new StringBuilder(base.length + 4096);
+            for (String l : lines)
+                sb.append(l).append('\n');
+            byte target[] = sb.toString().getBytes(ConsensusDiff.ASCII);
+            if (!Arrays.equals(diff.getTargetDigest(), ConsensusDiff.digest(target, target.length))) {
+                log.warn("Consensus diff result doesn't match its digest - fetching the full consensus");
+                return false;
+            }
+
+            // parse the header, footer and changed router entries; carry over the rest
+            TreeMap<String, OnionRouter> result = new TreeMap<>();
+            StringBuilder reparse = new StringBuilder();
+            int reused = 0;
+            int i = 0;
+            while (i < lines.size()) {
+                String ln = lines.get(i);
+                if (!ln.startsWith("r ")) {
+                    reparse.append(ln).append('\n');
+                    i++;
+                    continue;
+                }
+                int end = i + 1;
+                boolean blockChanged = changed.get(i);
+                while (end < lines.size() && !lines.get(end).startsWith("r ") && !lines.get(end).startsWith("directory-footer")) {
+                    blockChanged |= changed.get(end);
+                    end++;
+                }
+
+                OnionRouter old = null;
+                if (!blockChanged) {
+                    String sp[] = ln.split(" ");
+                    if (sp.length > 2)
+                        old = oldRouters.get(Hex.encodeHexString(Base64.decodeBase64(sp[2])));
+                }
+                if (old != null) {
+                    result.put(old.identityhash, old);
+                    reused++;
+                } else {
+                    for (int j = i; j < end; j++)
+                        reparse.append(lines.get(j)).append('\n');
+                }
+                i = end;
+            }
+
+            ConsensusParser parser = new ConsensusParser(new ByteArrayInputStream(reparse.toString().getBytes(ConsensusDiff.ASCII)), null);
+            result.putAll(parser.parse());
+            log.info("Applied consensus diff: " + reused + " router entries unchanged, " + (result.size() - reused) + " re-parsed");
+            storeConsensus(target, parser, result);
+            return true;
+        } catch (IOException | RuntimeException | ParseException e) {
+            log.warn("Consensus diff failed (" + e + ") - fetching the full consensus");
+            return false;
+        }
+    }
+
+    // adopt a consensus that was built in memory, and cache it on disk
+    private void storeConsensus(byte doc[], ConsensusParser parser, TreeMap<String, OnionRouter> rts) throws IOException {
+        consensusValidUntil = parser.getValidUntil();
+        bandwidthWeights = parser.getBandwidthWeights();
+        setRouters(rts);
+
+        if (!new File(".").canWrite())
+            return;
+        File tmp = new File(cacheFile() + ".tmp"), cachedConsensus = new File(cacheFile());
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            out.write(doc);
+        }
+        if (!cachedConsensus.exists() || cachedConsensus.delete())
+            tmp.renameTo(cachedConsensus);
+        writeBinaryConsensus(new File(cacheFile() + ".bin"));
+    }
+
+    // snapshot the freshly parsed consensus for quick startup next time
+    private void writeBinaryConsensus(File f) {
+        if (!new File(".").canWrite())
+            return;
+        try {
+            BinaryConsensus.write(f, consensusValidUntil, routers.values(), bandwidthWeights);
+        } catch (IOException e) {
+            log.warn("Couldn't write " + f + ": " + e);
+        }
+    }
+
+    /**
+     * The routers in this consensus, keyed by identity as lower case hex.  Read-only - a consensus never changes
+     * once it's published.  When loaded from the binary snapshot this is a view over the mapped file.
+     */
+    public SortedMap<String, OnionRouter> getRouters() {
+        return routers;
+    }
+
+    /**
+     * The routers packed into a columnar RouterTable, for analyses that keep many consensuses in memory.  Built on
+     * each call - keep the table rather than the Consensus.
+     */
+    public RouterTable toRouterTable() {
+        return RouterTable.build(routers.values());
+    }
+
+    /**
+     * Lookup indexes for the current routers, built on first use
+     */
+    synchronized RouterIndex getIndex() {
+        if (index == null)
+            index = new RouterIndex(routers.values());
+        return index;
+    }
+
+    /**
+     * A new query over the routers, answered from indexes built on first use - see RouterQuery
+     */
+    public RouterQuery query() {
+        return new RouterQuery(getIndex());
+    }
+
+    /**
+     * Bandwidth-weighted path selection over this consensus, built on first use
+     */
+    public synchronized PathSelector getPathSelector() {
+        if (pathSelector == null)
+            pathSelector = new PathSelector(this);
+        return pathSelector;
+    }
+
     public OnionRouter getRouterByName(String nm) {
-        for (OnionRouter r : routers.values())
-            if (r.name.equals(nm))
-                return r;
-        throw new RuntimeException("unknown router: " + nm);
+        OnionRouter r = getIndex().byName.get(nm);
+        if (r == null)
+            throw new RuntimeException("unknown router: " + nm);
+        return r;
     }
 
     public OnionRouter getRouterByIpPort(String addr, int port) {
-        for (OnionRouter r : routers.values())
-            if (r.ip.getHostAddress().equals(addr) && r.orport == port)
-                return r;
-        throw new RuntimeException("unknown router");
+        Integer ip = RouterIndex.parseIPv4(addr);
+        if (ip == null) { // not a dotted quad - compare the slow way
+            for (OnionRouter r : routers.values())
+                if (r.ip.getHostAddress().equals(addr) && r.orport == port)
+                    return r;
+            throw new RuntimeException("unknown router");
+        }
+        OnionRouter r = getIndex().byIpPort.get(RouterIndex.ipPortKey(ip, port));
+        if (r == null)
+            throw new RuntimeException("unknown router");
+        return r;
+    }
+
+    /**
+     * @param identityhex Router identity as lower case hex
+     * @return the router, or null if it isn't in the consensus
+     */
+    public OnionRouter getRouterByIdentity(String identityhex) {
+        return getIndex().byIdentity.get(identityhex);
     }
 
     /**
@@ -371,7 +793,7 @@ public class Consensus {
     /**
      * Return the routers with all of the supplied flags, optionally excluding bad exits.
      * See https://consensus-health.torproject.org for a list of known flags.
-     * Because OnionRouter.acceptsIPv4ExitPort is an expensive operation, we perform it in the getRandom*() functions.
+     * Exit ports are filtered separately - see getRandomORWithFlag(flags, exitPort, excludeBadExits).
      *
      * @param flags           the desired flags (case-sensitive)
      * @param excludeBadExits exclude routers with the BadExit flags (these are considered unreliable for some purposes)
@@ -379,16 +801,23 @@ public class Consensus {
      */
     public TreeMap<String, OnionRouter> getORsWithFlag(String[] flags, boolean excludeBadExits) {
         TreeMap<String, OnionRouter> map = new TreeMap<>();
-        for (OnionRouter r : routers.values()) {
-            if (r.flags.containsAll(Arrays.asList(flags))
-                    // either we're including (not excluding) bad exits, or we filter out routers with the bad exit flag
-                    && (!excludeBadExits || !r.flags.contains("BadExit"))) {
-                map.put(r.identityhash, r);
-            }
-        }
+        for (OnionRouter r : getIndex().withFlags(flags, excludeBadExits))
+            map.put(r.identityhash, r);
         return map;
     }
 
+    /**
+     * Return the routers with all of the supplied flags as an array in identity order, optionally excluding bad
+     * exits.  Cheaper than getORsWithFlag - the candidate set for each combination of flags is computed once.
+     *
+     * @param flags           the desired flags (case-sensitive)
+     * @param excludeBadExits exclude routers with the BadExit flags
+     * @return routers with the flags (a copy - free to modify)
+     */
+    public OnionRouter[] getRoutersWithFlags(String[] flags, boolean excludeBadExits) {
+        return getIndex().withFlags(flags, excludeBadExits).clone();
+    }
+
 
     /**
      * Return a (cryptographically) random router with the supplied flag(s), excluding bad exits.
@@ -427,28 +856,24 @@ public class Consensus {
     /**
      * Return the routers with all of the supplied flags and the specified exitPort, optionally excluding bad exits.
      * See https://consensus-health.torproject.org for a list of known flags.
+     * Exit ports are checked against the consensus port summaries (routers without one are never chosen).
      *
      * @param flags           the desired flags (case-sensitive)
      * @param exitPort        the desired exit port in the router's exit policy (or 0 to ignore exit policies)
      * @param excludeBadExits exclude routers with the BadExit flags (these are considered unreliable for some purposes)
      * @return a random router with the specified flags
+     * @throws RuntimeException if no router matches
      */
     public OnionRouter getRandomORWithFlag(String[] flags, int exitPort, Boolean excludeBadExits) {
-        TreeMap<String, OnionRouter> map = getORsWithFlag(flags, excludeBadExits);
-        OnionRouter ors[] = map.values().toArray(new OnionRouter[map.size()]);
-        boolean acceptsExitPort = false;
-        int idx = TorCrypto.rnd.nextInt(ors.length);
-
-        // ignore exitPort 0
-        if (exitPort != 0) {
-            // iterate through the routers until we find one that accepts the desired exitPort
-            do {
-                idx = TorCrypto.rnd.nextInt(ors.length);
-                acceptsExitPort = ors[idx].acceptsIPv4ExitPort(exitPort);
-            } while (!acceptsExitPort);
-        }
-
-        return ors[idx];
+        // ignore exitPort 0 (and invalid ports)
+        boolean byPort = exitPort > 0 && exitPort <= 65535;
+        OnionRouter ors[] = byPort ? getIndex().withFlagsAndPort(flags, excludeBadExits, exitPort)
+                : getIndex().withFlags(flags, excludeBadExits);
+        if (ors.length == 0)
+            throw new RuntimeException("no routers with flags " + Arrays.toString(flags)
+                    + (byPort ? " accepting exit port " + exitPort : ""));
+
+        return ors[TorCrypto.rnd.nextInt(ors.length)];
     }
 
     /**
@@ -0,0 +1,353 @@
+/*
+        Tor Research Framework - easy to use tor client library/framework
+        Copyright (C) 2014  Dr Gareth Owen <drgowen@gmail.com>
+        www.ghowen.me / github.com/drgowen/tor-research-framework
+
+        This program is free software: you can redistribute it and/or modify
+        it under the terms of the GNU General Public License as published by
+        the Free Software Foundation, either version 3 of the License, or
+        (at your option) any later version.
+
+        This program is distributed in the hope that it will be useful,
+        but WITHOUT ANY WARRANTY; without even the implied warranty of
+        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+        GNU General Public License for more details.
+
+        You should have received a copy of the GNU General Public License
+        along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package tor;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.tukaani.xz.XZInputStream;
+import tor.util.TarReader;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Ingests archived consensuses and server descriptors (e.g. from CollecTor) into a snapshot directory, and gives
+ * time-indexed access to them.
+ * <p/>
+ * Sources are directories, tar bundles (.tar, .tar.xz) or single (optionally .xz) files, read as a stream.  Each
+ * document is parsed on a worker thread: consensuses become BinaryConsensus snapshots named by their validity
+ * period, descriptors go to a DescriptorStore in the same directory.  Consensuses already in the archive are
+ * skipped, so re-running over the same sources is cheap.
+ */
+public class ConsensusArchive {
+    final static Logger log = LogManager.getLogger();
+    final static Charset ASCII = Charset.forName("ISO-8859-1");
+
+    public static int PARALLELISM = Runtime.getRuntime().availableProcessors();
+    // documents read ahead of the workers, per worker
+    public static int QUEUE_PER_WORKER = 4;
+
+    private static final Pattern SNAPSHOT = Pattern.compile("(consensus|microdesc-consensus)-(\\d{14})-(\\d{14})\\.bin");
+
+    static class Snapshot {
+        final File file;
+        final long validAfter, validUntil;
+
+        Snapshot(File file, long validAfter, long validUntil) {
+            this.file = file;
+            this.validAfter = validAfter;
+            this.validUntil = validUntil;
+        }
+    }
+
+    private final File dir;
+    // by valid-after, per flavour - guarded by this
+    private final TreeMap<Long, Snapshot> consensuses = new TreeMap<>(), microdescConsensuses = new TreeMap<>();
+    private DescriptorStore descriptors = null;
+
+    /**
+     * Opens (creating if needed) a snapshot directory and indexes what's already there
+     */
+    public ConsensusArchive(File dir) throws IOException {
+        this.dir = dir;
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("can't create " + dir);
+        String files[] = dir.list();
+        for (String f : files == null ? new String[0] : files) {
+            Matcher m = SNAPSHOT.matcher(f);
+            if (!m.matches())
+                continue;
+            try {
+                Snapshot s = new Snapshot(new File(dir, f), parseName(m.group(2)), parseName(m.group(3)));
+                (m.group(1).equals("consensus") ? consensuses : microdescConsensuses).put(s.validAfter, s);
+            } catch (ParseException e) {
+                log.warn("Ignoring " + f + ": " + e);
+            }
+        }
+        log.info("Archive " + dir + " has " + consensuses.size() + " consensuses, " + microdescConsensuses.size() + " microdesc consensuses");
+    }
+
+    /**
+     * Descriptors ingested into the archive
+     */
+    public synchronized DescriptorStore getDescriptorStore() throws IOException {
+        if (descriptors == null)
+            descriptors = DescriptorStore.open(new File(dir, "descriptors.log"), new File(dir, "descriptors.idx"));
+        return descriptors;
+    }
+
+    // ---- time index ----
+
+    /**
+     * The consensus that was valid at t, or null if the archive has none
+     */
+    public BinaryConsensus getConsensusAt(Date t) throws IOException {
+        return getConsensusAt(t, false);
+    }
+
+    /**
+     * @param microdesc Whether to look at the microdesc flavour
+     */
+    public BinaryConsensus getConsensusAt(Date t, boolean microdesc) throws IOException {
+        Snapshot s;
+        synchronized (this) {
+            Map.Entry<Long, Snapshot> e = (microdesc ? microdescConsensuses : consensuses).floorEntry(t.getTime());
+            s = e == null || e.getValue().validUntil <= t.getTime() ? null : e.getValue();
+        }
+        return s == null ? null : BinaryConsensus.load(s.file);
+    }
+
+    /**
+     * Valid-after times of the archived (full flavour) consensuses in [from, to)
+     */
+    public synchronized List<Date> getValidAfterTimes(Date from, Date to) {
+        ArrayList<Date> out = new ArrayList<>();
+        for (Long t : consensuses.subMap(from.getTime(), to.getTime()).keySet())
+            out.add(new Date(t));
+        return out;
+    }
+
+    /**
+     * The consensus published at validAfter, or null
+     */
+    public BinaryConsensus getConsensus(Date validAfter) throws IOException {
+        Snapshot s;
+        synchronized (this) {
+            s = consensuses.get(validAfter.getTime());
+        }
+        return s == null ? null : BinaryConsensus.load(s.file);
+    }
+
+    public synchronized int size() {
+        return consensuses.size() + microdescConsensuses.size();
+    }
+
+    // ---- ingestion ----
+
+    /**
+     * Ingests everything under source: a directory (recursively), a .tar/.tar.xz bundle or a single document
+     *
+     * @return the number of documents added
+     */
+    public int ingest(File source) throws IOException {
+        final int workers = Math.max(PARALLELISM, 1);
+        final ExecutorService pool = Executors.newFixedThreadPool(workers);
+        final Semaphore queued = new Semaphore(workers * QUEUE_PER_WORKER);
+        final AtomicInteger added = new AtomicInteger();
+        final ArrayList<Future<?>> results = new ArrayList<>();
+        long start = System.currentTimeMillis();
+        final DescriptorStore store = getDescriptorStore();
+        store.beginBulk();
+        try {
+            walk(source, new DocumentSink() {
+                @Override
+                public void accept(final String name, final byte doc[]) throws IOException {
+                    try {
+                        queued.acquire();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException();
+                    }
+                    results.add(pool.submit(new Callable<Void>() {
+                        @Override
+                        public Void call() {
+                            try {
+                                added.addAndGet(ingestDocument(name, doc));
+                            } catch (IOException | ParseException | RuntimeException e) {
+                                log.warn("Skipping " + name + ": " + e);
+                            } finally {
+                                queued.release();
+                            }
+                            return null;
+                        }
+                    }));
+                }
+            });
+            for (Future<?> f : results)
+                f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        } finally {
+            pool.shutdownNow();
+            store.endBulk();
+        }
+        log.info("Ingested " + added.get() + " documents from " + source + " in " + (System.currentTimeMillis() - start) + "ms");
+        return added.get();
+    }
+
+    interface DocumentSink {
+        void accept(String name, byte doc[]) throws IOException;
+    }
+
+    private void walk(File f, DocumentSink sink) throws IOException {
+        if (f.isDirectory()) {
+            File files[] = f.listFiles();
+            if (files == null)
+                return;
+            Arrays.sort(files);
+            for (File c : files)
+                walk(c, sink);
+            return;
+        }
+
+        String name = f.getName();
+        try (InputStream raw = new BufferedInputStream(new FileInputStream(f), 65536)) {
+            InputStream in = name.endsWith(".xz") || name.endsWith(".txz") ? new XZInputStream(raw) : raw;
+            if (name.endsWith(".tar") || name.endsWith(".tar.xz") || name.endsWith(".txz")) {
+                TarReader tar = new TarReader(in);
+                while (tar.next())
+                    sink.accept(f.getName() + "/" + tar.getName(), IOUtils.toByteArray(tar.getInputStream()));
+            } else {
+                sink.accept(f.getPath(), IOUtils.toByteArray(in));
+            }
+        }
+    }
+
+    // parses one document into the archive - returns 1 if it was added
+    int ingestDocument(String name, byte doc[]) throws IOException, ParseException {
+        String type = annotatedType(doc);
+        boolean consensus = type != null ? type.startsWith("network-status-consensus-3") || type.startsWith("network-status-microdesc-consensus-3")
+                : startsWithLine(doc, "network-status-version 3") && indexOfLine(doc, "vote-status consensus") >= 0;
+        boolean descriptors = type != null ? type.startsWith("server-descriptor") : startsWithLine(doc, "router ");
+
+        if (consensus) {
+            Long va = peekValidAfter(doc);
+            if (va != null) {
+                boolean microdesc = type != null ? type.contains("microdesc") : isMicrodescFlavour(doc);
+                synchronized (this) {
+                    if ((microdesc ? microdescConsensuses : consensuses).containsKey(va))
+                        return 0;
+                }
+            }
+            ConsensusParser p = new ConsensusParser(new ByteArrayInputStream(doc), null);
+            TreeMap<String, OnionRouter> routers = p.parse();
+            if (p.getValidAfter() == null || p.getValidUntil() == null)
+                throw new ParseException("consensus without valid-after/valid-until", 0);
+            String flavour = p.isMicrodesc() ? "microdesc-consensus" : "consensus";
+            File f = new File(dir, flavour + "-" + formatName(p.getValidAfter()) + "-" + formatName(p.getValidUntil()) + ".bin");
+            BinaryConsensus.write(f, p.getValidUntil(), routers.values(), p.getBandwidthWeights());
+            synchronized (this) {
+                Snapshot s = new Snapshot(f, p.getValidAfter().getTime(), p.getValidUntil().getTime());
+                (p.isMicrodesc() ? microdescConsensuses : consensuses).put(s.validAfter, s);
+            }
+            return 1;
+        } else if (descriptors) {
+            DescriptorStore store = getDescriptorStore();
+            int n = 0;
+            for (ServerDescriptor d : DescriptorPipeline.parse(new ByteArrayInputStream(doc))) {
+                if (!store.contains(d.digest) && store.put(d.raw) != null)
+                    n++;
+            }
+            return n;
+        }
+        log.debug("Skipping " + name + (type != null ? " (" + type + ")" : ""));
+        return 0;
+    }
+
+    // the CollecTor "@type ..." annotation, if the document starts with one
+    private static String annotatedType(byte doc[]) {
+        if (!startsWithLine(doc, "@type "))
+            return null;
+        int end = 0;
+        while (end < doc.length && doc[end] != '\n')
+            end++;
+        return new String(doc, 6, end - 6, ASCII).trim();
+    }
+
+    // whether the network-status-version line names the microdesc flavour
+    private static boolean isMicrodescFlavour(byte doc[]) {
+        int i = indexOfLine(doc, "network-status-version ");
+        if (i < 0)
+            return false;
+        int end = i;
+        while (end < doc.length && doc[end] != '\n')
+            end++;
+        String words[] = new String(doc, i, end - i, ASCII).trim().split(" +");
+        return words.length > 2 && words[2].equals("microdesc");
+    }
+
+    // valid-after from the header without parsing the document, null if not found
+    private static Long peekValidAfter(byte doc[]) {
+        int i = indexOfLine(doc, "valid-after ");
+        if (i < 0)
+            return null;
+        int end = i;
+        while (end < doc.length && doc[end] != '\n')
+            end++;
+        try {
+            SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+            df.setTimeZone(TimeZone.getTimeZone("GMT"));
+            return df.parse(new String(doc, i + 12, end - i - 12, ASCII).trim()).getTime();
+        } catch (ParseException e) {
+            return null;
+        }
+    }
+
+    // start of a line beginning with s, looking only in the header (first 64K)
+    private static int indexOfLine(byte doc[], String s) {
+        int limit = Math.min(doc.length, 65536);
+        for (int i = 0; i < limit; i++)
+            if ((i == 0 || doc[i - 1] == '\n') && matches(doc, i, s))
+                return i;
+        return -1;
+    }
+
+    // whether the first line not starting with @ begins with s
+    private static boolean startsWithLine(byte doc[], String s) {
+        int i = 0;
+        while (i < doc.length && doc[i] == '@' && !matches(doc, i, s)) {
+            while (i < doc.length && doc[i] != '\n')
+                i++;
+            i++;
+        }
+        return i < doc.length && matches(doc, i, s);
+    }
+
+    private static boolean matches(byte doc[], int pos, String s) {
+        if (pos + s.length() > doc.length)
+            return false;
+        for (int i = 0; i < s.length(); i++)
+            if (doc[pos + i] != s.charAt(i))
+                return false;
+        return true;
+    }
+
+    private static String formatName(Date d) {
+        SimpleDateFormat df = new SimpleDateFormat("yyyyMMddHHmmss");
+        df.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return df.format(d);
+    }
+
+    private static long parseName(String s) throws ParseException {
+        SimpleDateFormat df = new SimpleDateFormat("yyyyMMddHHmmss");
+        df.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return df.parse(s).getTime();
+    }
+}
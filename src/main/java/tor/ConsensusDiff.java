@@ -0,0 +1,207 @@
+/*
+        Tor Research Framework - easy to use tor client library/framework
+        Copyright (C) 2014  Dr Gareth Owen <drgowen@gmail.com>
+        www.ghowen.me / github.com/drgowen/tor-research-framework
+
+        This program is free software: you can redistribute it and/or modify
+        it under the terms of the GNU General Public License as published by
+        the Free Software Foundation, either version 3 of the License, or
+        (at your option) any later version.
+
+        This program is distributed in the hope that it will be useful,
+        but WITHOUT ANY WARRANTY; without even the implied warranty of
+        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+        GNU General Public License for more details.
+
+        You should have received a copy of the GNU General Public License
+        along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package tor;
+
+import org.apache.commons.codec.binary.Hex;
+import tor.util.SHA3;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A consensus diff (dir-spec "consensus-diff" format, network-status-diff-version 1): an ed-style script turning
+ * the consensus with one SHA3-256 digest into the one with another.
+ */
+public class ConsensusDiff {
+    final static Charset ASCII = Charset.forName("ISO-8859-1");
+    public static final String VERSION_LINE = "network-status-diff-version 1";
+
+    private static final Pattern COMMAND = Pattern.compile("^([0-9]+)(?:,([0-9]+|\\$))?([acd])$");
+
+    byte baseDigest[], targetDigest[];
+    ArrayList<Command> commands = new ArrayList<>(); // in file order - descending line numbers
+
+    static class Command {
+        int start, end; // 1-based inclusive, end -1 for "$"
+        char op;
+        String lines[]; // for a and c
+
+        Command(int start, int end, char op, String lines[]) {
+            this.start = start;
+            this.end = end;
+            this.op = op;
+            this.lines = lines;
+        }
+    }
+
+    /**
+     * @return whether a downloaded document is a diff rather than a whole consensus
+     */
+    public static boolean isDiff(byte doc[], int len) {
+        byte v[] = VERSION_LINE.getBytes(ASCII);
+        if (len < v.length)
+            return false;
+        for (int i = 0; i < v.length; i++)
+            if (doc[i] != v[i])
+                return false;
+        return true;
+    }
+
+    /**
+     * Parses a diff
+     *
+     * @throws IOException if it's malformed
+     */
+    public static ConsensusDiff parse(String text) throws IOException {
+        ConsensusDiff d = new ConsensusDiff();
+        String lns[] = text.split("\n", -1);
+        int n = lns.length;
+        if (n > 0 && lns[n - 1].isEmpty())
+            n--; // trailing newline
+
+        if (n < 2 || !lns[0].equals(VERSION_LINE))
+            throw new IOException("not a consensus diff");
+        String h[] = lns[1].split(" ");
+        if (h.length != 3 || !h[0].equals("hash"))
+            throw new IOException("bad consensus diff hash line: " + lns[1]);
+        try {
+            d.baseDigest = Hex.decodeHex(h[1].toCharArray());
+            d.targetDigest = Hex.decodeHex(h[2].toCharArray());
+        } catch (org.apache.commons.codec.DecoderException e) {
+            throw new IOException("bad consensus diff hash line: " + lns[1]);
+        }
+
+        int prevStart = Integer.MAX_VALUE;
+        for (int i = 2; i < n; i++) {
+            Matcher m = COMMAND.matcher(lns[i]);
+            if (!m.matches())
+                throw new IOException("bad consensus diff command: " + lns[i]);
+            int start = Integer.parseInt(m.group(1));
+            int end = m.group(2) == null ? start : m.group(2).equals("$") ? -1 : Integer.parseInt(m.group(2));
+            char op = m.group(3).charAt(0);
+            if (end != -1 && end < start || (op == 'a' && m.group(2) != null) || (op != 'a' && start < 1))
+                throw new IOException("bad consensus diff command: " + lns[i]);
+            // commands must run backwards through the document
+            if ((end == -1 ? Integer.MAX_VALUE - 1 : end) >= prevStart)
+                throw new IOException("consensus diff commands out of order at: " + lns[i]);
+            prevStart = start;
+
+            String add[] = null;
+            if (op == 'a' || op == 'c') {
+                int j = i + 1;
+                while (j < n && !lns[j].equals("."))
+                    j++;
+                if (j == n)
+                    throw new IOException("unterminated consensus diff command: " + lns[i]);
+                add = Arrays.copyOfRange(lns, i + 1, j);
+                i = j;
+            }
+            d.commands.add(new Command(start, end, op, add));
+        }
+        return d;
+    }
+
+    public byte[] getBaseDigest() {
+        return baseDigest;
+    }
+
+    public byte[] getTargetDigest() {
+        return targetDigest;
+    }
+
+    /**
+     * Applies the diff to the base consensus lines
+     *
+     * @param base    Lines of the base consensus (without newlines)
+     * @param changed Filled with whether each returned line is new (true) or copied from the base (false)
+     * @return lines of the target consensus
+     * @throws IOException if the diff refers to lines the base doesn't have
+     */
+    public List<String> apply(List<String> base, List<Boolean> changed) throws IOException {
+        ArrayList<String> out = new ArrayList<>(base.size() + 64);
+        int next = 1; // next base line to copy, 1-based
+        boolean markNext = false;
+
+        // commands are descending, so walk them backwards to copy the base in one pass
+        for (int c = commands.size() - 1; c >= 0; c--) {
+            Command cmd = commands.get(c);
+            int end = cmd.end == -1 ? base.size() : cmd.end;
+            int copyTo = cmd.op == 'a' ? cmd.start : cmd.start - 1; // last untouched line before the command
+            if (copyTo > base.size() || end > base.size() || copyTo < next - 1)
+                throw new IOException("consensus diff doesn't fit the base consensus");
+
+            for (; next <= copyTo; next++) {
+                out.add(base.get(next - 1));
+                changed.add(markNext);
+                markNext = false;
+            }
+            if (cmd.op != 'a')
+                next = end + 1; // skip deleted / replaced lines
+            if (cmd.lines != null)
+                for (String l : cmd.lines) {
+                    out.add(l);
+                    changed.add(true);
+                }
+            if (cmd.op == 'd') {
+                // nothing new marks a deletion, so mark its neighbours - the entry it was cut from has changed
+                if (!changed.isEmpty())
+                    changed.set(changed.size() - 1, true);
+                markNext = true;
+            }
+        }
+        for (; next <= base.size(); next++) {
+            out.add(base.get(next - 1));
+            changed.add(markNext);
+            markNext = false;
+        }
+        return out;
+    }
+
+    /**
+     * SHA3-256 of the whole document, as used for the target in the diff's hash line
+     */
+    public static byte[] digest(byte doc[], int len) {
+        return SHA3.digest(doc, 0, len);
+    }
+
+    /**
+     * SHA3-256 of the signed part of a consensus (up to and including "directory-signature "), as sent in
+     * X-Or-Diff-From-Consensus to ask for a diff from it, and used for the base in the diff's hash line
+     *
+     * @return digest, or null if the document has no signature
+     */
+    public static byte[] digestAsSigned(byte doc[], int len) {
+        byte kw[] = "directory-signature ".getBytes(ASCII);
+        outer:
+        for (int i = 0; i + kw.length <= len; i++) {
+            if (i > 0 && doc[i - 1] != '\n')
+                continue;
+            for (int j = 0; j < kw.length; j++)
+                if (doc[i + j] != kw[j])
+                    continue outer;
+            return SHA3.digest(doc, 0, i + kw.length);
+        }
+        return null;
+    }
+}
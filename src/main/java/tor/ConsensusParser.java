@@ -0,0 +1,391 @@
+/*
+        Tor Research Framework - easy to use tor client library/framework
+        Copyright (C) 2014  Dr Gareth Owen <drgowen@gmail.com>
+        www.ghowen.me / github.com/drgowen/tor-research-framework
+
+        This program is free software: you can redistribute it and/or modify
+        it under the terms of the GNU General Public License as published by
+        the Free Software Foundation, either version 3 of the License, or
+        (at your option) any later version.
+
+        This program is distributed in the hope that it will be useful,
+        but WITHOUT ANY WARRANTY; without even the implied warranty of
+        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+        GNU General Public License for more details.
+
+        You should have received a copy of the GNU General Public License
+        along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package tor;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.TimeZone;
+import java.util.TreeMap;
+
+/**
+ * Single pass, low-allocation parser for network status consensus documents.
+ *
+ * Works directly on the (inflated) byte stream a buffer at a time - lines and tokens are offsets into the
+ * buffer, keywords are matched exactly, IPs are parsed to packed ints and identities base64-decoded straight
+ * to their 20 raw bytes.  Strings are only made for values that are kept, and repeated ones (flags, versions,
+ * exit summaries) are shared between routers.
+ */
+public class ConsensusParser {
+    final static Charset ASCII = Charset.forName("ISO-8859-1");
+
+    private static final byte KW_R[] = "r".getBytes(ASCII);
+    private static final byte KW_S[] = "s".getBytes(ASCII);
+    private static final byte KW_P[] = "p".getBytes(ASCII);
+    private static final byte KW_V[] = "v".getBytes(ASCII);
+    private static final byte KW_W[] = "w".getBytes(ASCII);
+    private static final byte KW_BANDWIDTH_WEIGHTS[] = "bandwidth-weights".getBytes(ASCII);
+    private static final byte BANDWIDTH_EQ[] = "Bandwidth=".getBytes(ASCII);
+    private static final byte KW_VALID_UNTIL[] = "valid-until".getBytes(ASCII);
+    private static final byte KW_VALID_AFTER[] = "valid-after".getBytes(ASCII);
+    private static final byte KW_KNOWN_FLAGS[] = "known-flags".getBytes(ASCII);
+    private static final byte KW_M[] = "m".getBytes(ASCII);
+    private static final byte KW_NETWORK_STATUS_VERSION[] = "network-status-version".getBytes(ASCII);
+    private static final byte MICRODESC[] = "microdesc".getBytes(ASCII);
+
+    private static final int B64[] = new int[256];
+
+    static {
+        java.util.Arrays.fill(B64, -1);
+        String alpha = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for (int i = 0; i < alpha.length(); i++)
+            B64[alpha.charAt(i)] = i;
+    }
+
+    InputStream in;
+    OutputStream copy;
+
+    byte buf[] = new byte[65536];
+    int bufLen = 0; // bytes in buf
+    int pos = 0; // start of next line
+    boolean eof = false;
+
+    // current line and token
+    int lineEnd;
+    int tokStart, tokEnd;
+
+    // flag names from known-flags, so routers share the same strings
+    ArrayList<byte[]> knownFlagBytes = new ArrayList<>();
+    ArrayList<String> knownFlags = new ArrayList<>();
+    HashMap<String, String> shared = new HashMap<>();
+
+    TreeMap<String, OnionRouter> routers = new TreeMap<>();
+    Date validUntil = null;
+    Date validAfter = null;
+    boolean microdesc = false; // microdesc flavour - no descriptor digest on r lines, m lines instead
+    HashMap<String, Integer> bandwidthWeights = new HashMap<>();
+
+    /**
+     * @param in   Consensus document (already inflated)
+     * @param copy If not null, every byte read is also written here (e.g. to cache the document on disk)
+     */
+    public ConsensusParser(InputStream in, OutputStream copy) {
+        this.in = in;
+        this.copy = copy;
+    }
+
+    /**
+     * Parses the whole document
+     *
+     * @return routers, keyed by hex identity
+     */
+    public TreeMap<String, OnionRouter> parse() throws IOException, ParseException {
+        OnionRouter cur = null; // set after each router line to refer to current router
+
+        while (nextLine()) {
+            if (!nextToken())
+                continue;
+
+            if (keyword(KW_R)) { // r nickname identity [digest] date time IP ORPort DirPort
+                cur = parseRouterLine();
+                if (cur != null)
+                    routers.put(cur.identityhash, cur);
+            } else if (keyword(KW_S)) {
+                if (cur != null)
+                    while (nextToken())
+                        cur.flags.add(flag());
+            } else if (keyword(KW_M)) { // m digest (microdesc flavour)
+                if (cur != null && nextToken())
+                    cur.microdescDigest = base64Decode(32);
+            } else if (keyword(KW_P)) { // "p" SP ("accept" / "reject") SP PortList
+                if (cur != null)
+                    cur.consensusIPv4ExitPortSummary = restOfLine(2);
+            } else if (keyword(KW_V)) {
+                if (cur != null)
+                    cur.version = restOfLine(2);
+            } else if (keyword(KW_W)) { // w Bandwidth=N [Measured=N] [Unmeasured=1]
+                if (cur != null)
+                    while (nextToken())
+                        if (tokenStartsWith(BANDWIDTH_EQ)) {
+                            tokStart += BANDWIDTH_EQ.length;
+                            cur.bandwidth = Math.max(parseInt(), 0);
+                        }
+            } else if (keyword(KW_BANDWIDTH_WEIGHTS)) { // bandwidth-weights Wbd=N Wbe=N ...
+                while (nextToken()) {
+                    int eq = tokStart;
+                    while (eq < tokEnd && buf[eq] != '=')
+                        eq++;
+                    if (eq == tokEnd)
+                        continue;
+                    String k = new String(buf, tokStart, eq - tokStart, ASCII);
+                    boolean neg = eq + 1 < tokEnd && buf[eq + 1] == '-';
+                    tokStart = neg ? eq + 2 : eq + 1;
+                    int v = parseInt();
+                    if (v >= 0)
+                        bandwidthWeights.put(k, neg ? -v : v);
+                }
+            } else if (keyword(KW_KNOWN_FLAGS)) {
+                while (nextToken()) {
+                    String f = new String(buf, tokStart, tokEnd - tokStart, ASCII);
+                    knownFlags.add(f);
+                    knownFlagBytes.add(f.getBytes(ASCII));
+                }
+            } else if (keyword(KW_NETWORK_STATUS_VERSION)) { // network-status-version 3 [flavour]
+                if (nextToken() && nextToken())
+                    microdesc = tokenEquals(MICRODESC);
+            } else if (keyword(KW_VALID_UNTIL)) {
+                validUntil = parseDate();
+            } else if (keyword(KW_VALID_AFTER)) {
+                validAfter = parseDate();
+            }
+        }
+        return routers;
+    }
+
+    /**
+     * Whether this was a microdesc flavoured consensus (routers carry microdescDigest rather than exit summaries)
+     */
+    public boolean isMicrodesc() {
+        return microdesc;
+    }
+
+    public Date getValidUntil() {
+        return validUntil;
+    }
+
+    public Date getValidAfter() {
+        return validAfter;
+    }
+
+    private Date parseDate() throws ParseException {
+        String d = restOfLine(2);
+        if (d == null)
+            throw new ParseException("missing date", 0);
+        SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        df.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return df.parse(d);
+    }
+
+    /**
+     * @return the bandwidth-weights footer (Wgg, Wgd, Wmm...), empty if absent
+     */
+    public HashMap<String, Integer> getBandwidthWeights() {
+        return bandwidthWeights;
+    }
+
+    private OnionRouter parseRouterLine() {
+        if (!nextToken())
+            return null;
+        String nick = new String(buf, tokStart, tokEnd - tokStart, ASCII);
+        if (!nextToken())
+            return null;
+        byte ident[] = base64Decode(20);
+        byte digest[] = null; // descriptor digest - not in the microdesc flavour
+        if (!microdesc) {
+            if (!nextToken())
+                return null;
+            digest = base64Decode(20);
+        }
+        // publication date and time
+        for (int i = 0; i < 2; i++)
+            if (!nextToken())
+                return null;
+        if (!nextToken())
+            return null;
+        int ip = parseIPv4();
+        if (!nextToken())
+            return null;
+        int orport = parseInt();
+        if (!nextToken())
+            return null;
+        int dirport = parseInt();
+        if (ident == null || orport < 0 || dirport < 0)
+            return null;
+        OnionRouter r = new OnionRouter(nick, ident, ip, orport, dirport);
+        r.descriptorDigest = digest;
+        return r;
+    }
+
+    // ---- tokenizer ----
+
+    // advances to the next line, refilling the buffer as needed.  false at end of document
+    private boolean nextLine() throws IOException {
+        while (true) {
+            for (int i = pos; i < bufLen; i++) {
+                if (buf[i] == '\n') {
+                    tokEnd = pos;
+                    lineEnd = i > pos && buf[i - 1] == '\r' ? i - 1 : i;
+                    pos = i + 1;
+                    return true;
+                }
+            }
+            if (eof) {
+                if (pos < bufLen) { // last line without a newline
+                    tokEnd = pos;
+                    lineEnd = bufLen;
+                    pos = bufLen;
+                    return true;
+                }
+                return false;
+            }
+            fill();
+        }
+    }
+
+    private void fill() throws IOException {
+        // keep the partial line, growing if a single line fills the buffer
+        int partial = bufLen - pos;
+        if (pos == 0 && bufLen == buf.length) {
+            byte nb[] = new byte[buf.length * 2];
+            System.arraycopy(buf, 0, nb, 0, bufLen);
+            buf = nb;
+        } else if (pos > 0) {
+            System.arraycopy(buf, pos, buf, 0, partial);
+        }
+        pos = 0;
+        bufLen = partial;
+
+        int n = in.read(buf, bufLen, buf.length - bufLen);
+        if (n == -1) {
+            eof = true;
+            return;
+        }
+        if (copy != null)
+            copy.write(buf, bufLen, n);
+        bufLen += n;
+    }
+
+    // next space separated token on the current line
+    private boolean nextToken() {
+        int i = tokEnd;
+        while (i < lineEnd && (buf[i] == ' ' || buf[i] == '\t'))
+            i++;
+        if (i >= lineEnd)
+            return false;
+        tokStart = i;
+        while (i < lineEnd && buf[i] != ' ' && buf[i] != '\t')
+            i++;
+        tokEnd = i;
+        return true;
+    }
+
+    private boolean keyword(byte kw[]) {
+        return tokenEquals(kw);
+    }
+
+    private boolean tokenEquals(byte b[]) {
+        if (tokEnd - tokStart != b.length)
+            return false;
+        for (int i = 0; i < b.length; i++)
+            if (buf[tokStart + i] != b[i])
+                return false;
+        return true;
+    }
+
+    private boolean tokenStartsWith(byte b[]) {
+        if (tokEnd - tokStart < b.length)
+            return false;
+        for (int i = 0; i < b.length; i++)
+            if (buf[tokStart + i] != b[i])
+                return false;
+        return true;
+    }
+
+    // the next n tokens as a single shared string, or null if there aren't n
+    private String restOfLine(int n) {
+        int start = -1;
+        for (int i = 0; i < n; i++) {
+            if (!nextToken())
+                return null;
+            if (start == -1)
+                start = tokStart;
+        }
+        return share(new String(buf, start, tokEnd - start, ASCII));
+    }
+
+    private String share(String s) {
+        String e = shared.get(s);
+        if (e != null)
+            return e;
+        shared.put(s, s);
+        return s;
+    }
+
+    private String flag() {
+        for (int i = 0; i < knownFlagBytes.size(); i++)
+            if (tokenEquals(knownFlagBytes.get(i)))
+                return knownFlags.get(i);
+        return share(new String(buf, tokStart, tokEnd - tokStart, ASCII));
+    }
+
+    private int parseInt() {
+        int v = 0;
+        if (tokStart == tokEnd)
+            return -1;
+        for (int i = tokStart; i < tokEnd; i++) {
+            int d = buf[i] - '0';
+            if (d < 0 || d > 9)
+                return -1;
+            v = v * 10 + d;
+        }
+        return v;
+    }
+
+    private int parseIPv4() {
+        int ip = 0, octet = 0, dots = 0;
+        for (int i = tokStart; i < tokEnd; i++) {
+            byte c = buf[i];
+            if (c == '.') {
+                ip = (ip << 8) | octet;
+                octet = 0;
+                dots++;
+            } else {
+                octet = octet * 10 + (c - '0');
+            }
+        }
+        return dots == 3 ? (ip << 8) | octet : 0;
+    }
+
+    // unpadded base64 token to exactly n bytes (identities 20, microdesc digests 32), null if malformed
+    private byte[] base64Decode(int n) {
+        byte out[] = new byte[n];
+        int acc = 0, bits = 0, o = 0;
+        for (int i = tokStart; i < tokEnd && o < n; i++) {
+            int v = B64[buf[i] & 0xff];
+            if (v < 0) {
+                if (buf[i] == '=')
+                    break;
+                return null;
+            }
+            acc = (acc << 6) | v;
+            bits += 6;
+            if (bits >= 8) {
+                bits -= 8;
+                out[o++] = (byte) (acc >> bits);
+            }
+        }
+        return o == n ? out : null;
+    }
+}
@@ -0,0 +1,216 @@
+/*
+        Tor Research Framework - easy to use tor client library/framework
+        Copyright (C) 2014  Dr Gareth Owen <drgowen@gmail.com>
+        www.ghowen.me / github.com/drgowen/tor-research-framework
+
+        This program is free software: you can redistribute it and/or modify
+        it under the terms of the GNU General Public License as published by
+        the Free Software Foundation, either version 3 of the License, or
+        (at your option) any later version.
+
+        This program is distributed in the hope that it will be useful,
+        but WITHOUT ANY WARRANTY; without even the implied warranty of
+        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+        GNU General Public License for more details.
+
+        You should have received a copy of the GNU General Public License
+        along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package tor;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import tor.util.MiscUtil;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Coalesces single descriptor lookups into batched directory requests.
+ * <p/>
+ * Routers asked for within WINDOW ms of each other are fetched together as /tor/server/d/A+B+C (or fp/ when the
+ * consensus doesn't give a digest), split to respect MAX_BATCH and MAX_PATH, with up to PARALLEL_REQUESTS
+ * requests racing mirrors at once.  Concurrent requests for the same router share one future.
+ */
+public class DescriptorFetcher {
+    final static Logger log = LogManager.getLogger();
+
+    public static long WINDOW = 50;
+    // tor serves at most 96 descriptors per request, and long URLs get refused
+    public static int MAX_BATCH = 96;
+    public static int MAX_PATH = 4000;
+    public static int PARALLEL_REQUESTS = 4;
+
+    // a future completed by the batch that fetches it
+    static class Pending extends FutureTask<ServerDescriptor> {
+        Pending() {
+            super(new Callable<ServerDescriptor>() {
+                @Override
+                public ServerDescriptor call() {
+                    throw new IllegalStateException("completed by DescriptorFetcher");
+                }
+            });
+        }
+
+        void complete(ServerDescriptor d) {
+            set(d);
+        }
+
+        void fail(Throwable t) {
+            setException(t);
+        }
+    }
+
+    private static DescriptorFetcher instance = null;
+
+    private final Object lock = new Object();
+    private final LinkedHashMap<String, Pending> queued = new LinkedHashMap<>(); // guarded by lock
+    private final HashMap<String, Pending> inFlight = new HashMap<>(); // guarded by lock
+    private boolean flushScheduled = false; // guarded by lock
+    private final ScheduledExecutorService timer;
+    private final ExecutorService requests;
+
+    DescriptorFetcher() {
+        ThreadFactory daemon = new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "descriptor-fetch");
+                t.setDaemon(true);
+                return t;
+            }
+        };
+        timer = Executors.newSingleThreadScheduledExecutor(daemon);
+        requests = Executors.newFixedThreadPool(PARALLEL_REQUESTS, daemon);
+    }
+
+    public static synchronized DescriptorFetcher getInstance() {
+        if (instance == null)
+            instance = new DescriptorFetcher();
+        return instance;
+    }
+
+    /**
+     * The router's descriptor - from the DescriptorStore if it has the one the consensus names, otherwise queued
+     * for the next batch
+     */
+    public Future<ServerDescriptor> fetch(OnionRouter r) {
+        byte stored[] = DescriptorStore.getInstance().get(r.descriptorDigest);
+        if (stored != null) {
+            Pending p = new Pending();
+            try {
+                p.complete(ServerDescriptor.parse(stored));
+            } catch (IOException | RuntimeException e) {
+                p.fail(e);
+            }
+            return p;
+        }
+
+        String key = r.descriptorDigest != null ? "d/" + MiscUtil.toHex(r.descriptorDigest) : "fp/" + r.identityhash.toLowerCase();
+        synchronized (lock) {
+            Pending p = inFlight.get(key);
+            if (p == null)
+                p = queued.get(key);
+            if (p != null)
+                return p;
+            p = new Pending();
+            queued.put(key, p);
+            if (!flushScheduled) {
+                flushScheduled = true;
+                timer.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        flush();
+                    }
+                }, WINDOW, TimeUnit.MILLISECONDS);
+            }
+            return p;
+        }
+    }
+
+    /**
+     * As fetch, waiting for the result
+     */
+    public ServerDescriptor get(OnionRouter r) throws IOException {
+        try {
+            return fetch(r).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted fetching descriptor for " + r.identityhash);
+        } catch (ExecutionException e) {
+            Throwable t = e.getCause();
+            if (t instanceof IOException)
+                throw (IOException) t;
+            throw new IOException(t);
+        }
+    }
+
+    // send everything queued during the window
+    private void flush() {
+        ArrayList<String> digests = new ArrayList<>(), fingerprints = new ArrayList<>();
+        synchronized (lock) {
+            for (String k : queued.keySet())
+                (k.startsWith("d/") ? digests : fingerprints).add(k.substring(k.indexOf('/') + 1));
+            inFlight.putAll(queued);
+            queued.clear();
+            flushScheduled = false;
+        }
+        submitBatches("d/", digests);
+        submitBatches("fp/", fingerprints);
+    }
+
+    private void submitBatches(final String type, List<String> ids) {
+        int prefix = "/tor/server/".length() + type.length();
+        int i = 0;
+        while (i < ids.size()) {
+            int end = i, len = prefix;
+            while (end < ids.size() && end - i < MAX_BATCH && (end == i || len + 1 + ids.get(end).length() <= MAX_PATH))
+                len += (end == i ? 0 : 1) + ids.get(end++).length();
+            final List<String> batch = new ArrayList<>(ids.subList(i, end));
+            requests.submit(new Runnable() {
+                @Override
+                public void run() {
+                    request(type, batch);
+                }
+            });
+            i = end;
+        }
+    }
+
+    private void request(String type, List<String> ids) {
+        String path = "/tor/server/" + type + StringUtils.join(ids.toArray(), "+");
+        log.debug("Fetching " + ids.size() + " descriptors");
+        try {
+            List<ServerDescriptor> got;
+            try (InputStream in = Consensus.getConsensus().getDirectoryStream(path)) {
+                got = DescriptorPipeline.parse(in);
+            }
+            DescriptorStore store = DescriptorStore.getInstance();
+            for (ServerDescriptor d : got) {
+                store.put(d.raw);
+                Pending p = take(type + (type.equals("d/") ? d.getDigestHex() : d.fingerprint));
+                if (p != null)
+                    p.complete(d);
+            }
+            for (String id : ids) {
+                Pending p = take(type + id);
+                if (p != null)
+                    p.fail(new IOException("directory didn't return descriptor " + id));
+            }
+        } catch (IOException | RuntimeException e) {
+            for (String id : ids) {
+                Pending p = take(type + id);
+                if (p != null)
+                    p.fail(e);
+            }
+        }
+    }
+
+    private Pending take(String key) {
+        synchronized (lock) {
+            return inFlight.remove(key);
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/*
+        Tor Research Framework - easy to use tor client library/framework
+        Copyright (C) 2014  Dr Gareth Owen <drgowen@gmail.com>
+        www.ghowen.me / github.com/drgowen/tor-research-framework
+
+        This program is free software: you can redistribute it and/or modify
+        it under the terms of the GNU General Public License as published by
+        the Free Software Foundation, either version 3 of the License, or
+        (at your option) any later version.
+
+        This program is distributed in the hope that it will be useful,
+        but WITHOUT ANY WARRANTY; without even the implied warranty of
+        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+        GNU General Public License for more details.
+
+        You should have received a copy of the GNU General Public License
+        along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package tor;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Parses documents of concatenated server descriptors (e.g. /tor/server/all) in parallel.
+ * <p/>
+ * The (inflated) stream is split at "router " line starts as it arrives, and each descriptor's bytes are handed
+ * to a fork-join pool for parsing and key decoding while the download continues.
+ */
+public class DescriptorPipeline {
+    final static Logger log = LogManager.getLogger();
+
+    public static int PARALLELISM = Runtime.getRuntime().availableProcessors();
+
+    private static final byte ROUTER[] = "router ".getBytes(DescriptorStore.ASCII);
+    private static ForkJoinPool pool = null;
+
+    private static synchronized ForkJoinPool getPool() {
+        if (pool == null)
+            pool = new ForkJoinPool(Math.max(PARALLELISM, 1));
+        return pool;
+    }
+
+    /**
+     * Splits and parses a stream of descriptors
+     *
+     * @return parsed descriptors in document order; malformed ones are skipped
+     */
+    public static List<ServerDescriptor> parse(InputStream in) throws IOException {
+        ArrayList<ForkJoinTask<ServerDescriptor>> tasks = new ArrayList<>();
+        byte buf[] = new byte[1 << 16];
+        int len = 0, start = 0, scan = 1; // start of current descriptor, next position to check for a boundary
+
+        while (true) {
+            if (len == buf.length) { // make room - drop what's been handed off, growing if one descriptor fills it
+                if (start > 0) {
+                    System.arraycopy(buf, start, buf, 0, len - start);
+                    len -= start;
+                    scan -= start;
+                    start = 0;
+                } else {
+                    buf = Arrays.copyOf(buf, buf.length * 2);
+                }
+            }
+            int n = in.read(buf, len, buf.length - len);
+            if (n == -1)
+                break;
+            len += n;
+
+            // boundaries need the whole keyword, so stop short of the end
+            for (; scan + ROUTER.length <= len; scan++) {
+                if (buf[scan - 1] == '\n' && startsWith(buf, scan)) {
+                    if (startsWith(buf, start))
+                        tasks.add(submit(Arrays.copyOfRange(buf, start, scan)));
+                    start = scan;
+                }
+            }
+        }
+        if (len - start >= ROUTER.length && startsWith(buf, start))
+            tasks.add(submit(Arrays.copyOfRange(buf, start, len)));
+
+        return join(tasks);
+    }
+
+    /**
+     * Parses descriptors in parallel (e.g. ones read from the DescriptorStore)
+     */
+    public static List<ServerDescriptor> parse(List<byte[]> descs) {
+        ArrayList<ForkJoinTask<ServerDescriptor>> tasks = new ArrayList<>(descs.size());
+        for (byte d[] : descs)
+            tasks.add(submit(d));
+        return join(tasks);
+    }
+
+    private static ForkJoinTask<ServerDescriptor> submit(final byte desc[]) {
+        return getPool().submit(new Callable<ServerDescriptor>() {
+            @Override
+            public ServerDescriptor call() {
+                try {
+                    return ServerDescriptor.parse(desc);
+                } catch (IOException | RuntimeException e) {
+                    log.debug("Skipping malformed descriptor: " + e);
+                    return null;
+                }
+            }
+        });
+    }
+
+    private static List<ServerDescriptor> join(List<ForkJoinTask<ServerDescriptor>> tasks) {
+        ArrayList<ServerDescriptor> out = new ArrayList<>(tasks.size());
+        for (ForkJoinTask<ServerDescriptor> t : tasks) {
+            ServerDescriptor d = t.join();
+            if (d != null)
+                out.add(d);
+        }
+        return out;
+    }
+
+    private static boolean startsWith(byte buf[], int pos) {
+        for (int i = 0; i < ROUTER.length; i++)
+            if (buf[pos + i] != ROUTER[i])
+                return false;
+        return true;
+    }
+}
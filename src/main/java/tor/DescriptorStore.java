@@ -0,0 +1,493 @@
+/*
+        Tor Research Framework - easy to use tor client library/framework
+        Copyright (C) 2014  Dr Gareth Owen <drgowen@gmail.com>
+        www.ghowen.me / github.com/drgowen/tor-research-framework
+
+        This program is free software: you can redistribute it and/or modify
+        it under the terms of the GNU General Public License as published by
+        the Free Software Foundation, either version 3 of the License, or
+        (at your option) any later version.
+
+        This program is distributed in the hope that it will be useful,
+        but WITHOUT ANY WARRANTY; without even the implied warranty of
+        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+        GNU General Public License for more details.
+
+        You should have received a copy of the GNU General Public License
+        along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package tor;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import tor.util.MiscUtil;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Server descriptors keyed by descriptor digest (the SHA-1 named on consensus r lines), kept on disk across runs.
+ * <p/>
+ * Descriptors are appended to a log (digest[20], u32 length, descriptor bytes), read back with positional reads.
+ * An index file of (digest[20], u64 offset, u32 length) entries is appended alongside, so opening the store
+ * doesn't read the log - only a tail the index missed (e.g. after a crash) is scanned.  Descriptors that are no
+ * longer in the consensus are dropped by expire(), which rewrites both files once enough of the log is dead.
+ * <p/>
+ * The log starts with a marker record (zero digest, 8 bytes) holding a random generation, repeated in a
+ * zero-digest first entry of the index.  An index from another generation (e.g. after a crash part way through
+ * swapping in compacted files) is discarded and rebuilt from the log.  Descriptors are checked against their
+ * digest when read, too.
+ * <p/>
+ * Both files are kept open once used.  Each put is flushed, except between beginBulk() and endBulk().
+ */
+public class DescriptorStore {
+    final static Logger log = LogManager.getLogger();
+    final static Charset ASCII = Charset.forName("ISO-8859-1");
+
+    public static String LOG_FILE = "cached-descriptors.log";
+    public static String INDEX_FILE = "cached-descriptors.idx";
+    // compact once this fraction of the log is descriptors that have left the consensus
+    public static double COMPACT_DEAD_FRACTION = 0.5;
+
+    static final int RECORD_HEADER = 24;
+    static final int INDEX_ENTRY = 32;
+    // generation marker at the start of the log
+    static final int MARKER = RECORD_HEADER + 8;
+
+    private static final byte ROUTER[] = "router ".getBytes(ASCII);
+    private static final byte ROUTER_SIGNATURE[] = "\nrouter-signature\n".getBytes(ASCII);
+
+    private static class Entry {
+        final long offset; // of the descriptor bytes
+        final int length;
+
+        Entry(long offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private static DescriptorStore instance = null;
+
+    private final File logFile, indexFile;
+    private final HashMap<String, Entry> entries = new HashMap<>(); // hex digest ->
+    private long logLength = 0;
+    private FileChannel reader = null;
+    private DataOutputStream logOut = null, indexOut = null;
+    private boolean logDirty = false;
+    private int bulk = 0;
+    private boolean warnedUnwritable = false;
+
+    DescriptorStore(File logFile, File indexFile) {
+        this.logFile = logFile;
+        this.indexFile = indexFile;
+    }
+
+    /**
+     * The shared store, opened on first use
+     */
+    public static synchronized DescriptorStore getInstance() {
+        if (instance == null) {
+            instance = new DescriptorStore(new File(LOG_FILE), new File(INDEX_FILE));
+            try {
+                instance.open();
+            } catch (IOException e) {
+                log.warn("Ignoring unreadable descriptor store: " + e);
+                instance.entries.clear();
+                instance.logLength = 0;
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Opens a separate store, e.g. for archived descriptors
+     *
+     * @param logFile   Descriptor log, created on first put
+     * @param indexFile Its index
+     */
+    public static DescriptorStore open(File logFile, File indexFile) throws IOException {
+        DescriptorStore s = new DescriptorStore(logFile, indexFile);
+        s.open();
+        return s;
+    }
+
+    /**
+     * Whether there's a store on disk (so it's worth expiring)
+     */
+    public static boolean exists() {
+        return new File(LOG_FILE).exists();
+    }
+
+    private synchronized void open() throws IOException {
+        if (!logFile.exists())
+            return;
+        long fileLength = logFile.length();
+
+        // the log's generation, 0 for a log from before there were markers
+        long generation = 0, first = 0;
+        try (RandomAccessFile raf = new RandomAccessFile(logFile, "r")) {
+            if (fileLength >= MARKER) {
+                byte d[] = new byte[20];
+                raf.readFully(d);
+                if (isZero(d) && raf.readInt() == 8) {
+                    generation = raf.readLong();
+                    first = MARKER;
+                }
+            }
+        }
+
+        // the index, ignoring anything pointing past the log
+        long indexed = 0;
+        boolean rebuild = false;
+        if (indexFile.exists() || generation != 0) {
+            long indexGeneration = 0;
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+                byte d[] = new byte[20];
+                for (long n = indexFile.length() / INDEX_ENTRY; n > 0; n--) {
+                    in.readFully(d);
+                    long off = in.readLong();
+                    int len = in.readInt();
+                    if (isZero(d)) {
+                        indexGeneration = off;
+                        continue;
+                    }
+                    if (off < first + RECORD_HEADER || len < 0 || off + len > fileLength)
+                        continue;
+                    entries.put(MiscUtil.toHex(d), new Entry(off, len));
+                    indexed = Math.max(indexed, off + len);
+                }
+            } catch (FileNotFoundException e) {
+                // rebuilt below
+            }
+            if (indexGeneration != generation) {
+                if (indexFile.exists())
+                    log.warn("Descriptor store index doesn't belong to the log - rebuilding it");
+                entries.clear();
+                indexed = 0;
+                rebuild = true;
+            }
+        }
+
+        // scan whatever the index missed, dropping a partly written record at the end
+        ArrayList<String> recovered = new ArrayList<>();
+        long pos = Math.max(indexed, first);
+        try (RandomAccessFile raf = new RandomAccessFile(logFile, "r")) {
+            byte d[] = new byte[20];
+            while (pos + RECORD_HEADER <= fileLength) {
+                raf.seek(pos);
+                raf.readFully(d);
+                int len = raf.readInt();
+                if (len < 0 || pos + RECORD_HEADER + len > fileLength)
+                    break;
+                String k = MiscUtil.toHex(d);
+                entries.put(k, new Entry(pos + RECORD_HEADER, len));
+                recovered.add(k);
+                pos += RECORD_HEADER + len;
+            }
+        }
+        logLength = pos;
+        if (pos < fileLength) {
+            log.warn("Truncating " + (fileLength - pos) + " bytes of incomplete descriptor log");
+            try (RandomAccessFile raf = new RandomAccessFile(logFile, "rw")) {
+                raf.setLength(pos);
+            }
+        }
+        if (!recovered.isEmpty() || rebuild) {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile, !rebuild)))) {
+                if (rebuild)
+                    writeIndexHeader(out, generation);
+                for (String k : recovered)
+                    writeIndexEntry(out, k, entries.get(k));
+            }
+        }
+        log.info("Descriptor store has " + entries.size() + " descriptors");
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized boolean contains(byte digest[]) {
+        return digest != null && entries.containsKey(MiscUtil.toHex(digest));
+    }
+
+    /**
+     * @return the descriptor with this digest, or null if we don't have it
+     */
+    public synchronized byte[] get(byte digest[]) {
+        if (digest == null)
+            return null;
+        Entry e = entries.get(MiscUtil.toHex(digest));
+        if (e == null)
+            return null;
+        try {
+            if (logDirty) {
+                logOut.flush();
+                logDirty = false;
+            }
+            if (reader == null)
+                reader = new RandomAccessFile(logFile, "r").getChannel();
+            ByteBuffer b = ByteBuffer.allocate(e.length);
+            while (b.hasRemaining())
+                if (reader.read(b, e.offset + b.position()) < 0)
+                    throw new EOFException("descriptor past end of log");
+            // callers trust what we return, so make sure it's what was asked for
+            if (!Arrays.equals(digest(b.array(), 0, e.length), digest)) {
+                log.warn("Dropping descriptor store entry that doesn't match its digest");
+                entries.remove(MiscUtil.toHex(digest));
+                return null;
+            }
+            return b.array();
+        } catch (IOException ex) {
+            log.warn("Can't read descriptor store: " + ex);
+            return null;
+        }
+    }
+
+    /**
+     * Stores a descriptor under its digest, unless it's already there
+     *
+     * @param desc A single server descriptor, including its signature
+     * @return its digest, or null if it isn't a well formed descriptor or couldn't be written
+     */
+    public synchronized byte[] put(byte desc[]) {
+        byte digest[] = digest(desc, 0, desc.length);
+        if (digest == null)
+            return null;
+        String k = MiscUtil.toHex(digest);
+        if (entries.containsKey(k))
+            return digest;
+
+        Entry e;
+        try {
+            openWriters();
+            e = new Entry(logLength + RECORD_HEADER, desc.length);
+            logOut.write(digest);
+            logOut.writeInt(desc.length);
+            logOut.write(desc);
+            logDirty = true;
+            // an index entry flushed ahead of its record is ignored by open(), which rescans the tail instead
+            writeIndexEntry(indexOut, k, e);
+            if (bulk == 0)
+                flush();
+        } catch (IOException ex) {
+            if (!warnedUnwritable)
+                log.warn("Couldn't write descriptor store: " + ex);
+            warnedUnwritable = true;
+            closeFiles();
+            return null;
+        }
+        logLength += RECORD_HEADER + desc.length;
+        entries.put(k, e);
+        return digest;
+    }
+
+    /**
+     * Leaves puts buffered until the matching endBulk(), for ingesting many descriptors at once
+     */
+    public synchronized void beginBulk() {
+        bulk++;
+    }
+
+    public synchronized void endBulk() {
+        if (bulk > 0 && --bulk == 0) {
+            try {
+                flush();
+            } catch (IOException ex) {
+                log.warn("Couldn't write descriptor store: " + ex);
+            }
+        }
+    }
+
+    /**
+     * Closes the store's files; they're reopened if it's used again
+     */
+    public synchronized void close() {
+        try {
+            flush();
+        } catch (IOException ex) {
+            log.warn("Couldn't write descriptor store: " + ex);
+        }
+        closeFiles();
+    }
+
+    private void openWriters() throws IOException {
+        if (logOut != null)
+            return;
+        // the files' own directory, which needn't be the working directory
+        File parent = logFile.getAbsoluteFile().getParentFile();
+        if (logFile.exists() ? !logFile.canWrite() : parent == null || !parent.canWrite())
+            throw new IOException(logFile + " isn't writable");
+        boolean fresh = logLength == 0;
+        if (!fresh && logFile.length() != logLength) { // e.g. left over from a failed write
+            try (RandomAccessFile raf = new RandomAccessFile(logFile, "rw")) {
+                raf.setLength(logLength);
+            }
+        }
+        logOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(logFile, !fresh), 65536));
+        indexOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile, !fresh)));
+        if (fresh) {
+            long generation = newGeneration();
+            writeMarker(logOut, generation);
+            writeIndexHeader(indexOut, generation);
+            logLength = MARKER;
+        }
+    }
+
+    private void flush() throws IOException {
+        if (logOut == null)
+            return;
+        logOut.flush(); // before the index, so the index doesn't get ahead of the log
+        logDirty = false;
+        indexOut.flush();
+    }
+
+    private void closeFiles() {
+        IOUtils.closeQuietly(logOut);
+        IOUtils.closeQuietly(indexOut);
+        if (reader != null) {
+            try {
+                reader.close();
+            } catch (IOException ignored) {
+            }
+        }
+        logOut = indexOut = null;
+        reader = null;
+        logDirty = false;
+    }
+
+    /**
+     * Drops descriptors no longer referenced by the consensus, compacting the files once COMPACT_DEAD_FRACTION
+     * of the log is dead
+     *
+     * @param routers The current routers
+     */
+    public synchronized void expire(Collection<OnionRouter> routers) {
+        HashSet<String> live = new HashSet<>();
+        for (OnionRouter r : routers)
+            if (r.descriptorDigest != null)
+                live.add(MiscUtil.toHex(r.descriptorDigest));
+        if (live.isEmpty()) // e.g. a microdesc consensus - nothing to judge by
+            return;
+
+        long dead = 0;
+        for (Map.Entry<String, Entry> e : entries.entrySet())
+            if (!live.contains(e.getKey()))
+                dead += RECORD_HEADER + e.getValue().length;
+        if (dead == 0 || dead < COMPACT_DEAD_FRACTION * logLength)
+            return;
+
+        File logTmp = new File(logFile.getPath() + ".tmp"), indexTmp = new File(indexFile.getPath() + ".tmp");
+        HashMap<String, Entry> kept = new HashMap<>();
+        long pos = MARKER;
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(logTmp)));
+                 DataOutputStream idx = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexTmp)))) {
+                long generation = newGeneration();
+                writeMarker(out, generation);
+                writeIndexHeader(idx, generation);
+                for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                    if (!live.contains(e.getKey()))
+                        continue;
+                    byte desc[] = get(MiscUtil.fromHex(e.getKey()));
+                    if (desc == null)
+                        continue;
+                    out.write(MiscUtil.fromHex(e.getKey()));
+                    out.writeInt(desc.length);
+                    out.write(desc);
+                    Entry ne = new Entry(pos + RECORD_HEADER, desc.length);
+                    writeIndexEntry(idx, e.getKey(), ne);
+                    kept.put(e.getKey(), ne);
+                    pos += RECORD_HEADER + desc.length;
+                }
+            }
+            closeFiles();
+            // if we stop between the renames, the generations differ and open() rebuilds the index from the log
+            if (!(indexFile.delete() || !indexFile.exists()) || !indexTmp.renameTo(indexFile)
+                    || !(logFile.delete() || !logFile.exists()) || !logTmp.renameTo(logFile))
+                throw new IOException("can't replace descriptor store files");
+        } catch (IOException ex) {
+            log.warn("Descriptor store compaction failed: " + ex);
+            return;
+        }
+        log.info("Descriptor store compacted: dropped " + (entries.size() - kept.size()) + " expired descriptors");
+        entries.clear();
+        entries.putAll(kept);
+        logLength = pos;
+    }
+
+    private static void writeMarker(DataOutputStream out, long generation) throws IOException {
+        out.write(new byte[20]);
+        out.writeInt(8);
+        out.writeLong(generation);
+    }
+
+    private static void writeIndexHeader(DataOutputStream out, long generation) throws IOException {
+        out.write(new byte[20]);
+        out.writeLong(generation);
+        out.writeInt(0);
+    }
+
+    private static long newGeneration() {
+        long g;
+        do {
+            g = new Random().nextLong();
+        } while (g == 0);
+        return g;
+    }
+
+    private static boolean isZero(byte b[]) {
+        for (byte x : b)
+            if (x != 0)
+                return false;
+        return true;
+    }
+
+    private static void writeIndexEntry(DataOutputStream out, String hexDigest, Entry e) throws IOException {
+        out.write(MiscUtil.fromHex(hexDigest));
+        out.writeLong(e.offset);
+        out.writeInt(e.length);
+    }
+
+    /**
+     * The descriptor digest: SHA-1 from "router " through the newline after "router-signature"
+     *
+     * @return null if the slice isn't a descriptor
+     */
+    public static byte[] digest(byte doc[], int start, int end) {
+        if (!matches(doc, start, end, ROUTER))
+            return null;
+        int sigEnd = -1;
+        for (int i = start; i + ROUTER_SIGNATURE.length <= end; i++) {
+            if (matches(doc, i, end, ROUTER_SIGNATURE)) {
+                sigEnd = i + ROUTER_SIGNATURE.length;
+                break;
+            }
+        }
+        if (sigEnd < 0)
+            return null;
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            sha1.update(doc, start, sigEnd - start);
+            return sha1.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static boolean matches(byte doc[], int pos, int end, byte s[]) {
+        if (pos + s.length > end)
+            return false;
+        for (int i = 0; i < s.length; i++)
+            if (doc[pos + i] != s[i])
+                return false;
+        return true;
+    }
+}
@@ -0,0 +1,233 @@
+/*
+        Tor Research Framework - easy to use tor client library/framework
+        Copyright (C) 2014  Dr Gareth Owen <drgowen@gmail.com>
+        www.ghowen.me / github.com/drgowen/tor-research-framework
+
+        This program is free software: you can redistribute it and/or modify
+        it under the terms of the GNU General Public License as published by
+        the Free Software Foundation, either version 3 of the License, or
+        (at your option) any later version.
+
+        This program is distributed in the hope that it will be useful,
+        but WITHOUT ANY WARRANTY; without even the implied warranty of
+        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+        GNU General Public License for more details.
+
+        You should have received a copy of the GNU General Public License
+        along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package tor;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Fetches directory documents by racing several mirrors.
+ * <p/>
+ * Requests start RACE_WIDTH mirrors, staggered by STAGGER ms, and the first to answer 200 wins - the others are
+ * dropped.  Requests go through DirectoryHttpClient, so they reuse pooled connections.  A failure starts the next
+ * mirror straight away.  Each mirror's time to first byte and success rate are tracked as EWMAs and used to rank
+ * mirrors for later requests.
+ */
+public class DirectoryFetcher {
+    final static Logger log = LogManager.getLogger();
+
+    public static int RACE_WIDTH = 3;
+    public static long STAGGER = 500;
+    public static int CONNECT_TIMEOUT = 5000;
+    public static int READ_TIMEOUT = 30000;
+    // weight of the newest sample in the EWMAs
+    public static double EWMA_ALPHA = 0.3;
+
+    /**
+     * A directory server
+     */
+    public static class Mirror {
+        final String name, address;
+        final int port;
+
+        public Mirror(String name, String address, int port) {
+            this.name = name;
+            this.address = address;
+            this.port = port;
+        }
+
+        String key() {
+            return address + ":" + port;
+        }
+
+        @Override
+        public String toString() {
+            return name + " (" + key() + ")";
+        }
+    }
+
+    static class MirrorStats {
+        double latency = 1000; // ms to first byte - prior for unknown mirrors
+        double success = 0.75;
+
+        synchronized void update(boolean ok, long ms) {
+            success = EWMA_ALPHA * (ok ? 1 : 0) + (1 - EWMA_ALPHA) * success;
+            if (ok)
+                latency = EWMA_ALPHA * ms + (1 - EWMA_ALPHA) * latency;
+        }
+
+        // expected cost of using the mirror - lower is better
+        synchronized double score() {
+            return latency / Math.max(success, 0.05);
+        }
+    }
+
+    private static final ConcurrentHashMap<String, MirrorStats> stats = new ConcurrentHashMap<>();
+
+    private static final ExecutorService pool = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "directory-fetch");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    static MirrorStats getStats(Mirror m) {
+        MirrorStats s = stats.get(m.key());
+        if (s == null) {
+            s = new MirrorStats();
+            MirrorStats prev = stats.putIfAbsent(m.key(), s);
+            if (prev != null)
+                s = prev;
+        }
+        return s;
+    }
+
+    /**
+     * Orders mirrors best first by their history.  Unknown mirrors rank by the prior, in random order, so new
+     * mirrors get tried.
+     */
+    public static List<Mirror> rank(Collection<Mirror> mirrors) {
+        ArrayList<Mirror> l = new ArrayList<>(mirrors);
+        Collections.shuffle(l, TorCrypto.rnd);
+        final HashMap<Mirror, Double> score = new HashMap<>();
+        for (Mirror m : l)
+            score.put(m, getStats(m).score());
+        Collections.sort(l, new Comparator<Mirror>() {
+            @Override
+            public int compare(Mirror a, Mirror b) {
+                return Double.compare(score.get(a), score.get(b));
+            }
+        });
+        return l;
+    }
+
+    static class Attempt implements Callable<Attempt> {
+        final Mirror mirror;
+        final String path;
+        final Map<String, String> headers;
+        final AtomicBoolean done;
+        volatile DirectoryHttpClient.Body in;
+        IOException error;
+        private boolean abandoned = false; // guarded by this
+
+        Attempt(Mirror mirror, String path, Map<String, String> headers, AtomicBoolean done) {
+            this.mirror = mirror;
+            this.path = path;
+            this.headers = headers;
+            this.done = done;
+        }
+
+        @Override
+        public Attempt call() {
+            long start = System.currentTimeMillis();
+            try {
+                DirectoryHttpClient.Body b = DirectoryHttpClient.get(mirror, path, headers);
+                getStats(mirror).update(true, System.currentTimeMillis() - start);
+                synchronized (this) {
+                    in = b;
+                    if (abandoned) // lost the race
+                        b.close();
+                }
+            } catch (IOException e) {
+                error = e;
+                if (!done.get()) // don't blame mirrors we abandoned
+                    getStats(mirror).update(false, 0);
+            }
+            return this;
+        }
+
+        // called once the race is over for every attempt but the winner - drops its response now or when it comes
+        synchronized void abandon() {
+            abandoned = true;
+            if (in != null)
+                in.close(); // drops the connection unless the body was already read to the end
+        }
+    }
+
+    /**
+     * Fetches a document from whichever mirror answers first
+     *
+     * @param mirrors     Candidates, best first (see rank)
+     * @param path        Path, e.g. /tor/status-vote/current/consensus (compression is negotiated, so no .z)
+     * @param headers     Extra request headers, or null
+     * @param maxAttempts Most mirrors to try in total
+     * @return the decoded response body
+     * @throws IOException if every attempt failed
+     */
+    public static InputStream fetch(List<Mirror> mirrors, String path, Map<String, String> headers, int maxAttempts) throws IOException {
+        int limit = Math.min(mirrors.size(), maxAttempts);
+        if (limit == 0)
+            throw new IOException("no directory mirrors to try");
+
+        AtomicBoolean done = new AtomicBoolean(false);
+        CompletionService<Attempt> cs = new ExecutorCompletionService<>(pool);
+        ArrayList<Attempt> running = new ArrayList<>();
+        int launched = 0, pending = 0;
+        IOException last = null;
+        Attempt winner = null;
+
+        try {
+            while (true) {
+                // start another racer if we're under the width, or if nothing is left running
+                if (launched < limit && (pending == 0 || pending < RACE_WIDTH)) {
+                    Attempt a = new Attempt(mirrors.get(launched++), path, headers, done);
+                    log.debug("Requesting " + path + " from " + a.mirror);
+                    running.add(a);
+                    cs.submit(a);
+                    pending++;
+                }
+                if (pending == 0)
+                    throw last != null ? last : new IOException("no directory mirrors answered");
+
+                Future<Attempt> f = launched < limit && pending < RACE_WIDTH ? cs.poll(STAGGER, TimeUnit.MILLISECONDS) : cs.take();
+                if (f == null)
+                    continue; // stagger elapsed - start the next one
+                pending--;
+
+                Attempt a = f.get();
+                if (a.in != null && done.compareAndSet(false, true)) {
+                    log.debug("Got " + path + " from " + a.mirror);
+                    winner = a;
+                    return a.in;
+                }
+                last = a.error != null ? a.error : last;
+                log.warn("Failed to get " + path + " from " + a.mirror + ": " + a.error);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted fetching " + path);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        } finally {
+            // abandon the losers, so their connections are closed - finished ones now, others when they finish
+            done.set(true);
+            for (Attempt a : running)
+                if (a != winner)
+                    a.abandon();
+        }
+    }
+}
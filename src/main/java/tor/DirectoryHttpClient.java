@@ -0,0 +1,268 @@
+/*
+        Tor Research Framework - easy to use tor client library/framework
+        Copyright (C) 2014  Dr Gareth Owen <drgowen@gmail.com>
+        www.ghowen.me / github.com/drgowen/tor-research-framework
+
+        This program is free software: you can redistribute it and/or modify
+        it under the terms of the GNU General Public License as published by
+        the Free Software Foundation, either version 3 of the License, or
+        (at your option) any later version.
+
+        This program is distributed in the hope that it will be useful,
+        but WITHOUT ANY WARRANTY; without even the implied warranty of
+        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+        GNU General Public License for more details.
+
+        You should have received a copy of the GNU General Public License
+        along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package tor;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import tor.util.HTTPResponse;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.*;
+
+/**
+ * HTTP/1.1 client for fetching directly from directory mirrors (not over tor).
+ * <p/>
+ * Connections that the mirror keeps alive go back to a per-mirror pool when their response has been read, so
+ * later consensus and descriptor fetches skip the TCP handshake.  Once a mirror has kept a connection alive,
+ * batches to it are pipelined.  Compression is negotiated with Accept-Encoding and bodies are inflated as they
+ * are read.  Connect and read timeouts are DirectoryFetcher's.
+ */
+public class DirectoryHttpClient {
+    final static Logger log = LogManager.getLogger();
+
+    public static int MAX_IDLE_PER_MIRROR = 2;
+    public static long IDLE_TIMEOUT = 30 * 1000;
+
+    static class Conn {
+        final String key;
+        final Socket sock;
+        final BufferedInputStream in;
+        final OutputStream out;
+        boolean reused = false;
+        long idleSince;
+
+        Conn(DirectoryFetcher.Mirror m) throws IOException {
+            key = m.key();
+            sock = new Socket();
+            try {
+                sock.connect(new InetSocketAddress(m.address, m.port), DirectoryFetcher.CONNECT_TIMEOUT);
+                sock.setSoTimeout(DirectoryFetcher.READ_TIMEOUT);
+                sock.setTcpNoDelay(true);
+                in = new BufferedInputStream(sock.getInputStream(), 65536);
+                out = new BufferedOutputStream(sock.getOutputStream());
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        void close() {
+            try {
+                sock.close();
+            } catch (IOException e) {
+                log.trace("closing directory connection: " + e);
+            }
+        }
+    }
+
+    private static final HashMap<String, ArrayDeque<Conn>> idle = new HashMap<>(); // guarded by itself
+    private static final Set<String> keepsAlive = Collections.synchronizedSet(new HashSet<String>());
+
+    // a pooled connection if there's a live one, otherwise a new connection
+    static Conn take(DirectoryFetcher.Mirror m) throws IOException {
+        long now = System.currentTimeMillis();
+        synchronized (idle) {
+            ArrayDeque<Conn> q = idle.get(m.key());
+            Conn c;
+            while (q != null && (c = q.pollLast()) != null) {
+                if (now - c.idleSince < IDLE_TIMEOUT && !c.sock.isClosed()) {
+                    c.reused = true;
+                    return c;
+                }
+                c.close();
+            }
+        }
+        return new Conn(m);
+    }
+
+    static void release(Conn c) {
+        c.idleSince = System.currentTimeMillis();
+        synchronized (idle) {
+            ArrayDeque<Conn> q = idle.get(c.key);
+            if (q == null)
+                idle.put(c.key, q = new ArrayDeque<>());
+            q.addLast(c);
+            while (q.size() > MAX_IDLE_PER_MIRROR)
+                q.pollFirst().close();
+        }
+    }
+
+    /**
+     * Body of a response on a pooled connection.  Reading it to the end returns the connection to the pool (if the
+     * mirror keeps it alive); closing it early, or abort(), drops the connection.
+     */
+    public static class Body extends FilterInputStream {
+        final Conn conn;
+        final HTTPResponse resp;
+        boolean done = false;
+
+        Body(Conn conn, HTTPResponse resp) {
+            super(resp.getBody());
+            this.conn = conn;
+            this.resp = resp;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int c = in.read();
+            if (c == -1)
+                finish();
+            return c;
+        }
+
+        @Override
+        public int read(byte b[], int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n == -1)
+                finish();
+            return n;
+        }
+
+        private void finish() throws IOException {
+            if (done)
+                return;
+            done = true;
+            resp.discardRest();
+            if (resp.isKeepAlive()) {
+                keepsAlive.add(conn.key);
+                release(conn);
+            } else {
+                conn.close();
+            }
+        }
+
+        public void abort() {
+            done = true;
+            conn.close();
+        }
+
+        @Override
+        public void close() {
+            if (!done)
+                abort();
+        }
+    }
+
+    /**
+     * Sends a GET and reads the response headers
+     *
+     * @param path    Request path, without .z - compression is negotiated
+     * @param headers Extra request headers, or null
+     * @return the decoded body
+     * @throws IOException on connection failure or a non-200 response
+     */
+    public static Body get(DirectoryFetcher.Mirror m, String path, Map<String, String> headers) throws IOException {
+        for (int attempt = 0; ; attempt++) {
+            Conn c = take(m);
+            HTTPResponse r;
+            try {
+                c.out.write(buildRequest(m, path, headers));
+                c.out.flush();
+                r = HTTPResponse.read(c.in);
+            } catch (IOException e) {
+                c.close();
+                if (c.reused && attempt == 0)
+                    continue; // pooled connection went stale - retry on a fresh one
+                throw e;
+            }
+            if (r == null) {
+                c.close();
+                if (c.reused && attempt == 0)
+                    continue;
+                throw new IOException("connection closed before response");
+            }
+            if (r.status != 200) {
+                c.close();
+                throw new IOException("HTTP " + r.status);
+            }
+            return new Body(c, r);
+        }
+    }
+
+    /**
+     * Fetches several documents from one mirror, pipelined once the mirror has shown it keeps connections alive
+     *
+     * @param paths Request paths, without .z
+     * @return bodies in request order
+     * @throws IOException if any request fails
+     */
+    public static List<byte[]> getAll(DirectoryFetcher.Mirror m, List<String> paths) throws IOException {
+        ArrayList<byte[]> out = new ArrayList<>(paths.size());
+        Conn c = take(m);
+        boolean retried = false;
+        try {
+            while (out.size() < paths.size()) {
+                int first = out.size();
+                int n = keepsAlive.contains(m.key()) ? paths.size() - first : 1;
+                for (int i = first; i < first + n; i++)
+                    c.out.write(buildRequest(m, paths.get(i), null));
+                c.out.flush();
+
+                boolean reconnect = false;
+                for (int i = 0; i < n; i++) {
+                    HTTPResponse r = HTTPResponse.read(c.in);
+                    if (r == null) { // closed on us - the rest go on a new connection
+                        if (out.size() == first && (!c.reused || retried))
+                            throw new IOException("connection closed before response");
+                        retried |= out.size() == first;
+                        keepsAlive.remove(m.key());
+                        reconnect = true;
+                        break;
+                    }
+                    if (r.status != 200)
+                        throw new IOException("HTTP " + r.status + " for " + paths.get(first + i));
+                    out.add(r.readBody());
+                    if (r.isKeepAlive()) {
+                        keepsAlive.add(m.key());
+                    } else {
+                        reconnect = true;
+                        break;
+                    }
+                }
+                if (reconnect && out.size() < paths.size()) {
+                    c.close();
+                    c = new Conn(m);
+                }
+            }
+        } catch (IOException e) {
+            c.close();
+            throw e;
+        }
+        if (keepsAlive.contains(m.key()))
+            release(c);
+        else
+            c.close();
+        return out;
+    }
+
+    private static byte[] buildRequest(DirectoryFetcher.Mirror m, String path, Map<String, String> headers) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append("GET ").append(path).append(" HTTP/1.1\r\n");
+        sb.append("Host: ").append(m.address).append(':').append(m.port).append("\r\n");
+        sb.append("Accept-Encoding: deflate, identity\r\n");
+        sb.append("Connection: keep-alive\r\n");
+        if (headers != null)
+            for (Map.Entry<String, String> h : headers.entrySet())
+                sb.append(h.getKey()).append(": ").append(h.getValue()).append("\r\n");
+        sb.append("\r\n");
+        return sb.toString().getBytes("ISO-8859-1");
+    }
+}
@@ -0,0 +1,205 @@
+/*
+        Tor Research Framework - easy to use tor client library/framework
+        Copyright (C) 2014  Dr Gareth Owen <drgowen@gmail.com>
+        www.ghowen.me / github.com/drgowen/tor-research-framework
+
+        This program is free software: you can redistribute it and/or modify
+        it under the terms of the GNU General Public License as published by
+        the Free Software Foundation, either version 3 of the License, or
+        (at your option) any later version.
+
+        This program is distributed in the hope that it will be useful,
+        but WITHOUT ANY WARRANTY; without even the implied warranty of
+        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+        GNU General Public License for more details.
+
+        You should have received a copy of the GNU General Public License
+        along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package tor;
+
+import java.util.Arrays;
+
+/**
+ * An exit policy compiled for allocation-free matching.
+ * <p/>
+ * Either a consensus port summary ("p" line) - sorted port ranges that apply to "most addresses" - or the
+ * ordered accept/reject rules of a router descriptor, held as parallel arrays of address/mask and port range.
+ */
+public class ExitPolicy {
+    public static final ExitPolicy REJECT_ALL = new ExitPolicy(true, new int[0], new int[0]);
+
+    final boolean accept; // summary: whether the listed ports are accepted (others rejected) or vice versa
+    final int lo[], hi[]; // port ranges, inclusive; sorted for summaries, rule order for descriptors
+
+    // descriptor rules only (null for summaries)
+    final boolean ruleAccept[];
+    final int addr[], mask[];
+
+    ExitPolicy(boolean accept, int lo[], int hi[]) {
+        this.accept = accept;
+        this.lo = lo;
+        this.hi = hi;
+        ruleAccept = null;
+        addr = mask = null;
+    }
+
+    ExitPolicy(boolean ruleAccept[], int addr[], int mask[], int lo[], int hi[]) {
+        this.accept = false;
+        this.ruleAccept = ruleAccept;
+        this.addr = addr;
+        this.mask = mask;
+        this.lo = lo;
+        this.hi = hi;
+    }
+
+    /**
+     * @param summary "accept" / "reject" SP PortList, e.g. "accept 80,443,6660-6669".  Null means nothing is
+     *                accepted.
+     * @return the compiled summary (REJECT_ALL if it can't be parsed)
+     */
+    public static ExitPolicy fromSummary(String summary) {
+        if (summary == null)
+            return REJECT_ALL;
+        String sp[] = summary.split(" ");
+        if (sp.length < 2 || !(sp[0].equals("accept") || sp[0].equals("reject")))
+            return REJECT_ALL;
+
+        String items[] = sp[1].split(",");
+        long ranges[] = new long[items.length]; // lo << 32 | hi, so they sort by lo
+        try {
+            for (int i = 0; i < items.length; i++) {
+                int dash = items[i].indexOf('-');
+                int l = Integer.parseInt(dash < 0 ? items[i] : items[i].substring(0, dash));
+                int h = dash < 0 ? l : Integer.parseInt(items[i].substring(dash + 1));
+                ranges[i] = ((long) l << 32) | h;
+            }
+        } catch (NumberFormatException e) {
+            return REJECT_ALL;
+        }
+        Arrays.sort(ranges);
+
+        int lo[] = new int[ranges.length], hi[] = new int[ranges.length];
+        for (int i = 0; i < ranges.length; i++) {
+            lo[i] = (int) (ranges[i] >>> 32);
+            hi[i] = (int) ranges[i];
+        }
+        return new ExitPolicy(sp[0].equals("accept"), lo, hi);
+    }
+
+    /**
+     * Compiles descriptor policy lines, in order
+     *
+     * @param rules ("accept" / "reject") SP Address ":" PortSpec, e.g. "reject 10.0.0.0/8:*" or "accept *:80-81".
+     *              IPv6 rules ("*6", "[...]") are skipped as they never match an IPv4 address.
+     * @return the compiled policy
+     * @throws IllegalArgumentException for a malformed rule
+     */
+    public static ExitPolicy fromDescriptor(String rules[]) {
+        int n = rules.length;
+        boolean acc[] = new boolean[n];
+        int addr[] = new int[n], mask[] = new int[n], lo[] = new int[n], hi[] = new int[n];
+        int r = 0;
+        for (String rule : rules) {
+            String sp[] = rule.trim().split(" +");
+            if (sp.length < 2 || !(sp[0].equals("accept") || sp[0].equals("reject")))
+                throw new IllegalArgumentException("bad exit policy rule: " + rule);
+            int colon = sp[1].lastIndexOf(':');
+            if (colon < 0)
+                throw new IllegalArgumentException("bad exit policy rule: " + rule);
+            String a = sp[1].substring(0, colon), ports = sp[1].substring(colon + 1);
+            if (a.equals("*6") || a.startsWith("["))
+                continue;
+
+            try {
+                if (a.equals("*") || a.equals("*4")) {
+                    addr[r] = 0;
+                    mask[r] = 0;
+                } else {
+                    int slash = a.indexOf('/');
+                    addr[r] = parseIPv4(slash < 0 ? a : a.substring(0, slash));
+                    if (slash < 0)
+                        mask[r] = -1;
+                    else if (a.indexOf('.', slash) > 0) // dotted mask
+                        mask[r] = parseIPv4(a.substring(slash + 1));
+                    else {
+                        int bits = Integer.parseInt(a.substring(slash + 1));
+                        mask[r] = bits == 0 ? 0 : -1 << (32 - bits);
+                    }
+                    addr[r] &= mask[r];
+                }
+
+                if (ports.equals("*")) {
+                    lo[r] = 1;
+                    hi[r] = 65535;
+                } else {
+                    int dash = ports.indexOf('-');
+                    lo[r] = Integer.parseInt(dash < 0 ? ports : ports.substring(0, dash));
+                    hi[r] = dash < 0 ? lo[r] : Integer.parseInt(ports.substring(dash + 1));
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("bad exit policy rule: " + rule);
+            }
+            acc[r] = sp[0].equals("accept");
+            r++;
+        }
+        return new ExitPolicy(Arrays.copyOf(acc, r), Arrays.copyOf(addr, r), Arrays.copyOf(mask, r),
+                Arrays.copyOf(lo, r), Arrays.copyOf(hi, r));
+    }
+
+    static int parseIPv4(String s) {
+        String sp[] = s.split("\\.");
+        if (sp.length != 4)
+            throw new NumberFormatException("not an IPv4 address: " + s);
+        int ip = 0;
+        for (String o : sp) {
+            int v = Integer.parseInt(o);
+            if (v < 0 || v > 255)
+                throw new NumberFormatException("not an IPv4 address: " + s);
+            ip = (ip << 8) | v;
+        }
+        return ip;
+    }
+
+    /**
+     * Whether a connection to the address and port would be allowed.  Summaries only know about ports, so
+     * answer for "most addresses".
+     *
+     * @param ipv4 Packed IPv4 address
+     */
+    public boolean accepts(int ipv4, int port) {
+        if (ruleAccept == null)
+            return acceptsPort(port);
+        for (int i = 0; i < ruleAccept.length; i++)
+            if ((ipv4 & mask[i]) == addr[i] && port >= lo[i] && port <= hi[i])
+                return ruleAccept[i];
+        return true; // "if no rule matches, the address will be accepted"
+    }
+
+    /**
+     * Whether the port is accepted for "most addresses".  For descriptor rules only those applying to every
+     * address are considered.
+     */
+    public boolean acceptsPort(int port) {
+        if (ruleAccept != null) {
+            for (int i = 0; i < ruleAccept.length; i++)
+                if (mask[i] == 0 && port >= lo[i] && port <= hi[i])
+                    return ruleAccept[i];
+            return true;
+        }
+
+        // last range starting at or before port
+        int a = 0, b = lo.length - 1, found = -1;
+        while (a <= b) {
+            int mid = (a + b) >>> 1;
+            if (lo[mid] <= port) {
+                found = mid;
+                a = mid + 1;
+            } else {
+                b = mid - 1;
+            }
+        }
+        boolean listed = found >= 0 && port <= hi[found];
+        return listed == accept;
+    }
+}
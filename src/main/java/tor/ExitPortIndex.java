@@ -0,0 +1,135 @@
+/*
+        Tor Research Framework - easy to use tor client library/framework
+        Copyright (C) 2014  Dr Gareth Owen <drgowen@gmail.com>
+        www.ghowen.me / github.com/drgowen/tor-research-framework
+
+        This program is free software: you can redistribute it and/or modify
+        it under the terms of the GNU General Public License as published by
+        the Free Software Foundation, either version 3 of the License, or
+        (at your option) any later version.
+
+        This program is distributed in the hope that it will be useful,
+        but WITHOUT ANY WARRANTY; without even the implied warranty of
+        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+        GNU General Public License for more details.
+
+        You should have received a copy of the GNU General Public License
+        along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package tor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Which of a set of routers accept each exit port, from their consensus port summaries.
+ * <p/>
+ * The port space is cut into segments at every range boundary used by any summary, so every router gives the
+ * same answer for all ports in a segment.  The accepting routers are worked out once per segment (from the few
+ * hundred distinct summaries, not per router) and cached.
+ */
+class ExitPortIndex {
+    final OnionRouter routers[];
+    final ExitPolicy policies[]; // distinct summaries
+    final int members[][]; // indices into routers, per policy
+    final int segmentStart[]; // sorted first port of each segment
+    final ConcurrentHashMap<Integer, OnionRouter[]> bySegment = new ConcurrentHashMap<>();
+    final ConcurrentHashMap<Integer, BitSet> setsBySegment = new ConcurrentHashMap<>();
+
+    ExitPortIndex(OnionRouter routers[]) {
+        this.routers = routers;
+
+        // group routers by summary
+        HashMap<String, ArrayList<Integer>> groups = new HashMap<>();
+        for (int i = 0; i < routers.length; i++) {
+            String s = routers[i].consensusIPv4ExitPortSummary;
+            if (s == null) // nothing known - treated as rejecting everything
+                continue;
+            ArrayList<Integer> g = groups.get(s);
+            if (g == null) {
+                g = new ArrayList<>();
+                groups.put(s, g);
+            }
+            g.add(i);
+        }
+
+        policies = new ExitPolicy[groups.size()];
+        members = new int[groups.size()][];
+        TreeSet<Integer> starts = new TreeSet<>();
+        starts.add(1);
+        int p = 0;
+        for (String s : groups.keySet()) {
+            ExitPolicy pol = ExitPolicy.fromSummary(s);
+            policies[p] = pol;
+            ArrayList<Integer> g = groups.get(s);
+            members[p] = new int[g.size()];
+            for (int i = 0; i < g.size(); i++)
+                members[p][i] = g.get(i);
+            for (int i = 0; i < pol.lo.length; i++) {
+                starts.add(pol.lo[i]);
+                starts.add(pol.hi[i] + 1);
+            }
+            p++;
+        }
+
+        segmentStart = new int[starts.size()];
+        int i = 0;
+        for (int s : starts)
+            segmentStart[i++] = s;
+    }
+
+    int segment(int port) {
+        int idx = Arrays.binarySearch(segmentStart, port);
+        return idx >= 0 ? idx : -idx - 2;
+    }
+
+    /**
+     * Routers accepting the port, in their original order.  Shared - don't modify.
+     */
+    OnionRouter[] accepting(int port) {
+        int seg = segment(port);
+        OnionRouter rs[] = bySegment.get(seg);
+        if (rs != null)
+            return rs;
+
+        boolean accepted[] = new boolean[routers.length];
+        int n = 0;
+        for (int p = 0; p < policies.length; p++)
+            if (policies[p].acceptsPort(port))
+                for (int m : members[p]) {
+                    accepted[m] = true;
+                    n++;
+                }
+        rs = new OnionRouter[n];
+        n = 0;
+        for (int i = 0; i < routers.length; i++)
+            if (accepted[i])
+                rs[n++] = routers[i];
+
+        OnionRouter prev[] = bySegment.putIfAbsent(seg, rs);
+        return prev != null ? prev : rs;
+    }
+
+    /**
+     * Indices (into routers) of the routers accepting the port.  Shared - don't modify.
+     */
+    BitSet acceptingSet(int port) {
+        int seg = segment(port);
+        BitSet set = setsBySegment.get(seg);
+        if (set != null)
+            return set;
+
+        set = new BitSet(routers.length);
+        for (int p = 0; p < policies.length; p++)
+            if (policies[p].acceptsPort(port))
+                for (int m : members[p])
+                    set.set(m);
+
+        BitSet prev = setsBySegment.putIfAbsent(seg, set);
+        return prev != null ? prev : set;
+    }
+}
@@ -21,13 +21,12 @@ package tor;
 import org.apache.commons.codec.DecoderException;
 import org.apache.commons.codec.binary.Base32;
 import org.apache.commons.codec.binary.Hex;
-import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.ArrayUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.bouncycastle.util.encoders.Base64;
+import tor.util.HTTPResponse;
 import tor.util.MiscUtil;
-import tor.util.TorCircuitException;
 import tor.util.TorDocumentParser;
 
 import java.io.IOException;
@@ -42,7 +41,6 @@ import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
-import java.util.TreeMap;
 
 /**
  * Created by gho on 25/07/14.
@@ -85,19 +83,25 @@ public class HiddenService {
     public static OnionRouter[] findResposibleDirectories(String onionb32) {
         Consensus con = Consensus.getConsensus();
 
-        // get list of nodes with HS dir flag
-        TreeMap<String, OnionRouter> routers = con.getORsWithFlag("HSDir,V2Dir".split(","));
-        Object keys[] = routers.keySet().toArray();
-        Object vals[] = routers.values().toArray();
+        // get list of nodes with HS dir flag, in identity order
+        OnionRouter hsdirs[] = con.getIndex().withFlags("HSDir,V2Dir".split(","), true);
 
         ArrayList<OnionRouter> rts = new ArrayList<>();
 
         for (int replica = 0; replica < 2; replica++) {
             // Get nodes just to right of HS's descID in the DHT
-            int idx = -Arrays.binarySearch(keys, Hex.encodeHexString(getDescId(onionb32, (byte) replica)));
+            String descId = Hex.encodeHexString(getDescId(onionb32, (byte) replica));
+            int lo = 0, hi = hsdirs.length;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (hsdirs[mid].identityhash.compareTo(descId) <= 0)
+                    lo = mid + 1;
+                else
+                    hi = mid;
+            }
 
             for (int i = 0; i < 3; i++) {
-                rts.add((OnionRouter) vals[(idx + i) % vals.length]);
+                rts.add(hsdirs[(lo + i) % hsdirs.length]);
             }
         }
 
@@ -107,6 +111,22 @@ public class HiddenService {
 
     // blocking
     public static String fetchHSDescriptor(TorSocket sock, final String onion) throws IOException {
+        TorDirectoryClient client = new TorDirectoryClient(sock);
+        try {
+            return fetchHSDescriptor(client, onion);
+        } finally {
+            client.close();
+        }
+    }
+
+    /**
+     * Fetches a hidden service descriptor, reusing the client's directory circuits across lookups
+     *
+     * @param client Directory client
+     * @param onion  Onion address (without .onion)
+     * @return descriptor, or null if no responsible directory had it
+     */
+    public static String fetchHSDescriptor(TorDirectoryClient client, final String onion) throws IOException {
         // get list of ORs with resposibility for this HS
         OnionRouter ors[] = findResposibleDirectories(onion);
         // loop through responsible directories until successful
@@ -114,72 +134,20 @@ public class HiddenService {
             OnionRouter or = ors[i];
             log.debug("Trying Directory Server: {}", or);
 
-            // establish circuit to responsible director
-            TorCircuit circ = sock.createCircuit(true);
+            final int replica = i < 3 ? 0 : 1;
+            HTTPResponse resp;
             try {
-                circ.create();
-                circ.extend(ors[0]);
-            } catch(TorCircuitException e) {
+                resp = client.get(or, "/tor/rendezvous2/" + new Base32().encodeAsString(HiddenService.getDescId(onion, (byte) replica)));
+            } catch (IOException e) {
                 log.error("HS fetched failed due to circuit failure - moving to next directory");
                 continue;
             }
 
-            final int replica = i < 3 ? 0 : 1;
-
-            // asynchronous call
-            TorStream st = circ.createDirStream(new TorStream.TorStreamListener() {
-                @Override
-                public void dataArrived(TorStream s) {
-                }
-
-                @Override
-                public void connected(TorStream s) {
-                    try {
-                        s.sendHTTPGETRequest("/tor/rendezvous2/" + new Base32().encodeAsString(HiddenService.getDescId(onion, (byte) replica)), "dirreq");
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                }
-
-                @Override
-                public void disconnected(TorStream s) {
-                    synchronized (onion) {
-                        onion.notify();
-                    }
-                }
-
-                @Override
-                public void failure(TorStream s) {
-                    synchronized (onion) {
-                        onion.notify();
-                    }
-                }
-            });
-
-            // wait for notification from the above listener that data is here! (that remote side ended connection - data could be blank
-            synchronized (onion) {
-                try {
-                    onion.wait(1000);
-                    if(circ.state== TorCircuit.STATES.DESTROYED) {
-                        System.out.println("HS - Desc Fetch - Circuit Destroyed");
-                        throw new TorCircuitException("circuit destroyed");
-                    }
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-            }
-
-            // get HTTP response and body
-            String data = IOUtils.toString(st.getInputStream());
-            circ.destroy();
-
             // HTTP success code
-            if (data.length() < 1 || !data.split(" ")[1].equals("200")) {
+            if (resp.status != 200)
                 continue;
-            }
 
-            int dataIndex = data.indexOf("\r\n\r\n");
-            return data.substring(dataIndex);
+            return resp.readBodyAsString();
         }
 
         log.warn("Not found hs descriptor!");
@@ -195,7 +163,7 @@ public class HiddenService {
         // parse the hidden service descriptor
         TorDocumentParser hsdesc = new TorDocumentParser(hsdescTxt);
         //decode the intro points
-        String intopointsb64 = new String(Base64.decode(hsdesc.map.get("introduction-points")));
+        String intopointsb64 = new String(Base64.decode(hsdesc.getItem("introduction-points")));
         // parse intro points document
         TorDocumentParser intros = new TorDocumentParser(intopointsb64);
         // get first intro point
@@ -204,7 +172,7 @@ public class HiddenService {
         int introPointNum = 0;
 
         String ip0 = Hex.encodeHexString(new Base32().decode(introPointIdentities[introPointNum].toUpperCase()));
-        OnionRouter ip0or = Consensus.getConsensus().routers.get(ip0);
+        OnionRouter ip0or = Consensus.getConsensus().getRouters().get(ip0);
         byte[] serviceKey = Base64.decode(intros.getArrayItem("service-key")[introPointNum]);
         byte skHash[] = TorCrypto.getSHA1().digest(serviceKey);
         assert (skHash.length == 20);
@@ -0,0 +1,318 @@
+/*
+        Tor Research Framework - easy to use tor client library/framework
+        Copyright (C) 2014  Dr Gareth Owen <drgowen@gmail.com>
+        www.ghowen.me / github.com/drgowen/tor-research-framework
+
+        This program is free software: you can redistribute it and/or modify
+        it under the terms of the GNU General Public License as published by
+        the Free Software Foundation, either version 3 of the License, or
+        (at your option) any later version.
+
+        This program is distributed in the hope that it will be useful,
+        but WITHOUT ANY WARRANTY; without even the implied warranty of
+        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+        GNU General Public License for more details.
+
+        You should have received a copy of the GNU General Public License
+        along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package tor;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Microdescriptors keyed by digest, persisted to an append-only cache file.
+ * <p/>
+ * Microdescriptors carry what circuit building needs (onion key, family, exit summary) at a fraction of the size
+ * of server descriptors.  Routers from a microdesc flavoured consensus name theirs by SHA-256 digest; missing ones
+ * are fetched in batches from /tor/micro/d/, checked against the digests we asked for and appended to the cache.
+ */
+public class MicrodescCache {
+    final static Logger log = LogManager.getLogger();
+    final static Charset ASCII = Charset.forName("ISO-8859-1");
+
+    public static String CACHE_FILE = "cached-microdescs";
+    // digests per /tor/micro/d/ request, and requests in flight at once
+    public static int BATCH_SIZE = 92;
+    public static int FETCH_THREADS = 4;
+
+    /**
+     * The parts of a microdescriptor we use
+     */
+    public static class Microdesc {
+        public final byte digest[];
+        public final byte onionKeyRaw[];
+        public final String family;
+        public final String policySummary;
+
+        Microdesc(byte digest[], byte onionKeyRaw[], String family, String policySummary) {
+            this.digest = digest;
+            this.onionKeyRaw = onionKeyRaw;
+            this.family = family;
+            this.policySummary = policySummary;
+        }
+    }
+
+    private static MicrodescCache instance = null;
+
+    private final ConcurrentHashMap<String, Microdesc> byDigest = new ConcurrentHashMap<>();
+    private final File file;
+
+    MicrodescCache(File file) {
+        this.file = file;
+    }
+
+    /**
+     * The shared cache, loaded from CACHE_FILE on first use
+     */
+    public static synchronized MicrodescCache getInstance() {
+        if (instance == null) {
+            instance = new MicrodescCache(new File(CACHE_FILE));
+            instance.load();
+        }
+        return instance;
+    }
+
+    private void load() {
+        if (!file.exists() || !file.canRead())
+            return;
+        try {
+            byte doc[];
+            try (InputStream in = new FileInputStream(file)) {
+                doc = IOUtils.toByteArray(in);
+            }
+            for (Microdesc md : parse(doc, null))
+                byDigest.put(key(md.digest), md);
+            log.info("Loaded " + byDigest.size() + " microdescriptors from " + file);
+        } catch (IOException | RuntimeException e) {
+            log.warn("Ignoring unreadable " + file + ": " + e);
+        }
+    }
+
+    /**
+     * Digest as used in consensus m lines and /tor/micro/d/ URLs: unpadded base64
+     */
+    public static String key(byte digest[]) {
+        return StringUtils.stripEnd(Base64.encodeBase64String(digest), "=");
+    }
+
+    public int size() {
+        return byDigest.size();
+    }
+
+    public Microdesc get(byte digest[]) {
+        return digest == null ? null : byDigest.get(key(digest));
+    }
+
+    /**
+     * Copies the microdescriptor's keys, family and exit summary to the router.  Only for routers of a consensus
+     * that's still loading - its exit indexes are built from the summaries.
+     *
+     * @return false if we don't have its microdescriptor
+     */
+    public boolean apply(OnionRouter r) {
+        return apply(r, true);
+    }
+
+    private boolean apply(OnionRouter r, boolean summary) {
+        Microdesc md = get(r.microdescDigest);
+        if (md == null)
+            return false;
+        if (md.onionKeyRaw != null) {
+            r.onionKeyRaw = md.onionKeyRaw;
+            r.onionKey = TorCrypto.asn1GetPublicKey(md.onionKeyRaw);
+        }
+        r.setFamily(md.family);
+        if (summary && md.policySummary != null && r.consensusIPv4ExitPortSummary == null) {
+            r.consensusIPv4ExitPortSummary = md.policySummary;
+            r.summaryPolicy = null; // recompiled on next use
+        }
+        return true;
+    }
+
+    /**
+     * Fetches a single router's microdescriptor if we don't have it, and applies its keys and family.  The exit
+     * summary is left alone: the router may belong to a published consensus whose exit indexes already treat it
+     * according to its consensus entry, so the summary is only filled in while a consensus loads.
+     */
+    public void fetch(OnionRouter r) throws IOException {
+        if (r.microdescDigest == null)
+            return;
+        if (get(r.microdescDigest) == null)
+            fetchBatch(Consensus.getConsensus(), Collections.singletonList(key(r.microdescDigest)));
+        apply(r, false);
+    }
+
+    /**
+     * Fetches every missing microdescriptor for the routers, in batches, and applies them all
+     *
+     * @param dir     Consensus to pick directories from
+     * @param routers Routers that need microdescriptors
+     * @return how many routers are still missing theirs
+     */
+    public int fetchMissing(final Consensus dir, Collection<OnionRouter> routers) {
+        LinkedHashSet<String> missing = new LinkedHashSet<>();
+        for (OnionRouter r : routers)
+            if (r.microdescDigest != null && get(r.microdescDigest) == null)
+                missing.add(key(r.microdescDigest));
+
+        if (!missing.isEmpty()) {
+            log.info("Fetching " + missing.size() + " microdescriptors");
+            ArrayList<String> all = new ArrayList<>(missing);
+            ArrayList<Callable<Void>> batches = new ArrayList<>();
+            for (int i = 0; i < all.size(); i += BATCH_SIZE) {
+                final List<String> batch = all.subList(i, Math.min(i + BATCH_SIZE, all.size()));
+                batches.add(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        fetchBatch(dir, batch);
+                        return null;
+                    }
+                });
+            }
+
+            ExecutorService pool = Executors.newFixedThreadPool(Math.min(FETCH_THREADS, batches.size()));
+            try {
+                for (Future<Void> f : pool.invokeAll(batches)) {
+                    try {
+                        f.get();
+                    } catch (ExecutionException e) {
+                        log.warn("Microdescriptor batch failed: " + e.getCause());
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+
+        int stillMissing = 0;
+        for (OnionRouter r : routers)
+            if (r.microdescDigest != null && !apply(r))
+                stillMissing++;
+        if (stillMissing > 0)
+            log.warn(stillMissing + " routers still have no microdescriptor");
+        return stillMissing;
+    }
+
+    // one /tor/micro/d/ request - only microdescriptors we asked for are kept
+    private void fetchBatch(Consensus dir, List<String> digests) throws IOException {
+        byte doc[];
+        try (InputStream in = dir.getDirectoryStream("/tor/micro/d/" + StringUtils.join(digests.toArray(), "-"))) {
+            doc = IOUtils.toByteArray(in);
+        } catch (RuntimeException e) {
+            throw new IOException(e.getMessage());
+        }
+
+        HashSet<String> wanted = new HashSet<>(digests);
+        ByteArrayOutputStream keep = new ByteArrayOutputStream(doc.length);
+        int got = 0;
+        for (Microdesc md : parse(doc, keep)) {
+            String k = key(md.digest);
+            if (wanted.contains(k)) {
+                byDigest.put(k, md);
+                got++;
+            }
+        }
+        if (got < digests.size())
+            log.debug("Asked for " + digests.size() + " microdescriptors, got " + got);
+        append(keep.toByteArray());
+    }
+
+    private synchronized void append(byte text[]) {
+        if (text.length == 0 || !new File(".").canWrite())
+            return;
+        try (OutputStream out = new FileOutputStream(file, true)) {
+            out.write(text);
+        } catch (IOException e) {
+            log.warn("Couldn't append to " + file + ": " + e);
+        }
+    }
+
+    /**
+     * Splits a document of concatenated microdescriptors.  Each starts at an onion-key line, and its digest covers
+     * everything up to the next one (annotation lines starting with @ excluded).
+     *
+     * @param doc  The document
+     * @param text If not null, the text of each microdescriptor is written here
+     */
+    static List<Microdesc> parse(byte doc[], OutputStream text) throws IOException {
+        MessageDigest sha256;
+        try {
+            sha256 = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+
+        ArrayList<Microdesc> out = new ArrayList<>();
+        int start = -1, end = 0; // current microdescriptor, end excludes trailing annotations
+        int pos = 0;
+        while (pos <= doc.length) {
+            int eol = pos;
+            while (eol < doc.length && doc[eol] != '\n')
+                eol++;
+            boolean last = eol >= doc.length;
+            boolean isStart = !last && startsWith(doc, pos, "onion-key");
+            if (isStart || last) {
+                if (start >= 0) {
+                    if (last)
+                        end = doc.length;
+                    out.add(parseOne(doc, start, end, sha256));
+                    if (text != null)
+                        text.write(doc, start, end - start);
+                }
+                start = isStart ? pos : -1;
+            }
+            if (!last && doc[pos] != '@')
+                end = eol + 1;
+            pos = eol + 1;
+        }
+        return out;
+    }
+
+    private static Microdesc parseOne(byte doc[], int start, int end, MessageDigest sha256) {
+        sha256.reset();
+        sha256.update(doc, start, end - start);
+        byte digest[] = sha256.digest();
+
+        byte onionKey[] = null;
+        String family = null, policy = null;
+        String lines[] = new String(doc, start, end - start, ASCII).split("\n");
+        for (int i = 0; i < lines.length; i++) {
+            String ln = lines[i];
+            if (ln.equals("onion-key") && i + 1 < lines.length && lines[i + 1].startsWith("-----BEGIN")) {
+                StringBuilder b64 = new StringBuilder();
+                for (i += 2; i < lines.length && !lines[i].startsWith("-----END"); i++)
+                    b64.append(lines[i]);
+                onionKey = Base64.decodeBase64(b64.toString());
+            } else if (ln.startsWith("family ")) {
+                family = ln.substring(7);
+            } else if (ln.startsWith("p ")) {
+                policy = ln.substring(2);
+            }
+        }
+        return new Microdesc(digest, onionKey, family, policy);
+    }
+
+    private static boolean startsWith(byte doc[], int pos, String s) {
+        if (pos + s.length() > doc.length)
+            return false;
+        for (int i = 0; i < s.length(); i++)
+            if (doc[pos + i] != s.charAt(i))
+                return false;
+        // whole keyword only
+        return pos + s.length() == doc.length || doc[pos + s.length()] == '\n' || doc[pos + s.length()] == ' ';
+    }
+}
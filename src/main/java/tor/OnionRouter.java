@@ -18,30 +18,59 @@
 */
 package tor;
 
-import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.lang.StringUtils;
-import tor.util.TorDocumentParser;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import tor.util.MiscUtil;
 
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.charset.Charset;
 import java.security.PublicKey;
 import java.util.HashSet;
 
 public class OnionRouter {
+    final static Logger log = LogManager.getLogger();
+    final static Charset UTF8 = Charset.forName("UTF-8");
     public String identityhash;
     public HashSet<String> flags = new HashSet<>();
     public byte[] onionKeyRaw;
     public byte[] signKeyRaw;
     public String consensusIPv4ExitPortSummary = null;
     public String[] descriptorIPv4ExitPolicy = null;
-    public String[] parsedIPv4ExitPortList = null;
     public String version = null;
+    /**
+     * Raw 20 byte identity (identityhash is its hex form)
+     */
+    public byte[] fingerprint;
+    /**
+     * Consensus weight (from the w Bandwidth= line), 0 if unknown
+     */
+    public int bandwidth = 0;
+    /**
+     * Family members from the router descriptor ($fingerprints or nicknames), null until the descriptor is fetched
+     */
+    public String[] family = null;
+    /**
+     * SHA-256 of the router's microdescriptor, from a microdesc flavoured consensus (null otherwise)
+     */
+    public byte[] microdescDigest = null;
+    /**
+     * SHA-1 of the router's server descriptor, from the consensus (null for the microdesc flavour)
+     */
+    public byte[] descriptorDigest = null;
     String name;
     InetAddress ip;
+    int ipv4; // packed, as in ip
     int orport;
     int dirport;
     PublicKey onionKey = null;
+    // compiled exit policies, built on first use
+    ExitPolicy summaryPolicy = null;
+    ExitPolicy descriptorPolicy = null;
 
     public OnionRouter(String _nm, String _ident, String _ip, int _orport, int _dirport) throws UnknownHostException {
         name = _nm;
@@ -49,6 +78,7 @@ public class OnionRouter {
         orport = _orport;
         dirport = _dirport;
         identityhash = _ident;
+        setPacked();
     }
     
     public OnionRouter(String _nm, String _ident, String _ip, int _orport, int _dirport, String _version) throws UnknownHostException {
@@ -58,184 +88,163 @@ public class OnionRouter {
         dirport = _dirport;
         identityhash = _ident;
         version = _version;
+        setPacked();
+    }
+
+    /**
+     * Constructor used by the consensus parser - no name lookups or string conversions
+     *
+     * @param _fingerprint Raw 20 byte identity
+     * @param _ipv4        Packed IPv4 address
+     */
+    public OnionRouter(String _nm, byte[] _fingerprint, int _ipv4, int _orport, int _dirport) {
+        name = _nm;
+        fingerprint = _fingerprint;
+        identityhash = MiscUtil.toHex(_fingerprint);
+        ipv4 = _ipv4;
+        try {
+            ip = InetAddress.getByAddress(new byte[]{(byte) (_ipv4 >> 24), (byte) (_ipv4 >> 16), (byte) (_ipv4 >> 8), (byte) _ipv4});
+        } catch (UnknownHostException e) {
+            throw new RuntimeException(e); // can't happen - address is 4 bytes
+        }
+        orport = _orport;
+        dirport = _dirport;
+    }
+
+    // fill in the packed forms for routers created from strings
+    private void setPacked() {
+        byte a[] = ip.getAddress();
+        if (a.length == 4)
+            ipv4 = ((a[0] & 0xff) << 24) | ((a[1] & 0xff) << 16) | ((a[2] & 0xff) << 8) | (a[3] & 0xff);
+        try {
+            if (identityhash != null && identityhash.length() == 40)
+                fingerprint = Hex.decodeHex(identityhash.toCharArray());
+        } catch (DecoderException e) {
+            fingerprint = null;
+        }
     }
 
     public void fetchDescriptor() throws IOException {
-        TorDocumentParser rdr = new TorDocumentParser(Consensus.getConsensus().getRouterDescriptor(identityhash));
+        DescriptorFetcher.getInstance().get(this).applyTo(this);
+    }
 
-        onionKeyRaw = Base64.decodeBase64(rdr.getItem("onion-key"));
-        onionKey = TorCrypto.asn1GetPublicKey(onionKeyRaw);
-        signKeyRaw = Base64.decodeBase64(rdr.getItem("signing-key"));
+    /**
+     * The router's server descriptor - from the descriptor store if we have the one the consensus names,
+     * otherwise fetched (batched with other lookups, see DescriptorFetcher) and stored
+     */
+    public String getDescriptor() throws IOException {
+        return new String(DescriptorFetcher.getInstance().get(this).raw, UTF8);
+    }
+
+    // family line from a descriptor, possibly null
+    void setFamily(String familyLine) {
+        family = familyLine == null ? new String[0] : familyLine.trim().split(" +");
+    }
+
+    /**
+     * Whether both routers list each other as family members.  False if either's descriptor hasn't been fetched.
+     */
+    public boolean inSameFamily(OnionRouter other) {
+        return family != null && other.family != null && listsMember(other) && other.listsMember(this);
+    }
+
+    private boolean listsMember(OnionRouter other) {
+        for (String f : family) {
+            if (f.startsWith("$")) { // $HEX, optionally followed by =nick or ~nick
+                int end = f.length();
+                for (int i = 1; i < f.length(); i++)
+                    if (f.charAt(i) == '=' || f.charAt(i) == '~') {
+                        end = i;
+                        break;
+                    }
+                if (f.substring(1, end).equalsIgnoreCase(other.identityhash))
+                    return true;
+            } else if (f.equalsIgnoreCase(other.name)) {
+                return true;
+            }
+        }
+        return false;
 
     }
 
     public PublicKey getOnionKey() throws IOException {
+        if (onionKey == null && microdescDigest != null)
+            MicrodescCache.getInstance().fetch(this);
         if (onionKey == null)
             fetchDescriptor();
 
         return onionKey;
     }
 
+    /**
+     * Whether the router will exit to the port for "most addresses" - from the consensus port summary if there is
+     * one, otherwise from the descriptor's policy (fetched if necessary).
+     *
+     * @param exitPort Port (0 or an invalid port is always accepted)
+     */
     public Boolean acceptsIPv4ExitPort(int exitPort) {
 
         // ignore an exitPort of 0, and invalid exitPorts
         // return true to short-circuit potentially expensive checks that will never succeed, through the entire router list
-        if (exitPort == 0)
-            return true;
-        else if (exitPort < 0 || exitPort > 65535)
+        if (exitPort <= 0 || exitPort > 65535)
             return true;
 
-        if (parsedIPv4ExitPortList == null) {
-
-            // if we don't have the p line from the consensus, download the entire router descriptor
-            if (consensusIPv4ExitPortSummary == null && descriptorIPv4ExitPolicy == null) {
-                try {
-                    TorDocumentParser rdr = new TorDocumentParser(Consensus.getConsensus().getRouterDescriptor(identityhash));
-                    descriptorIPv4ExitPolicy = rdr.getArrayItem(TorDocumentParser.IPv4PolicyKey);
-                } catch (IOException e) {
-                    System.out.println("acceptsIPv4ExitPort: failed to retrieve exit policy for: " + name
-                            + ", assuming reject. Parsing router descriptor failed with IOException: " + e.toString());
-                    return false;
-                } catch (RuntimeException e) {
-                    System.out.println("acceptsIPv4ExitPort: failed to retrieve exit policy for: " + name
-                            + ", assuming reject. Retrieving consensus failed with RuntimeException: " + e.toString());
-                    return false;
-                }
-            }
-
-            // The algorithm for parsing exit policies is complex,
-            // and even tor (C) sometimes connects to exits that are not suitable
-            // (e.g. because the remote IP isn't known, and therefore tor only performs an approximate coverage check,
-            // or because tor is using the port summary from the consensus).
-            // See https://gitweb.torproject.org/torspec.git/blob/HEAD:/dir-spec.txt for the gory details
-
-            // use p line in consensus if available
-            // https://gitweb.torproject.org/torspec.git/blob/HEAD:/dir-spec.txt
-            // "p" SP ("accept" / "reject") SP PortList NL
-            // [At most once.]
-            // PortList = PortOrRange
-            // PortList = PortList "," PortOrRange
-            // PortOrRange = INT "-" INT / INT
-            // A list of those ports that this router supports (if 'accept')
-            // or does not support (if 'reject') for exit to "most addresses".
-
-            //System.out.println("acceptsIPv4ExitPort: checking for exit port " + String.valueOf(exitPort) + " in: "
-            //        + consensusIPv4ExitPortSummary);
-
-            // Pre-process the exit summary into an array of:
-            // ("accept" / "reject") SP PortOrRange
-            if (consensusIPv4ExitPortSummary != null) {
-                String[] lineSplit = consensusIPv4ExitPortSummary.split(" ");
-                String acceptOrReject = lineSplit[0];
-                String[] portListSplit = lineSplit[1].split(",");
-                parsedIPv4ExitPortList = new String[portListSplit.length];
-
-                int i = 0;
-                for (String portOrRange : portListSplit) {
-                    parsedIPv4ExitPortList[i] = acceptOrReject + " " + portOrRange;
-                    i++;
-                }
-            }
-
-            //System.out.println("acceptsIPv4ExitPort: checking for exit port " + String.valueOf(exitPort) + " in:\n"
-            //        + String.join("\n", descriptorIPv4ExitPolicy));
-
-            // We implement a simplified version which ignores IP addresses (skipping any that aren't "*")
-            // Each line of the policy consists of:
-            // ("accept" / "reject") SP IP ":" PortOrRange NL
-
-            // Pre-process the exit policy into an array of:
-            // ("accept" / "reject") SP PortOrRange
-
-            Boolean isParsedListEmpty = false;
-
-            if (parsedIPv4ExitPortList == null)
-                isParsedListEmpty = true;
-            else if (parsedIPv4ExitPortList.length == 0)
-                isParsedListEmpty = true;
+        if (consensusIPv4ExitPortSummary != null)
+            return getSummaryPolicy().acceptsPort(exitPort);
 
-            if (isParsedListEmpty && descriptorIPv4ExitPolicy != null) {
-                // allow an extra item for the final "accept *"
-                parsedIPv4ExitPortList = new String[descriptorIPv4ExitPolicy.length + 1];
-
-                int i = 0;
-                for (String policy : descriptorIPv4ExitPolicy) {
-                    String[] lineSplit = policy.split(" ");
-                    String acceptOrReject = lineSplit[0];
-                    String[] ipPortSplit = lineSplit[1].split(":");
-                    String portOrRange = ipPortSplit[1];
+        ExitPolicy p = getDescriptorPolicy();
+        return p != null && p.acceptsPort(exitPort);
+    }
 
-                    // only process lines that apply to all IPs
-                    if (ipPortSplit.equals("*")) {
+    /**
+     * Whether the router's exit policy allows a connection to the address and port.  Uses the full descriptor
+     * policy when it's known (or when there's no consensus summary), otherwise the summary.
+     *
+     * @param ipv4 Packed IPv4 address
+     */
+    public boolean accepts(int ipv4, int port) {
+        ExitPolicy p = descriptorPolicy;
+        if (p == null)
+            p = consensusIPv4ExitPortSummary != null ? getSummaryPolicy() : getDescriptorPolicy();
+        return p != null && p.accepts(ipv4, port);
+    }
 
-                        // replace * ports with the full numeric port range
-                        if (portOrRange.equals("*")) {
-                            portOrRange = "1-65535";
-                        }
+    public boolean accepts(InetAddress addr, int port) {
+        byte a[] = addr.getAddress();
+        if (a.length != 4)
+            return false;
+        return accepts(((a[0] & 0xff) << 24) | ((a[1] & 0xff) << 16) | ((a[2] & 0xff) << 8) | (a[3] & 0xff), port);
+    }
 
-                        parsedIPv4ExitPortList[i] = acceptOrReject + " " + portOrRange;
-                        i++;
-                    }
-                }
+    ExitPolicy getSummaryPolicy() {
+        ExitPolicy p = summaryPolicy;
+        if (p == null)
+            summaryPolicy = p = ExitPolicy.fromSummary(consensusIPv4ExitPortSummary);
+        return p;
+    }
 
-                // "if no rule matches, the address will be accepted"
-                parsedIPv4ExitPortList[i] = "accept 1-65535";
-                i++;
+    // compiled descriptor policy, fetching the descriptor if we don't have the rules; null if unavailable
+    ExitPolicy getDescriptorPolicy() {
+        if (descriptorPolicy != null)
+            return descriptorPolicy;
+
+        if (descriptorIPv4ExitPolicy == null) {
+            try {
+                String rules[] = DescriptorFetcher.getInstance().get(this).ipv4Policy;
+                descriptorIPv4ExitPolicy = rules == null ? new String[0] : rules;
+            } catch (IOException | RuntimeException e) {
+                log.warn("failed to retrieve exit policy for " + name + ", assuming reject: " + e);
+                return null;
             }
         }
 
-        // now compare the desired port to the parsed port policy
-        // The parsed policy is an ordered array of:
-        // ("accept" / "reject") SP PortOrRange
-        if (parsedIPv4ExitPortList != null) {
-
-            for (String portPolicy : parsedIPv4ExitPortList) {
-
-                // because we skip some lines when parsing descriptors, some lines may be empty
-                if (portPolicy != null) {
-
-                    String[] lineSplit = portPolicy.split(" ");
-                    Boolean accepted = lineSplit[0].equals("accept");
-                    String portRange = lineSplit[1];
-                    String[] portSplit = portRange.split("-");
-
-                    if (portSplit.length == 1) {
-                        // duplicate the single port to make a range
-                        String port = portSplit[0];
-
-                        portSplit = new String[2];
-                        portSplit[0] = port;
-                        portSplit[1] = port;
-                    }
-
-                    // portSplit is now a port range
-                    try {
-
-                        int lowPort = Integer.parseInt(portSplit[0]);
-                        int highPort = Integer.parseInt(portSplit[1]);
-
-                        if (exitPort >= lowPort && exitPort <= highPort)
-                            // return the range match result
-                            return accepted;
-                        else
-                            // no match, so check the next line
-                            continue;
-
-                    } catch (NumberFormatException e) {
-                        // a line we don't understand - assume policy is too complex
-                        System.out.println("acceptsIPv4ExitPort: failed to parse " + lineSplit[0]
-                                + " port numbers in exit policy for: " + name
-                                + ", assuming reject by: " + portPolicy);
-                        return false;
-                    }
-                }
-            }
+        try {
+            descriptorPolicy = ExitPolicy.fromDescriptor(descriptorIPv4ExitPolicy);
+        } catch (IllegalArgumentException e) {
+            log.warn("can't parse exit policy for " + name + ", assuming reject: " + e.getMessage());
+            descriptorPolicy = ExitPolicy.REJECT_ALL;
         }
-
-        // if no line matches the port,
-        // either we've used a consensus summary that doesn't contain the port,
-        // or we couldn't find both the consensus summary and the router descriptor
-        return false;
+        return descriptorPolicy;
     }
 
     @Override
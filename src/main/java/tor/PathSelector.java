@@ -0,0 +1,202 @@
+/*
+        Tor Research Framework - easy to use tor client library/framework
+        Copyright (C) 2014  Dr Gareth Owen <drgowen@gmail.com>
+        www.ghowen.me / github.com/drgowen/tor-research-framework
+
+        This program is free software: you can redistribute it and/or modify
+        it under the terms of the GNU General Public License as published by
+        the Free Software Foundation, either version 3 of the License, or
+        (at your option) any later version.
+
+        This program is distributed in the hope that it will be useful,
+        but WITHOUT ANY WARRANTY; without even the implied warranty of
+        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+        GNU General Public License for more details.
+
+        You should have received a copy of the GNU General Public License
+        along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package tor;
+
+import tor.util.AliasTable;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Bandwidth-weighted router selection, as tor does it (dir-spec section 3.8.3).
+ * <p/>
+ * Each position (guard, middle, exit) has an alias table over its eligible routers, weighted by consensus
+ * bandwidth times the consensus bandwidth-weight for that position and the router's Guard/Exit flags.
+ * Tables are built once per consensus, so each draw is O(1).  Paths never use the same router twice, two
+ * routers in the same /16 or two routers that declare each other as family (when descriptors are known).
+ */
+public class PathSelector {
+    // give up on finding a router compatible with the rest of the path after this many draws
+    public static int MAX_DRAWS = 1000;
+
+    static final String GUARD_FLAGS[] = {"Guard", "Running", "Valid"};
+    static final String MIDDLE_FLAGS[] = {"Running", "Valid"};
+    static final String EXIT_FLAGS[] = {"Exit", "Running", "Valid"};
+
+    enum Position {GUARD, MIDDLE, EXIT}
+
+    final OnionRouter guards[], middles[], exits[];
+    final AliasTable guardTable, middleTable, exitTable;
+    final Map<String, Integer> weights;
+    final ExitPortIndex exitPorts;
+    // exit candidates and their table per port segment
+    final ConcurrentHashMap<Integer, PortExits> portExits = new ConcurrentHashMap<>();
+
+    static class PortExits {
+        final OnionRouter exits[];
+        final AliasTable table;
+
+        PortExits(OnionRouter exits[], AliasTable table) {
+            this.exits = exits;
+            this.table = table;
+        }
+    }
+
+    public PathSelector(Consensus con) {
+        RouterIndex idx = con.getIndex();
+        weights = con.bandwidthWeights;
+
+        guards = idx.withFlags(GUARD_FLAGS, true);
+        middles = idx.withFlags(MIDDLE_FLAGS, true);
+        exits = idx.withFlags(EXIT_FLAGS, true);
+
+        guardTable = table(guards, Position.GUARD);
+        middleTable = table(middles, Position.MIDDLE);
+        exitTable = table(exits, Position.EXIT);
+        exitPorts = new ExitPortIndex(exits);
+    }
+
+    private AliasTable table(OnionRouter rs[], Position pos) {
+        double w[] = new double[rs.length];
+        for (int i = 0; i < rs.length; i++)
+            w[i] = (double) rs[i].bandwidth * positionWeight(rs[i], pos) / 10000.0;
+        return new AliasTable(w);
+    }
+
+    // bandwidth-weight for a router in a position, by whether it's a guard and/or an exit
+    int positionWeight(OnionRouter r, Position pos) {
+        boolean g = r.flags.contains("Guard"), e = r.flags.contains("Exit") && !r.flags.contains("BadExit");
+        String key;
+        switch (pos) {
+            case GUARD:
+                key = g && e ? "Wgd" : "Wgg";
+                break;
+            case EXIT:
+                key = g && e ? "Wed" : "Wee";
+                break;
+            default:
+                key = g && e ? "Wmd" : g ? "Wmg" : e ? "Wme" : "Wmm";
+        }
+        Integer v = weights.get(key);
+        return v == null ? 10000 : Math.max(v, 0);
+    }
+
+    /**
+     * Chooses a guard, middle(s) and exit that are compatible with each other
+     *
+     * @param hops Path length, at least 2
+     * @return path, guard first and exit last
+     */
+    public OnionRouter[] choosePath(int hops) {
+        return choosePath(hops, 0);
+    }
+
+    /**
+     * Chooses a guard, middle(s) and an exit accepting the port that are compatible with each other
+     *
+     * @param hops     Path length, at least 2
+     * @param exitPort Port the exit's summary must accept, 0 for any exit
+     * @return path, guard first and exit last
+     */
+    public OnionRouter[] choosePath(int hops, int exitPort) {
+        if (hops < 2)
+            throw new IllegalArgumentException("path needs at least 2 hops");
+        OnionRouter path[] = new OnionRouter[hops];
+        // exit first, as it's the most constrained position
+        path[hops - 1] = exitPort == 0 ? chooseExit() : chooseExit(exitPort);
+        path[0] = chooseGuard(path[hops - 1]);
+        for (int i = 1; i < hops - 1; i++) {
+            OnionRouter chosen[] = new OnionRouter[i + 1];
+            System.arraycopy(path, 0, chosen, 0, i);
+            chosen[i] = path[hops - 1];
+            path[i] = chooseMiddle(chosen);
+        }
+        return path;
+    }
+
+    /**
+     * @param avoid Routers already on the path
+     */
+    public OnionRouter chooseGuard(OnionRouter... avoid) {
+        return choose(guards, guardTable, "guard", avoid);
+    }
+
+    /**
+     * @param avoid Routers already on the path
+     */
+    public OnionRouter chooseMiddle(OnionRouter... avoid) {
+        return choose(middles, middleTable, "middle", avoid);
+    }
+
+    /**
+     * @param avoid Routers already on the path
+     */
+    public OnionRouter chooseExit(OnionRouter... avoid) {
+        return choose(exits, exitTable, "exit", avoid);
+    }
+
+    /**
+     * Chooses an exit whose consensus port summary accepts the port - a single weighted draw from exactly the
+     * exits that accept it
+     *
+     * @param port  Exit port
+     * @param avoid Routers already on the path
+     * @throws RuntimeException if no exit accepts the port
+     */
+    public OnionRouter chooseExit(int port, OnionRouter... avoid) {
+        int seg = exitPorts.segment(port);
+        PortExits pe = portExits.get(seg);
+        if (pe == null) {
+            OnionRouter rs[] = exitPorts.accepting(port);
+            pe = new PortExits(rs, table(rs, Position.EXIT));
+            PortExits prev = portExits.putIfAbsent(seg, pe);
+            if (prev != null)
+                pe = prev;
+        }
+        return choose(pe.exits, pe.table, "exit for port " + port, avoid);
+    }
+
+    private OnionRouter choose(OnionRouter rs[], AliasTable table, String what, OnionRouter avoid[]) {
+        if (rs.length == 0)
+            throw new RuntimeException("no routers eligible as " + what);
+        for (int i = 0; i < MAX_DRAWS; i++) {
+            OnionRouter r = rs[table.next(TorCrypto.rnd)];
+            if (compatible(r, avoid))
+                return r;
+        }
+        throw new RuntimeException("couldn't find a " + what + " compatible with the rest of the path");
+    }
+
+    /**
+     * Whether r may share a path with the given routers - not the same router, /16 or family
+     */
+    public static boolean compatible(OnionRouter r, OnionRouter... others) {
+        for (OnionRouter o : others) {
+            if (o == null)
+                continue;
+            if (o == r || o.identityhash.equals(r.identityhash))
+                return false;
+            if (r.ipv4 != 0 && (r.ipv4 >>> 16) == (o.ipv4 >>> 16))
+                return false;
+            if (r.inSameFamily(o))
+                return false;
+        }
+        return true;
+    }
+}
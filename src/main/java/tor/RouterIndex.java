@@ -0,0 +1,278 @@
+/*
+        Tor Research Framework - easy to use tor client library/framework
+        Copyright (C) 2014  Dr Gareth Owen <drgowen@gmail.com>
+        www.ghowen.me / github.com/drgowen/tor-research-framework
+
+        This program is free software: you can redistribute it and/or modify
+        it under the terms of the GNU General Public License as published by
+        the Free Software Foundation, either version 3 of the License, or
+        (at your option) any later version.
+
+        This program is distributed in the hope that it will be useful,
+        but WITHOUT ANY WARRANTY; without even the implied warranty of
+        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+        GNU General Public License for more details.
+
+        You should have received a copy of the GNU General Public License
+        along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package tor;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Lookup indexes over one consensus, built once when first needed.
+ * <p/>
+ * Flags are interned to bits of a long mask per router.  Candidate arrays for each flag combination are built
+ * on first request and cached for the life of the consensus, so repeated random selection is O(1).  The
+ * attribute indexes used by RouterQuery (flag bitsets, bandwidth and address order, exit ports) are built the
+ * same way, on first use.
+ */
+class RouterIndex {
+    static final long BADEXIT_EXCLUDED = 1L << 63; // in cache keys only
+
+    final OnionRouter all[]; // identity order
+    final long masks[];
+    final HashMap<String, Integer> flagBits = new HashMap<>();
+    final HashMap<String, OnionRouter> byName = new HashMap<>();
+    final HashMap<String, OnionRouter> byIdentity = new HashMap<>();
+    final HashMap<Long, OnionRouter> byIpPort = new HashMap<>();
+    final long badExitMask;
+
+    final ConcurrentHashMap<Long, OnionRouter[]> candidates = new ConcurrentHashMap<>();
+    final ConcurrentHashMap<Long, ExitPortIndex> exitIndexes = new ConcurrentHashMap<>();
+    final ConcurrentHashMap<Long, BitSet> flagSets = new ConcurrentHashMap<>();
+
+    // for RouterQuery, built on first use - router indices ordered by bandwidth / address, with the sorted values
+    private int byBandwidth[], sortedBandwidth[];
+    private int byAddress[];
+    private long sortedAddress[];
+    private ExitPortIndex exits;
+
+    RouterIndex(Collection<OnionRouter> routers) {
+        all = routers.toArray(new OnionRouter[routers.size()]);
+        masks = new long[all.length];
+
+        for (int i = 0; i < all.length; i++) {
+            OnionRouter r = all[i];
+            long m = 0;
+            for (String f : r.flags) {
+                Integer bit = flagBits.get(f);
+                if (bit == null) {
+                    if (flagBits.size() >= 63)
+                        throw new RuntimeException("too many distinct flags in consensus");
+                    bit = flagBits.size();
+                    flagBits.put(f, bit);
+                }
+                m |= 1L << bit;
+            }
+            masks[i] = m;
+
+            // first in identity order wins, as the old linear scans did
+            if (!byName.containsKey(r.name))
+                byName.put(r.name, r);
+            byIdentity.put(r.identityhash, r);
+            Long ipp = ipPortKey(r.ipv4, r.orport);
+            if (!byIpPort.containsKey(ipp))
+                byIpPort.put(ipp, r);
+        }
+
+        Integer bad = flagBits.get("BadExit");
+        badExitMask = bad == null ? 0 : 1L << bad;
+    }
+
+    static Long ipPortKey(int ipv4, int port) {
+        return ((ipv4 & 0xffffffffL) << 16) | (port & 0xffff);
+    }
+
+    /**
+     * @return the mask for these flags, or -1 if any of them isn't set on any router
+     */
+    long mask(String flags[]) {
+        long m = 0;
+        for (String f : flags) {
+            Integer bit = flagBits.get(f);
+            if (bit == null)
+                return -1;
+            m |= 1L << bit;
+        }
+        return m;
+    }
+
+    /**
+     * Routers having all of the flags, in identity order.  The returned array is shared - don't modify it.
+     */
+    OnionRouter[] withFlags(String flags[], boolean excludeBadExits) {
+        long m = mask(flags);
+        if (m == -1)
+            return new OnionRouter[0];
+        Long key = excludeBadExits ? m | BADEXIT_EXCLUDED : m;
+        OnionRouter c[] = candidates.get(key);
+        if (c != null)
+            return c;
+
+        long exclude = excludeBadExits ? badExitMask : 0;
+        ArrayList<OnionRouter> list = new ArrayList<>();
+        for (int i = 0; i < all.length; i++)
+            if ((masks[i] & m) == m && (masks[i] & exclude) == 0)
+                list.add(all[i]);
+        c = list.toArray(new OnionRouter[list.size()]);
+        OnionRouter prev[] = candidates.putIfAbsent(key, c);
+        return prev != null ? prev : c;
+    }
+
+    /**
+     * Routers having all of the flags whose exit summary accepts the port.  Shared - don't modify.
+     */
+    OnionRouter[] withFlagsAndPort(String flags[], boolean excludeBadExits, int port) {
+        long m = mask(flags);
+        if (m == -1)
+            return new OnionRouter[0];
+        Long key = excludeBadExits ? m | BADEXIT_EXCLUDED : m;
+        ExitPortIndex ei = exitIndexes.get(key);
+        if (ei == null) {
+            ei = new ExitPortIndex(withFlags(flags, excludeBadExits));
+            ExitPortIndex prev = exitIndexes.putIfAbsent(key, ei);
+            if (prev != null)
+                ei = prev;
+        }
+        return ei.accepting(port);
+    }
+
+    /**
+     * Indices of the routers having all flags in mask (as from mask()).  Shared - don't modify.
+     */
+    BitSet flagSet(long m, boolean excludeBadExits) {
+        if (m == -1)
+            return new BitSet();
+        Long key = excludeBadExits ? m | BADEXIT_EXCLUDED : m;
+        BitSet set = flagSets.get(key);
+        if (set != null)
+            return set;
+
+        long exclude = excludeBadExits ? badExitMask : 0;
+        set = new BitSet(all.length);
+        for (int i = 0; i < all.length; i++)
+            if ((masks[i] & m) == m && (masks[i] & exclude) == 0)
+                set.set(i);
+        BitSet prev = flagSets.putIfAbsent(key, set);
+        return prev != null ? prev : set;
+    }
+
+    /**
+     * Indices of the routers with min <= bandwidth <= max
+     */
+    BitSet bandwidthRange(long min, long max) {
+        int order[] = bandwidthOrder();
+        BitSet set = new BitSet(all.length);
+        for (int i = lowerBound(sortedBandwidth, min); i < order.length && sortedBandwidth[i] <= max; i++)
+            set.set(order[i]);
+        return set;
+    }
+
+    /**
+     * Router indices in ascending bandwidth order.  Shared - don't modify.
+     */
+    synchronized int[] bandwidthOrder() {
+        if (byBandwidth == null) {
+            long keyed[] = new long[all.length];
+            for (int i = 0; i < all.length; i++)
+                keyed[i] = ((long) all[i].bandwidth << 32) | i;
+            Arrays.sort(keyed);
+            byBandwidth = new int[all.length];
+            sortedBandwidth = new int[all.length];
+            for (int i = 0; i < keyed.length; i++) {
+                byBandwidth[i] = (int) keyed[i];
+                sortedBandwidth[i] = (int) (keyed[i] >> 32);
+            }
+        }
+        return byBandwidth;
+    }
+
+    /**
+     * Indices of the routers with an IPv4 address in [lo, hi] (unsigned)
+     */
+    BitSet addressRange(long lo, long hi) {
+        int order[];
+        long sorted[];
+        synchronized (this) {
+            if (byAddress == null) {
+                // unsigned address above the index (kept clear of the sign bit) - one sort gives both arrays
+                long keyed[] = new long[all.length];
+                for (int i = 0; i < all.length; i++)
+                    keyed[i] = ((all[i].ipv4 & 0xffffffffL) << 31) | i;
+                Arrays.sort(keyed);
+                byAddress = new int[all.length];
+                sortedAddress = new long[all.length];
+                for (int i = 0; i < keyed.length; i++) {
+                    byAddress[i] = (int) (keyed[i] & 0x7fffffff);
+                    sortedAddress[i] = keyed[i] >>> 31;
+                }
+            }
+            order = byAddress;
+            sorted = sortedAddress;
+        }
+        BitSet set = new BitSet(all.length);
+        for (int i = lowerBound(sorted, lo); i < sorted.length && sorted[i] <= hi; i++)
+            set.set(order[i]);
+        return set;
+    }
+
+    /**
+     * Indices of the routers whose exit summary accepts the port.  Shared - don't modify.
+     */
+    BitSet exitPortSet(int port) {
+        ExitPortIndex ei;
+        synchronized (this) {
+            if (exits == null)
+                exits = new ExitPortIndex(all);
+            ei = exits;
+        }
+        return ei.acceptingSet(port);
+    }
+
+    // first position in sorted with a value >= v
+    private static int lowerBound(int sorted[], long v) {
+        int lo = 0, hi = sorted.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (sorted[mid] < v)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    private static int lowerBound(long sorted[], long v) {
+        int lo = 0, hi = sorted.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (sorted[mid] < v)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    // dotted quad to packed int, or null if it isn't one
+    static Integer parseIPv4(String addr) {
+        String sp[] = addr.split("\\.");
+        if (sp.length != 4)
+            return null;
+        int ip = 0;
+        try {
+            for (String o : sp) {
+                int v = Integer.parseInt(o);
+                if (v < 0 || v > 255)
+                    return null;
+                ip = (ip << 8) | v;
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return ip;
+    }
+}
@@ -0,0 +1,122 @@
+/*
+        Tor Research Framework - easy to use tor client library/framework
+        Copyright (C) 2014  Dr Gareth Owen <drgowen@gmail.com>
+        www.ghowen.me / github.com/drgowen/tor-research-framework
+
+        This program is free software: you can redistribute it and/or modify
+        it under the terms of the GNU General Public License as published by
+        the Free Software Foundation, either version 3 of the License, or
+        (at your option) any later version.
+
+        This program is distributed in the hope that it will be useful,
+        but WITHOUT ANY WARRANTY; without even the implied warranty of
+        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+        GNU General Public License for more details.
+
+        You should have received a copy of the GNU General Public License
+        along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package tor;
+
+import java.util.*;
+
+/**
+ * Read-only SortedMap over routers stored in identity order (BinaryConsensus, RouterTable).  Lookups use the
+ * store's own search and routers are materialised as they're returned.
+ */
+abstract class RouterListMap extends AbstractMap<String, OnionRouter> implements SortedMap<String, OnionRouter> {
+    abstract int count();
+
+    // index of the router, -1 if absent
+    abstract int indexOf(String identityhex);
+
+    abstract OnionRouter router(int idx);
+
+    abstract String identity(int idx);
+
+    @Override
+    public OnionRouter get(Object key) {
+        int idx = key instanceof String ? indexOf((String) key) : -1;
+        return idx < 0 ? null : router(idx);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return key instanceof String && indexOf((String) key) >= 0;
+    }
+
+    @Override
+    public int size() {
+        return count();
+    }
+
+    @Override
+    public Set<Entry<String, OnionRouter>> entrySet() {
+        return new AbstractSet<Entry<String, OnionRouter>>() {
+            @Override
+            public Iterator<Entry<String, OnionRouter>> iterator() {
+                return new Iterator<Entry<String, OnionRouter>>() {
+                    int i = 0;
+
+                    @Override
+                    public boolean hasNext() {
+                        return i < count();
+                    }
+
+                    @Override
+                    public Entry<String, OnionRouter> next() {
+                        if (i >= count())
+                            throw new NoSuchElementException();
+                        OnionRouter r = router(i++);
+                        return new SimpleImmutableEntry<>(r.identityhash, r);
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return count();
+            }
+        };
+    }
+
+    @Override
+    public Comparator<? super String> comparator() {
+        return null;
+    }
+
+    // range views are rare - materialise into a TreeMap
+    @Override
+    public SortedMap<String, OnionRouter> subMap(String fromKey, String toKey) {
+        return new TreeMap<>(this).subMap(fromKey, toKey);
+    }
+
+    @Override
+    public SortedMap<String, OnionRouter> headMap(String toKey) {
+        return new TreeMap<>(this).headMap(toKey);
+    }
+
+    @Override
+    public SortedMap<String, OnionRouter> tailMap(String fromKey) {
+        return new TreeMap<>(this).tailMap(fromKey);
+    }
+
+    @Override
+    public String firstKey() {
+        if (count() == 0)
+            throw new NoSuchElementException();
+        return identity(0);
+    }
+
+    @Override
+    public String lastKey() {
+        if (count() == 0)
+            throw new NoSuchElementException();
+        return identity(count() - 1);
+    }
+}
@@ -0,0 +1,372 @@
+/*
+        Tor Research Framework - easy to use tor client library/framework
+        Copyright (C) 2014  Dr Gareth Owen <drgowen@gmail.com>
+        www.ghowen.me / github.com/drgowen/tor-research-framework
+
+        This program is free software: you can redistribute it and/or modify
+        it under the terms of the GNU General Public License as published by
+        the Free Software Foundation, either version 3 of the License, or
+        (at your option) any later version.
+
+        This program is distributed in the hope that it will be useful,
+        but WITHOUT ANY WARRANTY; without even the implied warranty of
+        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+        GNU General Public License for more details.
+
+        You should have received a copy of the GNU General Public License
+        along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package tor;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.stream.Stream;
+
+/**
+ * A composable query over the routers of a consensus, e.g.
+ * <pre>
+ *     consensus.query().withFlags("Fast", "Stable").exitPort(443).minBandwidth(5000).notInFamilyOf(guard).list()
+ * </pre>
+ * Flags, bandwidth, address prefixes and exit ports are answered from the consensus' indexes (see RouterIndex) as
+ * bitsets, intersected smallest first.  Conditions that need each router (OR port, version, family, where) are
+ * then checked only against what's left, in parallel when that's a lot of routers.
+ */
+public class RouterQuery {
+    // candidates left after the indexes above which residual conditions are checked in parallel
+    public static int PARALLEL_THRESHOLD = 4096;
+    public static int PARALLELISM = Runtime.getRuntime().availableProcessors();
+
+    private static ForkJoinPool pool = null;
+
+    /**
+     * A condition checked per router
+     */
+    public interface Condition {
+        boolean matches(OnionRouter r);
+    }
+
+    private final RouterIndex index;
+    private final ArrayList<String> flags = new ArrayList<>();
+    private boolean excludeBadExits = false;
+    private long minBandwidth = Long.MIN_VALUE, maxBandwidth = Long.MAX_VALUE;
+    private final ArrayList<long[]> prefixes = new ArrayList<>(), excludedPrefixes = new ArrayList<>();
+    private final ArrayList<Integer> exitPorts = new ArrayList<>();
+    private final ArrayList<Condition> conditions = new ArrayList<>();
+
+    RouterQuery(RouterIndex index) {
+        this.index = index;
+    }
+
+    private static synchronized ForkJoinPool getPool() {
+        if (pool == null)
+            pool = new ForkJoinPool(Math.max(PARALLELISM, 1));
+        return pool;
+    }
+
+    // ---- predicates ----
+
+    /**
+     * Routers having all of the flags (case-sensitive)
+     */
+    public RouterQuery withFlags(String... flags) {
+        this.flags.addAll(Arrays.asList(flags));
+        return this;
+    }
+
+    public RouterQuery excludeBadExits() {
+        excludeBadExits = true;
+        return this;
+    }
+
+    /**
+     * Consensus bandwidth (weight) at least min
+     */
+    public RouterQuery minBandwidth(long min) {
+        minBandwidth = Math.max(minBandwidth, min);
+        return this;
+    }
+
+    public RouterQuery maxBandwidth(long max) {
+        maxBandwidth = Math.min(maxBandwidth, max);
+        return this;
+    }
+
+    /**
+     * IPv4 address within a prefix
+     *
+     * @param cidr e.g. "10.0.0.0/8", or a single address
+     * @throws IllegalArgumentException if cidr isn't an IPv4 prefix
+     */
+    public RouterQuery inPrefix(String cidr) {
+        prefixes.add(parsePrefix(cidr));
+        return this;
+    }
+
+    /**
+     * IPv4 address outside a prefix, e.g. the /16 of another hop
+     */
+    public RouterQuery notInPrefix(String cidr) {
+        excludedPrefixes.add(parsePrefix(cidr));
+        return this;
+    }
+
+    /**
+     * IPv4 address outside the /16 of r (as tor does when picking hops)
+     */
+    public RouterQuery notInSubnetOf(OnionRouter r) {
+        long net = (r.ipv4 & 0xffffffffL) & 0xffff0000L;
+        excludedPrefixes.add(new long[]{net, net | 0xffff});
+        return this;
+    }
+
+    /**
+     * Exit summary accepts the port.  Routers without a summary never match.
+     */
+    public RouterQuery exitPort(int port) {
+        if (port <= 0 || port > 65535)
+            throw new IllegalArgumentException("bad port: " + port);
+        exitPorts.add(port);
+        return this;
+    }
+
+    public RouterQuery orPort(final int port) {
+        return where(new Condition() {
+            @Override
+            public boolean matches(OnionRouter r) {
+                return r.orport == port;
+            }
+        });
+    }
+
+    /**
+     * Running at least this tor version, e.g. "0.2.4.0".  Routers without a version never match.
+     */
+    public RouterQuery minVersion(String version) {
+        final int min[] = parseVersion(version);
+        if (min == null)
+            throw new IllegalArgumentException("bad version: " + version);
+        // a consensus only has a few hundred distinct versions - compare each once
+        final ConcurrentHashMap<String, Boolean> seen = new ConcurrentHashMap<>();
+        return where(new Condition() {
+            @Override
+            public boolean matches(OnionRouter r) {
+                if (r.version == null)
+                    return false;
+                Boolean ok = seen.get(r.version);
+                if (ok == null) {
+                    int v[] = parseVersion(r.version);
+                    ok = v != null && compareVersions(v, min) >= 0;
+                    seen.put(r.version, ok);
+                }
+                return ok;
+            }
+        });
+    }
+
+    /**
+     * Not one of the routers, nor in a family with any of them.  Family is only known for routers whose
+     * descriptors have been fetched (see OnionRouter.inSameFamily).
+     */
+    public RouterQuery notInFamilyOf(final OnionRouter... routers) {
+        return where(new Condition() {
+            @Override
+            public boolean matches(OnionRouter r) {
+                for (OnionRouter o : routers)
+                    if (o == r || o.identityhash.equals(r.identityhash) || r.inSameFamily(o))
+                        return false;
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Any other per-router condition.  Conditions may be checked concurrently, so must be thread-safe.
+     */
+    public RouterQuery where(Condition c) {
+        conditions.add(c);
+        return this;
+    }
+
+    // ---- results ----
+
+    /**
+     * Matching routers in identity order
+     */
+    public OnionRouter[] list() {
+        BitSet set = evaluate();
+        OnionRouter out[] = new OnionRouter[set.cardinality()];
+        int n = 0;
+        for (int i = set.nextSetBit(0); i >= 0; i = set.nextSetBit(i + 1))
+            out[n++] = index.all[i];
+        return out;
+    }
+
+    /**
+     * Matching routers, highest bandwidth first
+     */
+    public OnionRouter[] listByBandwidth() {
+        BitSet set = evaluate();
+        int order[] = index.bandwidthOrder();
+        OnionRouter out[] = new OnionRouter[set.cardinality()];
+        int n = 0;
+        for (int i = order.length - 1; i >= 0 && n < out.length; i--)
+            if (set.get(order[i]))
+                out[n++] = index.all[order[i]];
+        return out;
+    }
+
+    /**
+     * Matching routers as a map keyed by identity, like Consensus.getORsWithFlag
+     */
+    public TreeMap<String, OnionRouter> toMap() {
+        TreeMap<String, OnionRouter> map = new TreeMap<>();
+        for (OnionRouter r : list())
+            map.put(r.identityhash, r);
+        return map;
+    }
+
+    public int count() {
+        return evaluate().cardinality();
+    }
+
+    /**
+     * Matching routers as a stream in identity order, for further filtering or mapping by the caller
+     */
+    public Stream<OnionRouter> stream() {
+        return Arrays.stream(list());
+    }
+
+    /**
+     * Like stream(), but parallel: the matching routers are split over the common ForkJoinPool
+     */
+    public Stream<OnionRouter> parallelStream() {
+        return stream().parallel();
+    }
+
+    // ---- plan ----
+
+    // the matching router indices
+    BitSet evaluate() {
+        ArrayList<BitSet> sets = new ArrayList<>();
+        if (!flags.isEmpty() || excludeBadExits)
+            sets.add(index.flagSet(index.mask(flags.toArray(new String[flags.size()])), excludeBadExits));
+        if (minBandwidth != Long.MIN_VALUE || maxBandwidth != Long.MAX_VALUE)
+            sets.add(index.bandwidthRange(minBandwidth, maxBandwidth));
+        for (long p[] : prefixes)
+            sets.add(index.addressRange(p[0], p[1]));
+        for (int port : exitPorts)
+            sets.add(index.exitPortSet(port));
+
+        // most selective first, so an empty intersection shows up early
+        Collections.sort(sets, new Comparator<BitSet>() {
+            @Override
+            public int compare(BitSet a, BitSet b) {
+                return Integer.compare(a.cardinality(), b.cardinality());
+            }
+        });
+        BitSet result;
+        if (sets.isEmpty()) {
+            result = new BitSet(index.all.length);
+            result.set(0, index.all.length);
+        } else {
+            result = (BitSet) sets.get(0).clone(); // the index's sets are shared
+            for (int i = 1; i < sets.size() && !result.isEmpty(); i++)
+                result.and(sets.get(i));
+        }
+        for (long p[] : excludedPrefixes)
+            if (!result.isEmpty())
+                result.andNot(index.addressRange(p[0], p[1]));
+
+        if (conditions.isEmpty() || result.isEmpty())
+            return result;
+        int candidates[] = new int[result.cardinality()];
+        int n = 0;
+        for (int i = result.nextSetBit(0); i >= 0; i = result.nextSetBit(i + 1))
+            candidates[n++] = i;
+        Check check = new Check(candidates, 0, candidates.length);
+        return candidates.length < PARALLEL_THRESHOLD ? check.compute() : getPool().invoke(check);
+    }
+
+    // checks the conditions over candidates[from, to), splitting while there's more than PARALLEL_THRESHOLD / 4
+    private class Check extends RecursiveTask<BitSet> {
+        private static final long serialVersionUID = 1L;
+
+        final int candidates[];
+        final int from, to;
+
+        Check(int candidates[], int from, int to) {
+            this.candidates = candidates;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected BitSet compute() {
+            if (to - from > Math.max(PARALLEL_THRESHOLD / 4, 1) && inForkJoinPool()) {
+                int mid = (from + to) >>> 1;
+                Check right = new Check(candidates, mid, to);
+                right.fork();
+                BitSet left = new Check(candidates, from, mid).compute();
+                left.or(right.join());
+                return left;
+            }
+            BitSet set = new BitSet(index.all.length);
+            next:
+            for (int i = from; i < to; i++) {
+                OnionRouter r = index.all[candidates[i]];
+                for (Condition c : conditions)
+                    if (!c.matches(r))
+                        continue next;
+                set.set(candidates[i]);
+            }
+            return set;
+        }
+    }
+
+    // {lo, hi} unsigned addresses of a prefix
+    static long[] parsePrefix(String cidr) {
+        String sp[] = cidr.trim().split("/");
+        Integer ip = sp.length <= 2 ? RouterIndex.parseIPv4(sp[0]) : null;
+        int bits;
+        try {
+            bits = sp.length == 2 ? Integer.parseInt(sp[1]) : 32;
+        } catch (NumberFormatException e) {
+            bits = -1;
+        }
+        if (ip == null || bits < 0 || bits > 32)
+            throw new IllegalArgumentException("bad IPv4 prefix: " + cidr);
+        long host = bits == 0 ? 0xffffffffL : (1L << (32 - bits)) - 1;
+        long lo = (ip & 0xffffffffL) & ~host;
+        return new long[]{lo, lo | host};
+    }
+
+    // numeric components of a version ("Tor 0.2.5.6-alpha" -> 0,2,5,6), null if there are none
+    static int[] parseVersion(String v) {
+        String s = v.startsWith("Tor ") ? v.substring(4) : v;
+        int end = 0;
+        while (end < s.length() && (Character.isDigit(s.charAt(end)) || s.charAt(end) == '.'))
+            end++;
+        String parts[] = s.substring(0, end).split("\\.");
+        if (end == 0 || parts.length == 0)
+            return null;
+        int out[] = new int[parts.length];
+        try {
+            for (int i = 0; i < parts.length; i++)
+                out[i] = Integer.parseInt(parts[i]);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return out;
+    }
+
+    static int compareVersions(int a[], int b[]) {
+        for (int i = 0; i < Math.max(a.length, b.length); i++) {
+            int x = i < a.length ? a[i] : 0, y = i < b.length ? b[i] : 0;
+            if (x != y)
+                return x < y ? -1 : 1;
+        }
+        return 0;
+    }
+}
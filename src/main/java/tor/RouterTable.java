@@ -0,0 +1,319 @@
+/*
+        Tor Research Framework - easy to use tor client library/framework
+        Copyright (C) 2014  Dr Gareth Owen <drgowen@gmail.com>
+        www.ghowen.me / github.com/drgowen/tor-research-framework
+
+        This program is free software: you can redistribute it and/or modify
+        it under the terms of the GNU General Public License as published by
+        the Free Software Foundation, either version 3 of the License, or
+        (at your option) any later version.
+
+        This program is distributed in the hope that it will be useful,
+        but WITHOUT ANY WARRANTY; without even the implied warranty of
+        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+        GNU General Public License for more details.
+
+        You should have received a copy of the GNU General Public License
+        along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package tor;
+
+import tor.util.MiscUtil;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Column-oriented, in-memory table of routers for workloads that hold many consensuses at once.
+ * <p/>
+ * Routers are stored as parallel arrays sorted by fingerprint - packed IPv4s, ports, a flag bitmask, and
+ * fingerprints and digests in contiguous byte arrays.  Nicknames, versions and exit summaries come from a pool
+ * shared by all tables, so each distinct string is held once however many consensuses are loaded.  OnionRouter
+ * objects are only created for routers that are looked up (see get and asMap), and only weakly kept, so a pass
+ * over every router doesn't leave them all behind; analyses that only need columns never create them.
+ */
+public class RouterTable {
+    private static final ConcurrentHashMap<String, String> pool = new ConcurrentHashMap<>();
+
+    final int count;
+    final byte fingerprints[]; // 20 bytes each
+    final int ipv4[];
+    final short orport[], dirport[];
+    final long flags[];
+    final String flagNames[];
+    final String names[], versions[], exitSummaries[];
+    final int bandwidth[];
+    final byte descriptorDigests[]; // 20 bytes each, null if no router had one
+    final byte microdescDigests[]; // 32 bytes each, null if no router had one
+    private View views[] = null;
+    private final ReferenceQueue<OnionRouter> collected = new ReferenceQueue<>();
+
+    // weak reference to a view, knowing its slot so the slot can be cleared once the view is collected
+    private static class View extends WeakReference<OnionRouter> {
+        final int idx;
+
+        View(OnionRouter r, int idx, ReferenceQueue<OnionRouter> q) {
+            super(r, q);
+            this.idx = idx;
+        }
+    }
+
+    private RouterTable(int n, String flagNames[], boolean hasDesc, boolean hasMd) {
+        count = n;
+        fingerprints = new byte[20 * n];
+        ipv4 = new int[n];
+        orport = new short[n];
+        dirport = new short[n];
+        flags = new long[n];
+        this.flagNames = flagNames;
+        names = new String[n];
+        versions = new String[n];
+        exitSummaries = new String[n];
+        bandwidth = new int[n];
+        descriptorDigests = hasDesc ? new byte[20 * n] : null;
+        microdescDigests = hasMd ? new byte[32 * n] : null;
+    }
+
+    // the shared copy of s
+    static String pooled(String s) {
+        if (s == null)
+            return null;
+        String p = pool.putIfAbsent(s, s);
+        return p == null ? s : p;
+    }
+
+    /**
+     * Packs routers (e.g. a parsed consensus) into a table.  The routers aren't kept.
+     *
+     * @throws IllegalArgumentException if a router has no fingerprint, or there are more than 64 distinct flags
+     */
+    public static RouterTable build(Collection<OnionRouter> routers) {
+        TreeSet<String> flagSet = new TreeSet<>();
+        boolean hasDesc = false, hasMd = false;
+        for (OnionRouter r : routers) {
+            if (r.fingerprint == null || r.fingerprint.length != 20)
+                throw new IllegalArgumentException("router without fingerprint: " + r);
+            flagSet.addAll(r.flags);
+            hasDesc |= r.descriptorDigest != null;
+            hasMd |= r.microdescDigest != null;
+        }
+        if (flagSet.size() > 64)
+            throw new IllegalArgumentException("too many distinct flags: " + flagSet.size());
+        String flagNames[] = new String[flagSet.size()];
+        HashMap<String, Integer> flagBit = new HashMap<>();
+        for (String f : flagSet) {
+            flagBit.put(f, flagBit.size());
+            flagNames[flagBit.size() - 1] = pooled(f);
+        }
+
+        OnionRouter sorted[] = routers.toArray(new OnionRouter[routers.size()]);
+        Arrays.sort(sorted, new Comparator<OnionRouter>() {
+            @Override
+            public int compare(OnionRouter a, OnionRouter b) {
+                return compareBytes(a.fingerprint, 0, b.fingerprint);
+            }
+        });
+
+        RouterTable t = new RouterTable(sorted.length, flagNames, hasDesc, hasMd);
+        for (int i = 0; i < sorted.length; i++) {
+            OnionRouter r = sorted[i];
+            System.arraycopy(r.fingerprint, 0, t.fingerprints, 20 * i, 20);
+            t.ipv4[i] = r.ipv4;
+            t.orport[i] = (short) r.orport;
+            t.dirport[i] = (short) r.dirport;
+            long mask = 0;
+            for (String f : r.flags)
+                mask |= 1L << flagBit.get(f);
+            t.flags[i] = mask;
+            t.names[i] = pooled(r.name);
+            t.versions[i] = pooled(r.version);
+            t.exitSummaries[i] = pooled(r.consensusIPv4ExitPortSummary);
+            t.bandwidth[i] = r.bandwidth;
+            if (hasDesc && r.descriptorDigest != null)
+                System.arraycopy(r.descriptorDigest, 0, t.descriptorDigests, 20 * i, 20);
+            if (hasMd && r.microdescDigest != null)
+                System.arraycopy(r.microdescDigest, 0, t.microdescDigests, 32 * i, 32);
+        }
+        return t;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @return index of the router with this raw fingerprint, or -1
+     */
+    public int indexOf(byte fp[]) {
+        int lo = 0, hi = count - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int c = compareBytes(fingerprints, 20 * mid, fp);
+            if (c < 0)
+                lo = mid + 1;
+            else if (c > 0)
+                hi = mid - 1;
+            else
+                return mid;
+        }
+        return -1;
+    }
+
+    /**
+     * @return index of the router with this hex identity, or -1
+     */
+    public int indexOf(String identityhex) {
+        if (identityhex == null || identityhex.length() != 40)
+            return -1;
+        try {
+            return indexOf(MiscUtil.fromHex(identityhex));
+        } catch (IllegalArgumentException e) {
+            return -1;
+        }
+    }
+
+    // compares 20 bytes of a at off with b, unsigned
+    private static int compareBytes(byte a[], int off, byte b[]) {
+        for (int i = 0; i < 20; i++) {
+            int x = a[off + i] & 0xff, y = b[i] & 0xff;
+            if (x != y)
+                return x - y;
+        }
+        return 0;
+    }
+
+    // ---- columns ----
+
+    public byte[] getFingerprint(int idx) {
+        return Arrays.copyOfRange(fingerprints, 20 * idx, 20 * idx + 20);
+    }
+
+    public String getIdentity(int idx) {
+        return MiscUtil.toHex(getFingerprint(idx));
+    }
+
+    public int getIPv4(int idx) {
+        return ipv4[idx];
+    }
+
+    public int getORPort(int idx) {
+        return orport[idx] & 0xffff;
+    }
+
+    public int getDirPort(int idx) {
+        return dirport[idx] & 0xffff;
+    }
+
+    public String getName(int idx) {
+        return names[idx];
+    }
+
+    public String getVersion(int idx) {
+        return versions[idx];
+    }
+
+    public String getExitSummary(int idx) {
+        return exitSummaries[idx];
+    }
+
+    public int getBandwidth(int idx) {
+        return bandwidth[idx];
+    }
+
+    public long getFlagMask(int idx) {
+        return flags[idx];
+    }
+
+    public String[] getFlagNames() {
+        return flagNames.clone();
+    }
+
+    /**
+     * The bitmask for a set of flags in this table, for testing with hasFlags.  A flag the table doesn't know gives
+     * a mask no router matches.
+     */
+    public long flagMask(String... names) {
+        long mask = 0;
+        for (String n : names) {
+            int bit = Arrays.asList(flagNames).indexOf(n);
+            if (bit < 0)
+                return -1L; // can't be matched - routers use at most flagNames.length bits
+            mask |= 1L << bit;
+        }
+        return mask;
+    }
+
+    public boolean hasFlags(int idx, long mask) {
+        return mask != -1L && (flags[idx] & mask) == mask;
+    }
+
+    // ---- views ----
+
+    /**
+     * The router at idx as an OnionRouter, created on use.  The same object is returned for as long as something
+     * else holds on to it.
+     */
+    public synchronized OnionRouter get(int idx) {
+        if (views == null)
+            views = new View[count];
+        View v;
+        while ((v = (View) collected.poll()) != null)
+            if (views[v.idx] == v)
+                views[v.idx] = null;
+        OnionRouter r = views[idx] == null ? null : views[idx].get();
+        if (r != null)
+            return r;
+
+        r = new OnionRouter(names[idx], getFingerprint(idx), ipv4[idx], getORPort(idx), getDirPort(idx));
+        long mask = flags[idx];
+        for (int i = 0; i < flagNames.length; i++)
+            if ((mask & (1L << i)) != 0)
+                r.flags.add(flagNames[i]);
+        r.version = versions[idx];
+        r.consensusIPv4ExitPortSummary = exitSummaries[idx];
+        r.bandwidth = bandwidth[idx];
+        r.descriptorDigest = digest(descriptorDigests, 20, idx);
+        r.microdescDigest = digest(microdescDigests, 32, idx);
+        views[idx] = new View(r, idx, collected);
+        return r;
+    }
+
+    // a digest column entry, null if absent (all zeros)
+    private static byte[] digest(byte col[], int len, int idx) {
+        if (col == null)
+            return null;
+        for (int i = len * idx; i < len * idx + len; i++)
+            if (col[i] != 0)
+                return Arrays.copyOfRange(col, len * idx, len * idx + len);
+        return null;
+    }
+
+    /**
+     * A read-only map view keyed by hex identity, in the same order as Consensus.routers
+     */
+    public SortedMap<String, OnionRouter> asMap() {
+        return new RouterListMap() {
+            @Override
+            int count() {
+                return count;
+            }
+
+            @Override
+            int indexOf(String identityhex) {
+                return RouterTable.this.indexOf(identityhex);
+            }
+
+            @Override
+            OnionRouter router(int idx) {
+                return RouterTable.this.get(idx);
+            }
+
+            @Override
+            String identity(int idx) {
+                return getIdentity(idx);
+            }
+        };
+    }
+}
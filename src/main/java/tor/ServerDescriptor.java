@@ -0,0 +1,83 @@
+/*
+        Tor Research Framework - easy to use tor client library/framework
+        Copyright (C) 2014  Dr Gareth Owen <drgowen@gmail.com>
+        www.ghowen.me / github.com/drgowen/tor-research-framework
+
+        This program is free software: you can redistribute it and/or modify
+        it under the terms of the GNU General Public License as published by
+        the Free Software Foundation, either version 3 of the License, or
+        (at your option) any later version.
+
+        This program is distributed in the hope that it will be useful,
+        but WITHOUT ANY WARRANTY; without even the implied warranty of
+        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+        GNU General Public License for more details.
+
+        You should have received a copy of the GNU General Public License
+        along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package tor;
+
+import org.apache.commons.codec.binary.Base64;
+import tor.util.MiscUtil;
+import tor.util.TorDocumentParser;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.PublicKey;
+
+/**
+ * The parts of a server descriptor we use, parsed and with keys decoded, so parsing can happen off the thread
+ * that applies it to an OnionRouter.
+ */
+public class ServerDescriptor {
+    final static Charset UTF8 = Charset.forName("UTF-8");
+
+    public final byte raw[];
+    public final byte digest[];
+    public final String fingerprint; // hex, from the fingerprint line (null if absent)
+    public final byte onionKeyRaw[], signKeyRaw[];
+    public final PublicKey onionKey;
+    public final String family;
+    public final String ipv4Policy[]; // null if the descriptor has no accept/reject lines
+
+    private ServerDescriptor(byte raw[], TorDocumentParser rdr) {
+        this.raw = raw;
+        this.digest = DescriptorStore.digest(raw, 0, raw.length);
+        String fp = rdr.getItem("fingerprint");
+        this.fingerprint = fp == null ? null : fp.replace(" ", "").toLowerCase();
+        String ok = rdr.getItem("onion-key");
+        this.onionKeyRaw = ok == null ? null : Base64.decodeBase64(ok);
+        this.onionKey = onionKeyRaw == null ? null : TorCrypto.asn1GetPublicKey(onionKeyRaw);
+        String sk = rdr.getItem("signing-key");
+        this.signKeyRaw = sk == null ? null : Base64.decodeBase64(sk);
+        this.family = rdr.getItem("family");
+        String rules = rdr.getItem(TorDocumentParser.IPv4PolicyKey);
+        this.ipv4Policy = rules == null ? null : rules.split("\\|");
+    }
+
+    /**
+     * @param raw A single descriptor
+     */
+    public static ServerDescriptor parse(byte raw[]) throws IOException {
+        return new ServerDescriptor(raw, new TorDocumentParser(new String(raw, UTF8)));
+    }
+
+    public String getDigestHex() {
+        return digest == null ? null : MiscUtil.toHex(digest);
+    }
+
+    /**
+     * Copies keys, family and exit policy to the router
+     */
+    public void applyTo(OnionRouter r) {
+        r.onionKeyRaw = onionKeyRaw;
+        r.onionKey = onionKey;
+        r.signKeyRaw = signKeyRaw;
+        r.setFamily(family);
+        if (ipv4Policy != null) {
+            r.descriptorIPv4ExitPolicy = ipv4Policy;
+            r.descriptorPolicy = null; // recompiled on next use
+        }
+    }
+}
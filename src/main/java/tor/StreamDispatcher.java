@@ -0,0 +1,237 @@
+/*
+        Tor Research Framework - easy to use tor client library/framework
+        Copyright (C) 2014  Dr Gareth Owen <drgowen@gmail.com>
+        www.ghowen.me / github.com/drgowen/tor-research-framework
+
+        This program is free software: you can redistribute it and/or modify
+        it under the terms of the GNU General Public License as published by
+        the Free Software Foundation, either version 3 of the License, or
+        (at your option) any later version.
+
+        This program is distributed in the hope that it will be useful,
+        but WITHOUT ANY WARRANTY; without even the implied warranty of
+        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+        GNU General Public License for more details.
+
+        You should have received a copy of the GNU General Public License
+        along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package tor;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import tor.util.TorCircuitException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+
+/**
+ * Spreads new streams over a set of READY circuits.
+ *
+ * Each createStream() goes to the circuit with the lowest estimated time to drain what it's already carrying
+ * (unacknowledged cells plus open streams, divided by its recent receive rate).  Circuits that look stalled -
+ * a stream stuck connecting for longer than STALL_TIMEOUT, or an exhausted send window - get no new streams.
+ *
+ * Streams with an isolation key (e.g. a SOCKS username) only share circuits with streams with the same key;
+ * a circuit is bound to the key of the first stream placed on it.  If no circuit is usable and a CircuitFactory
+ * has been set, a new circuit is built.
+ */
+public class StreamDispatcher {
+    final static Logger log = LogManager.getLogger();
+
+    // ms a stream may wait for RELAY_CONNECTED before its circuit is considered stalled
+    public static long STALL_TIMEOUT = 10000;
+    // a new stream is charged as if this many cells were already queued for it
+    public static int STREAM_COST_CELLS = 10;
+    // rate assumed for circuits we haven't measured yet (bytes/sec)
+    public static double DEFAULT_RATE = 50000;
+
+    public interface CircuitFactory {
+        /**
+         * @return a newly built, READY circuit
+         */
+        public TorCircuit newCircuit() throws IOException;
+    }
+
+    // key used for circuits carrying streams without an isolation key (an empty key is the same as no key)
+    private static final String NO_ISOLATION = "";
+
+    ArrayList<TorCircuit> circuits = new ArrayList<>();
+    // isolation key each circuit is bound to (absent = not bound yet)
+    IdentityHashMap<TorCircuit, String> circuitKeys = new IdentityHashMap<>();
+    CircuitFactory factory = null;
+
+    public StreamDispatcher() {
+    }
+
+    public StreamDispatcher(CircuitFactory factory) {
+        this.factory = factory;
+    }
+
+    public synchronized void setCircuitFactory(CircuitFactory factory) {
+        this.factory = factory;
+    }
+
+    public synchronized void addCircuit(TorCircuit circ) {
+        if (!circuits.contains(circ))
+            circuits.add(circ);
+    }
+
+    public synchronized void removeCircuit(TorCircuit circ) {
+        circuits.remove(circ);
+        circuitKeys.remove(circ);
+    }
+
+    /**
+     * @return the circuits currently managed
+     */
+    public synchronized ArrayList<TorCircuit> getCircuits() {
+        return new ArrayList<>(circuits);
+    }
+
+    public TorStream createStream(String host, int port, TorStream.TorStreamListener list) throws IOException {
+        return createStream(host, port, list, null);
+    }
+
+    /**
+     * Creates a stream on the best available circuit
+     *
+     * @param host         Hostname/ip
+     * @param port         Port
+     * @param list         A listener for stream events
+     * @param isolationKey Streams with different keys never share a circuit (null for no isolation)
+     * @return TorStream object
+     */
+    public TorStream createStream(String host, int port, TorStream.TorStreamListener list, String isolationKey) throws IOException {
+        return createStream(host, port, list, isolationKey, false);
+    }
+
+    /**
+     * Creates a stream on the best available circuit, optionally with optimistic data (see TorCircuit.createStream).
+     * If the exit refuses an optimistic stream before it connects, it's reopened on another circuit from this set.
+     *
+     * @param host         Hostname/ip
+     * @param port         Port
+     * @param list         A listener for stream events
+     * @param isolationKey Streams with different keys never share a circuit (null for no isolation)
+     * @param optimistic   Allow sending before the stream is connected
+     * @return TorStream object
+     */
+    public TorStream createStream(String host, int port, TorStream.TorStreamListener list, String isolationKey, boolean optimistic) throws IOException {
+        TorStream st = selectCircuit(isolationKey).createStream(host, port, list, optimistic);
+        st.dispatcher = this;
+        st.isolationKey = isolationKey;
+        return st;
+    }
+
+    /**
+     * Picks the circuit a new stream with the given isolation key should use
+     *
+     * @param isolationKey Isolation key (null for no isolation)
+     * @return circuit
+     * @throws TorCircuitException if no circuit is usable and none could be built
+     */
+    public TorCircuit selectCircuit(String isolationKey) throws IOException {
+        return selectCircuit(isolationKey, null);
+    }
+
+    /**
+     * Picks the circuit a new stream with the given isolation key should use, avoiding some circuits
+     *
+     * @param isolationKey Isolation key (null for no isolation)
+     * @param exclude      Circuits not to use, e.g. ones whose exit has already refused this stream (may be null)
+     * @return circuit
+     * @throws TorCircuitException if no circuit is usable and none could be built
+     */
+    public TorCircuit selectCircuit(String isolationKey, Collection<TorCircuit> exclude) throws IOException {
+        String key = isolationKey == null ? NO_ISOLATION : isolationKey;
+        CircuitFactory f;
+        synchronized (this) {
+            TorCircuit best = pick(key, exclude);
+            if (best != null) {
+                circuitKeys.put(best, key);
+                return best;
+            }
+            f = factory;
+        }
+        if (f == null)
+            throw new TorCircuitException("no usable circuit for stream");
+
+        // built without holding the lock - other streams shouldn't wait for a circuit build
+        log.debug("No usable circuit for new stream - building one");
+        TorCircuit c = f.newCircuit();
+        synchronized (this) {
+            addCircuit(c);
+            circuitKeys.put(c, key);
+        }
+        return c;
+    }
+
+    // the best usable circuit for key, or null
+    private synchronized TorCircuit pick(String key, Collection<TorCircuit> exclude) {
+        TorCircuit best = null;
+        double bestCost = Double.MAX_VALUE;
+        TorCircuit unbound = null;
+        double unboundCost = Double.MAX_VALUE;
+
+        for (TorCircuit c : new ArrayList<>(circuits)) {
+            if (c.state == TorCircuit.STATES.DESTROYED) {
+                removeCircuit(c);
+                continue;
+            }
+            if (c.state != TorCircuit.STATES.READY || isStalled(c) || (exclude != null && exclude.contains(c)))
+                continue;
+
+            double cost = cost(c);
+            String bound = circuitKeys.get(c);
+            if (bound == null) {
+                if (cost < unboundCost) {
+                    unbound = c;
+                    unboundCost = cost;
+                }
+            } else if (bound.equals(key) && cost < bestCost) {
+                best = c;
+                bestCost = cost;
+            }
+        }
+
+        // prefer an idle unbound circuit over a busier one already bound to this key
+        if (unbound != null && (best == null || unboundCost < bestCost))
+            best = unbound;
+        return best;
+    }
+
+    /**
+     * Estimated time (seconds) for a circuit to drain what it's already carrying - lower is better.
+     *
+     * @param c Circuit
+     * @return cost
+     */
+    double cost(TorCircuit c) {
+        long inFlightCells = Math.max(0, 1000 - c.sendWindow) + (long) c.getStreamCount() * STREAM_COST_CELLS;
+        double rate = c.getRecvRate() > 0 ? c.getRecvRate() : DEFAULT_RATE;
+        return inFlightCells * TorStream.MAX_DATA_LEN / rate;
+    }
+
+    /**
+     * Whether a circuit should be skipped for new streams
+     *
+     * @param c Circuit
+     * @return stalled
+     */
+    boolean isStalled(TorCircuit c) {
+        if (c.sendWindow <= 0)
+            return true;
+
+        long now = System.currentTimeMillis();
+        for (TorStream st : c.streams.values()) {
+            if (st.state == TorStream.STATES.CONNECTING && now - st.created > STALL_TIMEOUT) {
+                log.debug("Circuit {} looks stalled - stream {} still connecting", c.circId, st.streamId);
+                return true;
+            }
+        }
+        return false;
+    }
+}
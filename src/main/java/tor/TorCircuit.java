@@ -24,14 +24,18 @@ import org.apache.logging.log4j.Logger;
 import org.bouncycastle.util.encoders.Hex;
 import tor.util.TorCircuitException;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.LinkedList;
-import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 
 public class TorCircuit {
 
@@ -58,7 +62,6 @@ public class TorCircuit {
     public static final int RELAY_COMMAND_RENDEZVOUS_ESTABLISHED = 39;
     public static final int RELAY_COMMAND_INTRODUCE_ACK = 40;
     final static Logger log = LogManager.getLogger();
-    public static short streamId_counter = 1;
     public static String[] DESTROY_ERRORS = {"NONE", "PROTOCOL", "INTERNAL", "REQUESTED", "HIBERNATING",
             "RESOURCELIMIT", "CONNECTFAILED", "OR_IDENTITY", "OR_CONN_CLOSED",
             "FINISHED", "TIMEOUT", "DESTROYED", "NOSUCHSERVICE"};
@@ -67,6 +70,8 @@ public class TorCircuit {
             "REASON_NOROUTE", "REASON_HIBERNATING", "REASON_INTERNAL",
             "REASON_RESOURCELIMIT", "REASON_CONNRESET", "REASON_TORPROTOCOL",
             "REASON_NOTDIRECTORY"};
+    public static final int REASON_RESOLVEFAILED = 2;
+    public static final int REASON_EXITPOLICY = 4;
     private static int circId_counter = 1;
     // temp vars for created/extended
     public BigInteger temp_x;
@@ -83,8 +88,12 @@ public class TorCircuit {
     public long sendWindow = 1000;
     long circId = 0;
     boolean blocking = false;
-    // list of active streams for this circuit
-    TreeMap<Integer, TorStream> streams = new TreeMap<>();
+    // outstanding RELAY_RESOLVE requests, by stream id
+    ConcurrentHashMap<Integer, PendingResolve> pendingResolves = new ConcurrentHashMap<>();
+    // list of active streams for this circuit (concurrent - streams are opened by user threads, closed by the receive thread)
+    ConcurrentSkipListMap<Integer, TorStream> streams = new ConcurrentSkipListMap<>();
+    // next stream ID to try (1-65535 - 0 is for circuit-level cells)
+    private int nextStreamId = 1;
     // streams with packets to send
     /**
      *
@@ -102,6 +111,12 @@ public class TorCircuit {
      */
     long sentPackets = 0;
     long sentBytes = 0;
+    // received RELAY_DATA bytes and an EWMA of the receive rate in bytes/sec (used by StreamDispatcher)
+    long recvDataBytes = 0;
+    long lastDataReceived = 0;
+    double recvRate = 0;
+    private long rateBucketStart = 0;
+    private long rateBucketBytes = 0;
     // this circuit hop
     private LinkedList<OnionRouter> circuitToBuild = new LinkedList<>();
     public ArrayList<TorHop> hops = new ArrayList<>();
@@ -256,6 +271,34 @@ public class TorCircuit {
      * @return Constructed relay payload
      */
     protected synchronized byte[] buildRelay(TorHop toHop, int cmd, short stream, byte[] payload) {
+        return buildRelay(toHop, cmd, stream, payload, 0, payload == null ? 0 : payload.length);
+    }
+
+    /**
+     * Builds a relay cell payload from a slice of the supplied array (not including cell header, only relay header)
+     *
+     * @param toHop   Hop that it's destined for
+     * @param cmd     Command ID, see RELAY_
+     * @param stream  Stream ID
+     * @param payload Array containing relay cell data
+     * @param off     Offset of relay cell data in payload
+     * @param len     Length of relay cell data
+     * @return Constructed relay payload
+     */
+    protected synchronized byte[] buildRelay(TorHop toHop, int cmd, short stream, byte[] payload, int off, int len) {
+        return buildRelay(toHop, cmd, stream, payload == null ? null : ByteBuffer.wrap(payload, off, len));
+    }
+
+    /**
+     * Builds a relay cell payload from the remaining bytes of a buffer (heap or direct)
+     *
+     * @param toHop   Hop that it's destined for
+     * @param cmd     Command ID, see RELAY_
+     * @param stream  Stream ID
+     * @param payload Relay cell data, consumed from position to limit (may be null)
+     * @return Constructed relay payload
+     */
+    protected synchronized byte[] buildRelay(TorHop toHop, int cmd, short stream, ByteBuffer payload) {
         byte[] fnl = new byte[509];
         ByteBuffer buf = ByteBuffer.wrap(fnl);
         buf.put((byte) cmd);
@@ -264,7 +307,7 @@ public class TorCircuit {
         buf.putInt(0); // digest
 
         if (payload != null) {
-            buf.putShort((short) payload.length);
+            buf.putShort((short) payload.remaining());
             buf.put(payload);
         } else {
             buf.putShort((short) 0);
@@ -391,8 +434,7 @@ public class TorCircuit {
             throw new RuntimeException("Trying to use destroyed circuit");
         }
 
-        //TODO: allocate stream and circuit IDS properly
-        int stid = streamId_counter++;
+        int stid = allocateStreamId();
         send(null, RELAY_BEGIN_DIR, false, (short) stid);
         TorStream st = new TorStream(stid, this, list);
         streams.put(stid, st);
@@ -408,26 +450,201 @@ public class TorCircuit {
      * @return TorStream object
      */
     public TorStream createStream(String host, int port, TorStream.TorStreamListener list) throws IOException {
+        return createStream(host, port, list, false);
+    }
+
+    /**
+     * Creates a stream using this circuit and connects to a host, optionally with optimistic data.
+     * <p/>
+     * With optimistic data, anything sent before RELAY_CONNECTED goes out straight behind the RELAY_BEGIN, saving a
+     * round trip.  A copy is kept until the stream connects, so if the exit refuses the destination (exit policy or
+     * resolve failure) a stream created through a StreamDispatcher is reopened on another circuit and the data replayed.
+     *
+     * @param host       Hostname/ip
+     * @param port       Port
+     * @param list       A listener for stream events
+     * @param optimistic Allow sending before the stream is connected
+     * @return TorStream object
+     */
+    public TorStream createStream(String host, int port, TorStream.TorStreamListener list, boolean optimistic) throws IOException {
         if (state == STATES.DESTROYED) {
             log.error("Trying to use destroyed circuit");
             throw new RuntimeException("Trying to use destroyed circuit");
         }
 
-        byte b[] = new byte[100];
+        TorStream st = new TorStream(0, this, list);
+        st.host = host;
+        st.port = port;
+        if (optimistic)
+            st.optimisticData = new ByteArrayOutputStream();
+        beginStream(st);
+        return st;
+    }
+
+    /**
+     * Allocates a stream ID that isn't used by an open stream or pending resolve on this circuit
+     *
+     * @throws RuntimeException if all 65535 are in use
+     */
+    synchronized int allocateStreamId() {
+        for (int i = 0; i < 65535; i++) {
+            int id = nextStreamId;
+            nextStreamId = id == 65535 ? 1 : id + 1;
+            if (!streams.containsKey(id) && !pendingResolves.containsKey(id))
+                return id;
+        }
+        throw new RuntimeException("no free stream IDs on circuit " + circId);
+    }
+
+    /**
+     * Allocates a stream ID on this circuit for st and sends its RELAY_BEGIN
+     *
+     * @param st Stream (host and port already set)
+     */
+    void beginStream(TorStream st) throws IOException {
+        byte target[] = (st.host + ":" + st.port).getBytes("UTF-8");
+        byte b[] = new byte[target.length + 1 + 4];
         ByteBuffer buf = ByteBuffer.wrap(b);
-        buf.put((host + ":" + port).getBytes("UTF-8"));
+        buf.put(target);
         buf.put((byte) 0); // null terminator
-        buf.putInt(0);
-        //TODO: allocate stream and circuit IDS properly
-        int stid = streamId_counter++;
-        send(b, RELAY_BEGIN, false, (short) stid);
-        TorStream st = new TorStream(stid, this, list);
+        buf.putInt(0); // flags
+        int stid = allocateStreamId();
+        st.streamId = stid;
+        st.circ = this;
+        // register before sending so a quick RELAY_CONNECTED isn't dropped
         streams.put(stid, st);
-        return st;
+        send(b, RELAY_BEGIN, false, (short) stid);
+    }
+
+    /**
+     * Listener for RELAY_RESOLVE results.  Called on the TorSocket receive thread, so don't block in it.
+     */
+    public interface ResolveListener {
+        /**
+         * @param host      Hostname that was resolved
+         * @param addresses IPv4/IPv6 addresses returned by the exit
+         * @param ttl       Lowest TTL of the answers in seconds
+         */
+        public void resolved(String host, InetAddress[] addresses, int ttl);
+
+        /**
+         * @param host      Hostname that failed to resolve
+         * @param temporary Whether the failure may go away if retried (e.g. circuit failure, transient DNS error)
+         */
+        public void failed(String host, boolean temporary);
+    }
+
+    static class PendingResolve {
+        String host;
+        ResolveListener listener;
+
+        PendingResolve(String host, ResolveListener listener) {
+            this.host = host;
+            this.listener = listener;
+        }
+    }
+
+    /**
+     * Asks the exit to resolve a hostname (RELAY_RESOLVE).  See TorResolver for a cached, blocking version.
+     *
+     * @param host Hostname
+     * @param list Listener told of the result
+     * @return the stream ID used, for cancelResolve
+     */
+    public int resolve(String host, ResolveListener list) throws IOException {
+        if (state == STATES.DESTROYED) {
+            log.error("Trying to use destroyed circuit");
+            throw new RuntimeException("Trying to use destroyed circuit");
+        }
+
+        byte hostBytes[] = host.getBytes("UTF-8");
+        byte b[] = new byte[hostBytes.length + 1]; // null terminated
+        System.arraycopy(hostBytes, 0, b, 0, hostBytes.length);
+
+        int stid = allocateStreamId();
+        pendingResolves.put(stid, new PendingResolve(host, list));
+        send(b, RELAY_RESOLVE, false, (short) stid);
+        return stid;
+    }
+
+    /**
+     * Forgets a resolve that's no longer wanted (e.g. timed out) - its listener won't be called
+     *
+     * @param stid Stream ID returned by resolve
+     */
+    public void cancelResolve(int stid) {
+        pendingResolves.remove(stid);
+    }
+
+    /**
+     * Parses a RELAY_RESOLVED payload - a list of (type, length, value, TTL) answers
+     *
+     * @param r       The request being answered
+     * @param payload Cell payload
+     */
+    private void handleResolved(PendingResolve r, byte[] payload) {
+        ArrayList<InetAddress> addrs = new ArrayList<>();
+        int ttl = Integer.MAX_VALUE;
+        boolean transientError = false, error = false;
+
+        ByteBuffer buf = ByteBuffer.wrap(payload);
+        while (buf.remaining() >= 2) {
+            int type = buf.get() & 0xff;
+            int len = buf.get() & 0xff;
+            if (buf.remaining() < len + 4)
+                break;
+            byte val[] = new byte[len];
+            buf.get(val);
+            int answerTtl = buf.getInt();
+
+            if ((type == 4 && len == 4) || (type == 6 && len == 16)) {
+                try {
+                    addrs.add(InetAddress.getByAddress(r.host, val));
+                    ttl = Math.min(ttl, answerTtl);
+                } catch (UnknownHostException e) {
+                    // can't happen - length checked above
+                }
+            } else if (type == 0xf0) {
+                transientError = true;
+            } else if (type == 0xf1) {
+                error = true;
+            }
+        }
+
+        if (!addrs.isEmpty())
+            r.listener.resolved(r.host, addrs.toArray(new InetAddress[addrs.size()]), ttl);
+        else
+            r.listener.failed(r.host, transientError || !error);
     }
 
     // must be synchronised due to hash calculation - out of sync = bad
     public synchronized void send(byte[] payload, int relaytype, boolean early, short stream) throws IOException {
+        send(payload, 0, payload == null ? 0 : payload.length, relaytype, early, stream);
+    }
+
+    /**
+     * Sends a slice of an array as a relay cell, avoiding a copy of the slice before it's packed into the cell
+     *
+     * @param payload   Array containing relay payload (may be null)
+     * @param off       Offset of relay payload in array
+     * @param len       Length of relay payload
+     * @param relaytype Type of relay cell (see RELAY_)
+     * @param early     Whether to use an early cell (needed for EXTEND only)
+     * @param stream    Stream ID
+     */
+    public synchronized void send(byte[] payload, int off, int len, int relaytype, boolean early, short stream) throws IOException {
+        sendBuffer(payload == null ? null : ByteBuffer.wrap(payload, off, len), relaytype, early, stream);
+    }
+
+    /**
+     * Sends the remaining bytes of a buffer (heap or direct) as a relay cell
+     *
+     * @param payload   Relay payload, consumed from position to limit (may be null)
+     * @param relaytype Type of relay cell (see RELAY_)
+     * @param early     Whether to use an early cell (needed for EXTEND only)
+     * @param stream    Stream ID
+     */
+    public synchronized void sendBuffer(ByteBuffer payload, int relaytype, boolean early, short stream) throws IOException {
         if (state == STATES.DESTROYED) {
             log.error("Trying to use destroyed circuit");
             throw new RuntimeException("Trying to use destroyed circuit");
@@ -560,7 +777,7 @@ public class TorCircuit {
                 log.warn("invalid relay cell");
                 return false;
             }
-            int streamid = buf.getShort();
+            int streamid = buf.getShort() & 0xffff;
 
             int digest = buf.getInt();
             int length = buf.getShort();
@@ -575,6 +792,10 @@ public class TorCircuit {
             for (TorStream s : streams.values()) {
                 s.notifyDisconnect();
             }
+            for (PendingResolve r : pendingResolves.values()) {
+                r.listener.failed(r.host, true);
+            }
+            pendingResolves.clear();
             setState(STATES.DESTROYED);
             handled = true;
         }
@@ -597,6 +818,18 @@ public class TorCircuit {
 
         log.trace("Got RELAY cell with streamId{} cmdID {}", streamId, cmdId);
 
+        // resolves use a stream id, but no stream
+        if (cmdId == RELAY_RESOLVED || (cmdId == RELAY_END && stream == null)) {
+            PendingResolve r = pendingResolves.remove(streamId);
+            if (r != null) {
+                if (cmdId == RELAY_RESOLVED)
+                    handleResolved(r, payload);
+                else
+                    r.listener.failed(r.host, true);
+                return true;
+            }
+        }
+
         if (streamId > 0 && stream == null) {
             log.info("invalid stream id " + streamId);
             return false;
@@ -660,6 +893,7 @@ public class TorCircuit {
             case RELAY_DATA:
                 if (state == STATES.READY)
                     receiveWindow--;
+                updateRecvRate(payload.length);
                 if (stream != null)
                     stream._putRecved(payload);
                 break;
@@ -667,8 +901,9 @@ public class TorCircuit {
                 if (payload[0] != 6)
                     log.info("Remote stream closed with error code " + STREAM_ERRORS[payload[0]]);
                 if (stream != null) {
-                    stream.notifyDisconnect();
                     streams.remove(new Integer(streamId));
+                    if (!stream.retryElsewhere(payload[0]))
+                        stream.notifyDisconnect();
                 }
                 break;
             default:
@@ -679,6 +914,43 @@ public class TorCircuit {
 
     }
 
+    /**
+     * Updates the received data counters and receive rate estimate
+     *
+     * @param len Bytes of RELAY_DATA received
+     */
+    private void updateRecvRate(int len) {
+        long now = System.currentTimeMillis();
+        if (rateBucketStart == 0)
+            rateBucketStart = now;
+
+        // fold each (roughly) one second bucket into the average
+        if (now - rateBucketStart >= 1000) {
+            double rate = rateBucketBytes * 1000.0 / (now - rateBucketStart);
+            recvRate = recvRate == 0 ? rate : 0.7 * recvRate + 0.3 * rate;
+            rateBucketStart = now;
+            rateBucketBytes = 0;
+        }
+
+        rateBucketBytes += len;
+        recvDataBytes += len;
+        lastDataReceived = now;
+    }
+
+    /**
+     * @return estimated recent receive rate for this circuit in bytes/sec (0 if nothing measured yet)
+     */
+    public double getRecvRate() {
+        return recvRate;
+    }
+
+    /**
+     * @return number of open streams on this circuit
+     */
+    public int getStreamCount() {
+        return streams.size();
+    }
+
     public enum STATES {NONE, CREATING, EXTENDING, READY, DESTROYED, RENDEZVOUS_WAIT, RENDEZVOUS_ESTABLISHED, RENDEZVOUS_COMPLETE, INTRODUCED}
 
 }
@@ -0,0 +1,220 @@
+/*
+        Tor Research Framework - easy to use tor client library/framework
+        Copyright (C) 2014  Dr Gareth Owen <drgowen@gmail.com>
+        www.ghowen.me / github.com/drgowen/tor-research-framework
+
+        This program is free software: you can redistribute it and/or modify
+        it under the terms of the GNU General Public License as published by
+        the Free Software Foundation, either version 3 of the License, or
+        (at your option) any later version.
+
+        This program is distributed in the hope that it will be useful,
+        but WITHOUT ANY WARRANTY; without even the implied warranty of
+        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+        GNU General Public License for more details.
+
+        You should have received a copy of the GNU General Public License
+        along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package tor;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import tor.util.HTTPResponse;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * HTTP/1.1 directory client over BEGIN_DIR streams.
+ *
+ * A circuit is kept open per directory and reused for later requests.  Once a directory shows it keeps
+ * connections alive, further requests go down the same stream and batches are pipelined; otherwise (tor's own
+ * dirserver answers HTTP/1.0 and closes) each request gets a fresh BEGIN_DIR stream on the existing circuit,
+ * which costs one round trip rather than a whole circuit build.
+ *
+ * Bodies are de-chunked and inflated as they are read.
+ */
+public class TorDirectoryClient {
+    final static Logger log = LogManager.getLogger();
+
+    public static String HOST = "dirreq";
+    // failed attempts (errors, or the directory closing without answering) allowed per call, in total
+    public static int MAX_RETRIES = 2;
+
+    TorSocket sock;
+    // keyed by router identity, "" for the one-hop circuit to the first hop
+    HashMap<String, DirConnection> connections = new HashMap<>();
+
+    class DirConnection {
+        OnionRouter dir;
+        TorCircuit circ;
+        TorStream stream;
+        BufferedInputStream in;
+        boolean keepAlive = false; // learnt from the responses
+
+        DirConnection(OnionRouter dir) {
+            this.dir = dir;
+        }
+
+        void openCircuit() throws IOException {
+            circ = sock.createCircuit(true);
+            circ.create();
+            if (dir != null)
+                circ.extend(dir);
+        }
+
+        void openStream() throws IOException {
+            if (circ == null || circ.state == TorCircuit.STATES.DESTROYED)
+                openCircuit();
+            stream = circ.createDirStream(null);
+            if (stream.getState() != TorStream.STATES.READY)
+                stream.waitForState(TorStream.STATES.READY);
+            in = new BufferedInputStream(stream.getInputStream(), 16384);
+        }
+
+        void closeStream() {
+            if (stream != null && stream.getState() != TorStream.STATES.DESTROYED) {
+                try {
+                    stream.destroy();
+                } catch (IOException e) {
+                    log.debug("closing dir stream: {}", e.getMessage());
+                }
+            }
+            stream = null;
+            in = null;
+        }
+
+        void close() {
+            closeStream();
+            if (circ != null && circ.state != TorCircuit.STATES.DESTROYED) {
+                try {
+                    circ.destroy();
+                } catch (IOException e) {
+                    log.debug("closing dir circuit: {}", e.getMessage());
+                }
+            }
+            circ = null;
+        }
+    }
+
+    /**
+     * @param sock Connection to the first hop - all directory circuits are built through it
+     */
+    public TorDirectoryClient(TorSocket sock) {
+        this.sock = sock;
+    }
+
+    /**
+     * Fetches a single document
+     *
+     * @param dir  Directory to query, or null to ask the first hop over a one-hop circuit
+     * @param path Request path, e.g. /tor/server/all
+     * @return the response, with its body already read
+     */
+    public HTTPResponse get(OnionRouter dir, String path) throws IOException {
+        return get(dir, Collections.singletonList(path)).get(0);
+    }
+
+    /**
+     * Fetches several documents from one directory, pipelining them when the directory allows it
+     *
+     * @param dir   Directory to query, or null to ask the first hop over a one-hop circuit
+     * @param paths Request paths
+     * @return responses in request order, with their bodies already read
+     */
+    public List<HTTPResponse> get(OnionRouter dir, List<String> paths) throws IOException {
+        ArrayList<byte[]> reqs = new ArrayList<>();
+        for (String p : paths)
+            reqs.add(buildRequest("GET", p, null));
+        return execute(dir, reqs);
+    }
+
+    /**
+     * Posts a document, e.g. a hidden service descriptor to /tor/rendezvous2/publish
+     *
+     * @param dir Directory to post to, or null for the first hop
+     */
+    public HTTPResponse post(OnionRouter dir, String path, String body) throws IOException {
+        return execute(dir, Collections.singletonList(buildRequest("POST", path, body.getBytes("UTF-8")))).get(0);
+    }
+
+    /**
+     * Destroys all cached circuits
+     */
+    public synchronized void close() {
+        for (DirConnection c : connections.values())
+            c.close();
+        connections.clear();
+    }
+
+    private synchronized List<HTTPResponse> execute(OnionRouter dir, List<byte[]> reqs) throws IOException {
+        String key = dir == null ? "" : dir.identityhash;
+        DirConnection conn = connections.get(key);
+        if (conn == null) {
+            conn = new DirConnection(dir);
+            connections.put(key, conn);
+        }
+
+        ArrayList<HTTPResponse> results = new ArrayList<>();
+        int failures = 0;
+        while (results.size() < reqs.size()) {
+            try {
+                if (conn.stream == null || conn.stream.getState() == TorStream.STATES.DESTROYED)
+                    conn.openStream();
+
+                // only pipeline once we know the connection survives a response
+                int first = results.size();
+                int n = conn.keepAlive ? reqs.size() - first : 1;
+                for (int i = first; i < first + n; i++)
+                    conn.stream.send(reqs.get(i));
+
+                for (int i = 0; i < n; i++) {
+                    HTTPResponse r = HTTPResponse.read(conn.in);
+                    if (r == null) // closed before answering - counts as a failed attempt
+                        throw new EOFException("directory closed the connection without answering");
+                    r.readBody();
+                    results.add(r);
+                    conn.keepAlive = r.isKeepAlive();
+                    if (!conn.keepAlive)
+                        break;
+                }
+                if (!conn.keepAlive)
+                    conn.closeStream();
+            } catch (IOException | RuntimeException e) {
+                // circuit probably died - rebuild it and resend what's left, up to MAX_RETRIES times per call
+                conn.close();
+                conn.keepAlive = false;
+                if (++failures > MAX_RETRIES) {
+                    connections.remove(key);
+                    throw e instanceof IOException ? (IOException) e : new IOException(e);
+                }
+                log.debug("directory connection to {} failed ({}), retrying", dir, e.getMessage());
+            }
+        }
+        return results;
+    }
+
+    private static byte[] buildRequest(String method, String path, byte body[]) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append(method).append(' ').append(path).append(" HTTP/1.1\r\n");
+        sb.append("Host: ").append(HOST).append("\r\n");
+        sb.append("Accept-Encoding: deflate, identity\r\n");
+        sb.append("Connection: keep-alive\r\n");
+        if (body != null)
+            sb.append("Content-Length: ").append(body.length).append("\r\n");
+        sb.append("\r\n");
+
+        ByteArrayOutputStream req = new ByteArrayOutputStream();
+        req.write(sb.toString().getBytes("ISO-8859-1"));
+        if (body != null)
+            req.write(body);
+        return req.toByteArray();
+    }
+}
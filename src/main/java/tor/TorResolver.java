@@ -0,0 +1,326 @@
+/*
+        Tor Research Framework - easy to use tor client library/framework
+        Copyright (C) 2014  Dr Gareth Owen <drgowen@gmail.com>
+        www.ghowen.me / github.com/drgowen/tor-research-framework
+
+        This program is free software: you can redistribute it and/or modify
+        it under the terms of the GNU General Public License as published by
+        the Free Software Foundation, either version 3 of the License, or
+        (at your option) any later version.
+
+        This program is distributed in the hope that it will be useful,
+        but WITHOUT ANY WARRANTY; without even the implied warranty of
+        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+        GNU General Public License for more details.
+
+        You should have received a copy of the GNU General Public License
+        along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package tor;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.*;
+
+/**
+ * Resolves hostnames through Tor (RELAY_RESOLVE) behind a shared cache.
+ *
+ * Answers are cached for their TTL (capped at MAX_TTL) in a size-bounded LRU map, and names that definitely don't
+ * exist are cached for NEGATIVE_TTL.  Concurrent lookups of the same name share a single RELAY_RESOLVE cell, and a
+ * lookup with no answer after TIMEOUT fails (temporarily) so the name can be asked for again.  Lookups with an
+ * isolation key (see StreamDispatcher) go down circuits for that key and have their own cache entries.
+ * One resolver can be shared by any number of threads.
+ */
+public class TorResolver {
+    final static Logger log = LogManager.getLogger();
+
+    // maximum number of cached names
+    public static int MAX_ENTRIES = 4096;
+    // seconds to remember that a name doesn't exist
+    public static int NEGATIVE_TTL = 60;
+    // longest we'll trust an answer for, whatever TTL the exit gives (seconds)
+    public static int MAX_TTL = 3600;
+    // ms to wait for an answer before a lookup fails
+    public static long TIMEOUT = 30000;
+
+    // shared by all resolvers - only ever runs short expiry tasks
+    private static Timer timeoutTimer = null;
+
+    static class CacheEntry {
+        InetAddress addresses[]; // null for a negative entry
+        long expires;
+
+        CacheEntry(InetAddress[] addresses, long expires) {
+            this.addresses = addresses;
+            this.expires = expires;
+        }
+    }
+
+    // a RELAY_RESOLVE in flight, and everyone waiting for it
+    class Lookup implements TorCircuit.ResolveListener {
+        String key, host;
+        ArrayList<TorCircuit.ResolveListener> waiters = new ArrayList<>();
+        boolean finished = false;
+        TorCircuit circ = null;
+        int stid;
+        TimerTask timeout;
+
+        Lookup(String key, String host) {
+            this.key = key;
+            this.host = host;
+        }
+
+        @Override
+        public void resolved(String h, InetAddress[] addresses, int ttl) {
+            ttl = Math.max(0, Math.min(ttl, MAX_TTL));
+            for (TorCircuit.ResolveListener l : finish(new CacheEntry(addresses, System.currentTimeMillis() + ttl * 1000L)))
+                l.resolved(host, addresses, ttl);
+        }
+
+        @Override
+        public void failed(String h, boolean temporary) {
+            CacheEntry e = temporary ? null : new CacheEntry(null, System.currentTimeMillis() + NEGATIVE_TTL * 1000L);
+            for (TorCircuit.ResolveListener l : finish(e))
+                l.failed(host, temporary);
+        }
+
+        void timedOut() {
+            TorCircuit c;
+            synchronized (TorResolver.this) {
+                c = finished ? null : circ;
+            }
+            if (c != null)
+                c.cancelResolve(stid);
+            log.debug("Resolve of {} timed out", host);
+            failed(host, true);
+        }
+
+        // waiters to tell, or none if the lookup has already finished (answered or timed out)
+        private List<TorCircuit.ResolveListener> finish(CacheEntry e) {
+            synchronized (TorResolver.this) {
+                if (finished)
+                    return Collections.emptyList();
+                finished = true;
+                if (timeout != null)
+                    timeout.cancel();
+                if (inFlight.get(key) == this)
+                    inFlight.remove(key);
+                if (e != null)
+                    cache.put(key, e);
+                return waiters;
+            }
+        }
+    }
+
+    // keyed by cacheKey(isolation key, host)
+    final LinkedHashMap<String, CacheEntry> cache = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+    final HashMap<String, Lookup> inFlight = new HashMap<>();
+
+    TorCircuit circuit = null;
+    StreamDispatcher dispatcher = null;
+
+    /**
+     * @param circ Circuit to send resolves down
+     */
+    public TorResolver(TorCircuit circ) {
+        circuit = circ;
+    }
+
+    /**
+     * @param dispatcher Resolves are sent down whichever circuit the dispatcher picks
+     */
+    public TorResolver(StreamDispatcher dispatcher) {
+        this.dispatcher = dispatcher;
+    }
+
+    private static synchronized Timer getTimeoutTimer() {
+        if (timeoutTimer == null)
+            timeoutTimer = new Timer("TorResolver timeouts", true);
+        return timeoutTimer;
+    }
+
+    static String cacheKey(String isolationKey, String host) {
+        return (isolationKey == null ? "" : isolationKey) + "\0" + host;
+    }
+
+    /**
+     * Resolves a hostname, calling the listener when done (possibly immediately, on this thread).
+     *
+     * @param host Hostname or IP literal
+     * @param list Listener for the result
+     */
+    public void resolve(String host, TorCircuit.ResolveListener list) throws IOException {
+        resolve(host, null, list);
+    }
+
+    /**
+     * Resolves a hostname, calling the listener when done (possibly immediately, on this thread).
+     *
+     * @param host         Hostname or IP literal
+     * @param isolationKey Lookups with different keys never share a circuit or cache entries (null for none)
+     * @param list         Listener for the result
+     */
+    public void resolve(String host, String isolationKey, TorCircuit.ResolveListener list) throws IOException {
+        host = host.toLowerCase();
+
+        // IP literals need no lookup (getByName doesn't use DNS for them)
+        if (isIPLiteral(host)) {
+            list.resolved(host, new InetAddress[]{InetAddress.getByName(host)}, MAX_TTL);
+            return;
+        }
+
+        String key = cacheKey(isolationKey, host);
+        final Lookup lookup;
+        CacheEntry cached = null;
+        synchronized (this) {
+            CacheEntry e = cache.get(key);
+            if (e != null && e.expires > System.currentTimeMillis()) {
+                cached = e;
+                lookup = null;
+            } else {
+                if (e != null)
+                    cache.remove(key);
+
+                Lookup l = inFlight.get(key);
+                if (l != null) { // someone's already asked - wait for their answer
+                    l.waiters.add(list);
+                    return;
+                }
+                lookup = new Lookup(key, host);
+                lookup.waiters.add(list);
+                inFlight.put(key, lookup);
+                lookup.timeout = new TimerTask() {
+                    @Override
+                    public void run() {
+                        lookup.timedOut();
+                    }
+                };
+                getTimeoutTimer().schedule(lookup.timeout, TIMEOUT);
+            }
+        }
+
+        if (cached != null) {
+            int ttl = (int) ((cached.expires - System.currentTimeMillis()) / 1000);
+            if (cached.addresses != null)
+                list.resolved(host, cached.addresses, ttl);
+            else
+                list.failed(host, false);
+            return;
+        }
+
+        try {
+            TorCircuit circ = circuit != null ? circuit : dispatcher.selectCircuit(isolationKey);
+            log.debug("Resolving {} through circuit {}", host, circ.circId);
+            synchronized (this) {
+                lookup.circ = circ;
+            }
+            int stid = circ.resolve(host, lookup);
+            synchronized (this) {
+                lookup.stid = stid;
+                // timed out while we were sending - nothing will clear the circuit's entry otherwise
+                if (lookup.finished)
+                    circ.cancelResolve(stid);
+            }
+        } catch (IOException | RuntimeException e) {
+            log.warn("Failed to send resolve for " + host + ": " + e);
+            lookup.failed(host, true);
+        }
+    }
+
+    /**
+     * Resolves a hostname, blocking until the answer arrives (or TIMEOUT ms)
+     *
+     * @param host Hostname or IP literal
+     * @return addresses
+     * @throws UnknownHostException if the name couldn't be resolved
+     */
+    public InetAddress[] resolve(String host) throws IOException {
+        return resolve(host, (String) null);
+    }
+
+    /**
+     * Resolves a hostname, blocking until the answer arrives (or TIMEOUT ms)
+     *
+     * @param host         Hostname or IP literal
+     * @param isolationKey Lookups with different keys never share a circuit or cache entries (null for none)
+     * @return addresses
+     * @throws UnknownHostException   if the name couldn't be resolved
+     * @throws InterruptedIOException if the thread was interrupted while waiting
+     */
+    public InetAddress[] resolve(String host, String isolationKey) throws IOException {
+        final InetAddress result[][] = new InetAddress[1][];
+        final boolean done[] = new boolean[1];
+
+        resolve(host, isolationKey, new TorCircuit.ResolveListener() {
+            @Override
+            public void resolved(String host, InetAddress[] addresses, int ttl) {
+                synchronized (done) {
+                    result[0] = addresses;
+                    done[0] = true;
+                    done.notifyAll();
+                }
+            }
+
+            @Override
+            public void failed(String host, boolean temporary) {
+                synchronized (done) {
+                    done[0] = true;
+                    done.notifyAll();
+                }
+            }
+        });
+
+        // the lookup fails itself after TIMEOUT - this is only a backstop
+        long deadline = System.currentTimeMillis() + TIMEOUT + 1000;
+        synchronized (done) {
+            while (!done[0] && System.currentTimeMillis() < deadline) {
+                try {
+                    done.wait(Math.max(1, deadline - System.currentTimeMillis()));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted resolving " + host);
+                }
+            }
+        }
+
+        if (result[0] == null)
+            throw new UnknownHostException(host);
+        return result[0];
+    }
+
+    /**
+     * @return cached addresses for host, or null if there's no (positive) unexpired entry
+     */
+    public InetAddress[] getCached(String host) {
+        return getCached(host, null);
+    }
+
+    /**
+     * @param isolationKey Isolation key the lookup was made with (null for none)
+     * @return cached addresses for host, or null if there's no (positive) unexpired entry
+     */
+    public synchronized InetAddress[] getCached(String host, String isolationKey) {
+        CacheEntry e = cache.get(cacheKey(isolationKey, host.toLowerCase()));
+        if (e == null || e.expires <= System.currentTimeMillis())
+            return null;
+        return e.addresses;
+    }
+
+    public synchronized void clear() {
+        cache.clear();
+    }
+
+    static boolean isIPLiteral(String host) {
+        return host.indexOf(':') >= 0 || host.matches("\\d{1,3}(\\.\\d{1,3}){3}");
+    }
+}
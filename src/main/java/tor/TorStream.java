@@ -19,28 +19,57 @@
 
 package tor;
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import tor.util.ByteFifo;
 import tor.util.TorInputStream;
 import tor.util.TorOutputStream;
+import tor.util.TorStreamChannel;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 
 public class TorStream {
 
+    final static Logger log = LogManager.getLogger();
+    // times an optimistic stream refused by an exit is reopened on another circuit
+    public static int MAX_RETRIES = 2;
+
     int streamId;
     TorCircuit circ;
+    long created = System.currentTimeMillis();
+    String host;
+    int port;
+
+    // optimistic streams: copy of data sent before RELAY_CONNECTED (null once connected, or if not optimistic)
+    volatile ByteArrayOutputStream optimisticData = null;
+    // set by StreamDispatcher so a refused optimistic stream can be reopened elsewhere
+    StreamDispatcher dispatcher = null;
+    String isolationKey = null;
+    ArrayList<TorCircuit> triedCircuits = new ArrayList<>();
+    boolean retrying = false;
 
     public enum STATES {CONNECTING, READY, DESTROYED}
 
     ;
     STATES state = STATES.CONNECTING;
 
-    public ByteFifo recvBuffer = new ByteFifo(16384);
-    TorStreamListener listener;
+    // maximum RELAY_DATA payload (cell payload less relay header)
+    public final static int MAX_DATA_LEN = 509 - 1 - 2 - 2 - 4 - 2;
 
-    int recvWindow = 500;
+    final static int recvWindowStart = 500;
     final static int recvWindowIncrement = 50;
+    int recvWindow = recvWindowStart;
+
+    // grows to hold a full receive window - SENDMEs are only sent as data is read, so the exit can't overfill it
+    public ByteFifo recvBuffer = new ByteFifo(16384, recvWindowStart * MAX_DATA_LEN + 1);
+    // lengths of the cells in recvBuffer, oldest first, and how much of the oldest has been read
+    ArrayDeque<Integer> bufferedCells = new ArrayDeque<>();
+    int headConsumed = 0;
+    TorStreamListener listener;
 
     public TorInputStream getInputStream() {
         return in;
@@ -50,8 +79,36 @@ public class TorStream {
         return out;
     }
 
+    /**
+     * Returns a ByteChannel view of this stream, e.g. for moving bytes to/from a SocketChannel with reusable buffers.
+     * Register it with a TorChannelSelector to be told when it's readable.
+     *
+     * @return channel view of this stream
+     */
+    public synchronized TorStreamChannel getChannel() {
+        if (channel == null)
+            channel = new TorStreamChannel(this);
+        return channel;
+    }
+
+    /**
+     * Returns a demand-driven publisher view of this stream.  Stream SENDMEs are then only sent as the subscriber
+     * requests (consumes) cells, and received data is no longer available through the InputStream or channel.
+     *
+     * @return publisher for this stream
+     */
+    public synchronized TorStreamPublisher getPublisher() {
+        if (publisher == null)
+            publisher = new TorStreamPublisher(this);
+        return publisher;
+    }
+
     TorInputStream in;
     TorOutputStream out;
+    TorStreamChannel channel;
+    volatile TorStreamPublisher publisher;
+    // cells delivered to the publisher's subscriber that haven't been acknowledged with a SENDME yet
+    int consumedCells = 0;
 
     public TorStream(int streamId, TorCircuit circ, TorStreamListener list) {
         this.streamId = streamId;
@@ -62,6 +119,14 @@ public class TorStream {
         out = new TorOutputStream(this);
     }
 
+    public TorCircuit getCircuit() {
+        return circ;
+    }
+
+    public STATES getState() {
+        return state;
+    }
+
     public void setState(STATES newState) {
         synchronized (this) {
             state = newState;
@@ -98,26 +163,94 @@ public class TorStream {
      * @throws IOException
      */
     public synchronized int recv(byte output[], boolean block) throws IOException {
-        if (block) {
-            synchronized (this) {
-                while (recvBuffer.isEmpty() && state != STATES.DESTROYED) {
-                    try {
-                        wait(1000);
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
-                }
-            }
-        }
+        return recv(output, 0, output.length, block);
+    }
+
+    /**
+     * Reads from receive buffer straight into the supplied array, blocking until bytes available.
+     *
+     * @param output Destination array
+     * @param off    Offset into output
+     * @param len    Maximum bytes to read
+     * @param block  Whether to block until bytes are available
+     * @return bytes received, or -1 if the stream is closed and there's nothing left to read
+     * @throws IOException
+     */
+    public synchronized int recv(byte output[], int off, int len, boolean block) throws IOException {
+        if (len == 0)
+            return 0;
+
+        if (block)
+            waitForData();
+
+        if (recvBuffer.isEmpty() && state == STATES.DESTROYED)
+            return -1;
+
+        return consumed(recvBuffer.get(output, off, len));
+    }
+
+    /**
+     * Reads from receive buffer into the remaining space of a (heap or direct) buffer.
+     *
+     * @param dst   Destination buffer
+     * @param block Whether to block until bytes are available
+     * @return bytes received, or -1 if the stream is closed and there's nothing left to read
+     * @throws IOException
+     */
+    public synchronized int recv(ByteBuffer dst, boolean block) throws IOException {
+        if (!dst.hasRemaining())
+            return 0;
+
+        if (block)
+            waitForData();
 
         if (recvBuffer.isEmpty() && state == STATES.DESTROYED)
             return -1;
 
-        byte out[] = recvBuffer.get(output.length);
-        System.arraycopy(out, 0, output, 0, out.length);
-        return out.length;
+        return consumed(recvBuffer.get(dst));
+    }
+
+    /**
+     * Discards bytes from the receive buffer, blocking until bytes available.
+     *
+     * @param n Maximum bytes to discard
+     * @return bytes discarded
+     * @throws IOException
+     */
+    public synchronized long skip(long n) throws IOException {
+        if (n <= 0)
+            return 0;
+
+        waitForData();
+        return consumed(recvBuffer.skip((int) Math.min(n, Integer.MAX_VALUE)));
+    }
+
+    /**
+     * Internal function.  Records n bytes read from recvBuffer, sending stream SENDMEs for the cells used up.
+     *
+     * @return n
+     */
+    synchronized int consumed(int n) throws IOException {
+        headConsumed += n;
+        int cells = 0;
+        while (!bufferedCells.isEmpty() && headConsumed >= bufferedCells.peek()) {
+            headConsumed -= bufferedCells.poll();
+            cells++;
+        }
+        if (cells > 0)
+            cellsConsumed(cells);
+        return n;
     }
 
+    private synchronized void waitForData() {
+        while (recvBuffer.isEmpty() && state != STATES.DESTROYED) {
+            try {
+                wait(1000);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+    }
 
     /**
      * Send bytes down this stream
@@ -125,19 +258,63 @@ public class TorStream {
      * @param b Bytes to send
      */
     public void send(byte b[]) throws IOException {
+        send(b, 0, b.length);
+    }
+
+    /**
+     * Send part of an array down this stream, split into RELAY_DATA cells of at most MAX_DATA_LEN bytes
+     *
+     * @param b   Array containing bytes to send
+     * @param off Offset into b
+     * @param len Number of bytes to send
+     */
+    public void send(byte b[], int off, int len) throws IOException {
+        send(ByteBuffer.wrap(b, off, len));
+    }
+
+    /**
+     * Send the remaining bytes of a (heap or direct) buffer down this stream, split into RELAY_DATA cells
+     *
+     * @param src Bytes to send, consumed from position to limit
+     */
+    public void send(ByteBuffer src) throws IOException {
         if (state == STATES.DESTROYED)
             throw new IOException("stream destroyed");
 
-        final int maxDataLen = 509 - 1 - 2 - 2 - 4 - 2;
-        for (int i = 0; i < Math.ceil(b.length / (double) maxDataLen) * maxDataLen; i += maxDataLen) {
-            byte data[] = Arrays.copyOfRange(b, i, Math.min(b.length, i + maxDataLen));
-            circ.send(data, TorCircuit.RELAY_DATA, false, (short) streamId);
+        if (optimisticData != null) {
+            synchronized (this) {
+                if (optimisticData != null) {
+                    // not connected yet - keep a copy in case we need to replay it on another circuit
+                    ByteBuffer dup = src.duplicate();
+                    byte copy[] = new byte[dup.remaining()];
+                    dup.get(copy);
+                    optimisticData.write(copy, 0, copy.length);
+
+                    if (retrying) // sent when the stream is reopened
+                        src.position(src.limit());
+                    else
+                        sendCells(src);
+                    return;
+                }
+            }
+        }
+
+        sendCells(src);
+    }
+
+    private void sendCells(ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            ByteBuffer chunk = src.duplicate();
+            chunk.limit(chunk.position() + Math.min(MAX_DATA_LEN, chunk.remaining()));
+            circ.sendBuffer(chunk, TorCircuit.RELAY_DATA, false, (short) streamId);
+            src.position(chunk.position());
         }
     }
 
     public void destroy() throws IOException {
         if (state == STATES.DESTROYED)
             return; // don't redo!
+        out.flush(); // send anything still being coalesced
         setState(STATES.DESTROYED);
         circ.send(new byte[]{6}, TorCircuit.RELAY_END, false, (short) streamId);
         circ.streams.remove(new Integer(streamId));
@@ -149,37 +326,115 @@ public class TorStream {
      * @param b Bytes
      */
     protected void _putRecved(byte b[]) {
-        recvWindow--;
-        if (recvWindow < 450) {
-            try {
-                //System.out.println("sent SENDME (STREAM) "+recvWindow);
-                circ.send(null, TorCircuit.RELAY_SENDME, false, (short) streamId);
-            } catch (IOException e) {
-                e.printStackTrace();
+        TorStreamPublisher pub;
+        synchronized (this) {
+            recvWindow--;
+            pub = publisher;
+            if (pub == null) {
+                recvBuffer.put(b);
+                bufferedCells.add(b.length);
+                this.notifyAll();
             }
-            recvWindow += recvWindowIncrement;
         }
 
-        recvBuffer.put(b);
-        synchronized (this) {
-            this.notifyAll();
+        // SENDMEs are sent as data is consumed - by the publisher's subscriber, or by recv()
+        if (pub != null) {
+            pub.onCell(b);
+            return;
         }
+
+        signalChannel();
         if (listener != null)
             listener.dataArrived(this);
     }
 
+    /**
+     * Internal function.  Sends stream SENDMEs for cells the publisher's subscriber has consumed.
+     *
+     * @param n Number of cells consumed
+     */
+    synchronized void cellsConsumed(int n) throws IOException {
+        consumedCells += n;
+        while (consumedCells >= recvWindowIncrement) {
+            if (state != STATES.DESTROYED)
+                circ.send(null, TorCircuit.RELAY_SENDME, false, (short) streamId);
+            recvWindow += recvWindowIncrement;
+            consumedCells -= recvWindowIncrement;
+        }
+    }
+
     public void notifyDisconnect() {
         setState(STATES.DESTROYED);
+        if (publisher != null)
+            publisher.onClose();
+        signalChannel();
         if (listener != null)
             listener.disconnected(this);
     }
 
+    /**
+     * Internal function.  Called when the exit ends the stream.  An optimistic stream created through a
+     * StreamDispatcher that the exit refused before connecting (exit policy or resolve failure) is reopened on
+     * another circuit and its data replayed.
+     *
+     * @param reason RELAY_END reason
+     * @return whether the stream is being retried (otherwise it should be treated as disconnected)
+     */
+    synchronized boolean retryElsewhere(int reason) {
+        if (dispatcher == null || optimisticData == null || state != STATES.CONNECTING)
+            return false;
+        if (reason != TorCircuit.REASON_EXITPOLICY && reason != TorCircuit.REASON_RESOLVEFAILED)
+            return false;
+        if (triedCircuits.size() >= MAX_RETRIES)
+            return false;
+
+        triedCircuits.add(circ);
+        retrying = true;
+        log.debug("Stream to {}:{} refused by exit ({}) - retrying on another circuit", host, port, TorCircuit.STREAM_ERRORS[reason]);
+
+        // picking (or building) a circuit may block, and we're on the receive thread
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    // chosen (maybe built) without the stream lock, so send() only buffers meanwhile
+                    ArrayList<TorCircuit> tried;
+                    synchronized (TorStream.this) {
+                        tried = new ArrayList<>(triedCircuits);
+                    }
+                    TorCircuit next = dispatcher.selectCircuit(isolationKey, tried);
+                    synchronized (TorStream.this) {
+                        next.beginStream(TorStream.this);
+                        retrying = false;
+                        byte data[] = optimisticData.toByteArray();
+                        if (data.length > 0)
+                            sendCells(ByteBuffer.wrap(data));
+                    }
+                } catch (IOException | RuntimeException e) {
+                    log.warn("Couldn't retry stream to " + host + ":" + port + " - " + e);
+                    notifyDisconnect();
+                }
+            }
+        }).start();
+        return true;
+    }
+
     public void notifyConnect() {
+        synchronized (this) {
+            optimisticData = null; // no need to replay any more
+        }
         setState(STATES.READY);
+        signalChannel();
         if (listener != null)
             listener.connected(this);
     }
 
+    private void signalChannel() {
+        TorStreamChannel ch = channel;
+        if (ch != null)
+            ch.signalReady();
+    }
+
     public interface TorStreamListener {
         public void dataArrived(TorStream s);
 
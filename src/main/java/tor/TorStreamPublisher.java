@@ -0,0 +1,200 @@
+/*
+        Tor Research Framework - easy to use tor client library/framework
+        Copyright (C) 2014  Dr Gareth Owen <drgowen@gmail.com>
+        www.ghowen.me / github.com/drgowen/tor-research-framework
+
+        This program is free software: you can redistribute it and/or modify
+        it under the terms of the GNU General Public License as published by
+        the Free Software Foundation, either version 3 of the License, or
+        (at your option) any later version.
+
+        This program is distributed in the hope that it will be useful,
+        but WITHOUT ANY WARRANTY; without even the implied warranty of
+        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+        GNU General Public License for more details.
+
+        You should have received a copy of the GNU General Public License
+        along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package tor;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Demand-driven publisher view of a TorStream - one ByteBuffer per received RELAY_DATA cell.
+ *
+ * Stream SENDMEs are only released to the exit as cells are delivered to the subscriber, so a slow subscriber
+ * throttles the exit instead of overflowing a buffer: at most one stream window (500 cells) is ever queued.
+ *
+ * The Subscriber and Subscription interfaces have the same methods as java.util.concurrent.Flow's (which needs
+ * Java 9), so adapting to a Flow.Subscriber or Reactive Streams library is a few lines of delegation.
+ *
+ * Once a publisher is attached, received data goes to it only - don't also read the stream's InputStream.
+ */
+public class TorStreamPublisher {
+    final static Logger log = LogManager.getLogger();
+
+    public interface Subscriber {
+        public void onSubscribe(Subscription subscription);
+
+        public void onNext(ByteBuffer item);
+
+        public void onError(Throwable throwable);
+
+        public void onComplete();
+    }
+
+    public interface Subscription {
+        public void request(long n);
+
+        public void cancel();
+    }
+
+    TorStream stream;
+    Subscriber subscriber = null;
+    ConcurrentLinkedQueue<ByteBuffer> queue = new ConcurrentLinkedQueue<>();
+    // items at the head of the queue that were buffered before the publisher was attached (SENDME'd on handover)
+    int preBuffered = 0;
+    AtomicLong demand = new AtomicLong();
+    AtomicInteger wip = new AtomicInteger();
+    volatile boolean done = false;
+    volatile boolean cancelled = false;
+    volatile Throwable error = null;
+    boolean terminated = false;
+
+    TorStreamPublisher(TorStream stream) {
+        this.stream = stream;
+
+        // anything received before we were attached
+        if (stream.recvBuffer.available() > 0) {
+            byte buffered[] = stream.recvBuffer.get(-1);
+            queue.add(ByteBuffer.wrap(buffered));
+            preBuffered = 1;
+            try {
+                stream.consumed(buffered.length);
+            } catch (IOException e) {
+                log.warn("Failed to send SENDME: " + e);
+            }
+        }
+        if (stream.state == TorStream.STATES.DESTROYED)
+            done = true;
+    }
+
+    /**
+     * Attach the (single) subscriber.  Nothing is delivered until it calls request().
+     *
+     * @param s Subscriber
+     */
+    public synchronized void subscribe(final Subscriber s) {
+        if (subscriber != null) {
+            s.onSubscribe(new Subscription() {
+                @Override
+                public void request(long n) {
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+            s.onError(new IllegalStateException("TorStreamPublisher only supports a single subscriber"));
+            return;
+        }
+
+        subscriber = s;
+        s.onSubscribe(new Subscription() {
+            @Override
+            public void request(long n) {
+                if (n <= 0) {
+                    error = new IllegalArgumentException("request must be positive: " + n);
+                    done = true;
+                } else {
+                    long cur, next;
+                    do {
+                        cur = demand.get();
+                        next = cur + n < 0 ? Long.MAX_VALUE : cur + n;
+                    } while (!demand.compareAndSet(cur, next));
+                }
+                drain();
+            }
+
+            @Override
+            public void cancel() {
+                cancelled = true;
+                queue.clear();
+                try {
+                    stream.destroy();
+                } catch (IOException | RuntimeException e) {
+                    log.warn("Failed to close cancelled stream: " + e);
+                }
+            }
+        });
+        drain();
+    }
+
+    /**
+     * Internal function.  Called by TorStream on the receive thread for each RELAY_DATA payload.
+     */
+    void onCell(byte[] payload) {
+        if (cancelled)
+            return;
+        queue.add(ByteBuffer.wrap(payload));
+        drain();
+    }
+
+    /**
+     * Internal function.  Called by TorStream when the stream is closed.
+     */
+    void onClose() {
+        done = true;
+        drain();
+    }
+
+    // serialises delivery between the receive thread and whichever thread calls request()
+    private void drain() {
+        if (wip.getAndIncrement() != 0)
+            return;
+
+        int missed = 1;
+        do {
+            Subscriber s = subscriber;
+            if (s != null && !cancelled && !terminated) {
+                long delivered = 0;
+                ByteBuffer b;
+                while (error == null && demand.get() > 0 && (b = queue.poll()) != null) {
+                    if (demand.get() != Long.MAX_VALUE)
+                        demand.decrementAndGet();
+                    if (preBuffered > 0)
+                        preBuffered--;
+                    else
+                        delivered++;
+                    s.onNext(b);
+                }
+
+                if (delivered > 0) {
+                    try {
+                        stream.cellsConsumed((int) delivered);
+                    } catch (IOException | RuntimeException e) {
+                        error = e;
+                    }
+                }
+
+                if (error != null) {
+                    terminated = true;
+                    queue.clear();
+                    s.onError(error);
+                } else if (done && queue.isEmpty()) {
+                    terminated = true;
+                    s.onComplete();
+                }
+            }
+            missed = wip.addAndGet(-missed);
+        } while (missed != 0);
+    }
+}
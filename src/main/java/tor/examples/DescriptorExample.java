@@ -372,7 +372,7 @@ public class DescriptorExample {
 
                 // Pull up OnionRouter details for missing and extra routers
                 for (String fingerprint : missingInReply) {
-                    OnionRouter router = con.routers.get(fingerprint);
+                    OnionRouter router = con.getRouters().get(fingerprint);
 
                     if (router != null){
                         System.err.println("Missing fingerprint:   "
@@ -382,7 +382,7 @@ public class DescriptorExample {
                 }
 
                 for (String fingerprint : extraInReply) {
-                    OnionRouter router = con.routers.get(fingerprint);
+                    OnionRouter router = con.getRouters().get(fingerprint);
 
                     if (router != null){
                         System.err.println("Extra fingerprint:     "
@@ -2,10 +2,9 @@ package tor.examples;
 
 import org.bouncycastle.util.encoders.Base64;
 import tor.*;
+import tor.util.HTTPResponse;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.net.InetAddress;
 
 /**
@@ -38,41 +37,10 @@ public class HSPublish {
 
         System.out.println(descriptor);
 
-        TorCircuit circ = sock.createCircuit(true);
-        circ.create();
-      //  circ.extend(resp[1]);
-        TorStream st = circ.createDirStream(new TorStream.TorStreamListener() {
-                    @Override
-                    public void dataArrived(TorStream s) {
-                        byte buf[] = new byte[4096];
-                        try {
-                            s.recv(buf, false);
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-                        System.out.println(new String(buf));
-                    }
-
-                    @Override
-                    public void connected(TorStream s) {
-                        try {
-                            s.send(("POST /tor/rendezvous2/publish HTTP/1.0\r\nContent-Length: "+descriptor.length()+"\r\n\r\n" + descriptor + "\r\n\r\n").getBytes());
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-                    }
-
-                    @Override
-                    public void disconnected(TorStream s) {
-
-                    }
-
-                    @Override
-                    public void failure(TorStream s) {
-
-                    }
-                });
-
-
+        // one-hop directory circuit to the first hop (use resp[n] to post to a responsible directory instead)
+        TorDirectoryClient client = new TorDirectoryClient(sock);
+        HTTPResponse r = client.post(null, "/tor/rendezvous2/publish", descriptor);
+        System.out.println(r.status + " " + r.readBodyAsString());
+        client.close();
     }
 }
@@ -4,6 +4,8 @@ import tor.Consensus;
 import tor.TorCircuit;
 import tor.TorSocket;
 import tor.TorStream;
+import tor.util.TorChannelSelector;
+import tor.util.TorStreamChannel;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
@@ -51,6 +53,8 @@ public class PortForwarder {
         serverSock.configureBlocking(false);
         Selector select = Selector.open();
         serverSock.register(select, SelectionKey.OP_ACCEPT);
+        // tor streams wake up the same selector when they have data for us
+        TorChannelSelector torSelect = new TorChannelSelector(select);
 
         while(true) {
             select.select(1000);
@@ -59,6 +63,7 @@ public class PortForwarder {
             Iterator iterator = keys.iterator();
             while (iterator.hasNext()) {
                 SelectionKey k = (SelectionKey) iterator.next();
+                iterator.remove();
 
                 if (!k.isValid())
                     continue;
@@ -71,36 +76,53 @@ public class PortForwarder {
                         continue;
                     System.out.println("new client conn");
                     csock.configureBlocking(false);
-                    csock.register(select, SelectionKey.OP_READ);
-                    clients.put(csock, new PortFwdClient(csock, circ, REMOTE, PORT));
+                    SelectionKey ck = csock.register(select, SelectionKey.OP_READ);
+                    clients.put(csock, new PortFwdClient(csock, ck, circ, REMOTE, PORT, torSelect));
 
                 } else {
-                    // data on client socket
+                    // data on client socket, or client socket can take more data
                     PortFwdClient cl = clients.get(k.channel());
-                    if(cl!=null)
+                    if(cl == null)
+                        continue;
+                    if(k.isReadable())
                         cl.newClientData();
-
+                    if(k.isValid() && k.isWritable())
+                        cl.torData();
                 }
             }
+
+            // data from tor streams
+            for (TorStreamChannel ch : torSelect.selectedChannels())
+                ((PortFwdClient) ch.attachment()).torData();
         }
     }
 
     // represents a port forward client/server pair
-    static class PortFwdClient implements TorStream.TorStreamListener {
+    static class PortFwdClient {
+        // client->tor bytes are always sent on immediately, so one buffer does for all clients
+        static ByteBuffer fromClient = ByteBuffer.allocateDirect(16384);
+
         SocketChannel s;
+        SelectionKey key;
         TorCircuit circ;
         TorStream stream;
+        TorStreamChannel channel;
+        // tor->client bytes the client socket hasn't accepted yet
+        ByteBuffer toClient = ByteBuffer.allocateDirect(16384);
 
-        PortFwdClient(SocketChannel s, TorCircuit circ, String host, int port) {
+        PortFwdClient(SocketChannel s, SelectionKey key, TorCircuit circ, String host, int port, TorChannelSelector torSelect) {
             this.s = s;
+            this.key = key;
             this.circ = circ;
 
             try {
                 // establish stream
                 if(host.equals("DIR"))
-                    stream = circ.createDirStream(this);
+                    stream = circ.createDirStream(null);
                 else
-                    stream = circ.createStream(host, port, this);
+                    stream = circ.createStream(host, port, null);
+                channel = stream.getChannel();
+                channel.register(torSelect, this);
             } catch (IOException e) {
                 removeMe();
             }
@@ -108,32 +130,41 @@ public class PortForwarder {
         }
 
         // data from remote host (e.g. tor endpoint)
-        @Override
-        public void dataArrived(TorStream stream) {
+        public void torData() {
             try {
-                int availBytes = stream.getInputStream().available();
-                byte buf[] = new byte[availBytes];
-                stream.getInputStream().read(buf);
-                s.write(ByteBuffer.wrap(buf));
+                // the stream can have a whole window buffered, and won't signal again until another cell arrives,
+                // so keep going while the client takes everything
+                int n;
+                do {
+                    n = channel.read(toClient);
+                    toClient.flip();
+                    s.write(toClient);
+                    toClient.compact();
+                } while (n > 0 && toClient.position() == 0);
+
+                if (n == -1 && toClient.position() == 0) {
+                    removeMe();
+                    return;
+                }
+
+                // wait for the client socket to drain if it couldn't take everything - the rest is read when it has
+                key.interestOps(toClient.position() > 0 ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
             } catch (IOException e) {
                 removeMe();
             }
         }
 
-        @Override public void connected(TorStream s) {  }
-        @Override public void disconnected(TorStream s) { removeMe();  }
-        @Override public void failure(TorStream s) { removeMe();  }
-
         // data from client
         public void newClientData() {
             try {
-                ByteBuffer inbuf = ByteBuffer.allocate(16384);
-                if (s.read(inbuf) < 1)
+                fromClient.clear();
+                int n = s.read(fromClient);
+                if (n == -1)
+                    removeMe();
+                if (n < 1)
                     return;
-                inbuf.flip();
-                byte buf[]= new byte[inbuf.limit()];
-                inbuf.get(buf);
-                stream.send(buf);
+                fromClient.flip();
+                channel.write(fromClient);
             } catch (IOException e) {
                 removeMe();
             }
@@ -142,7 +173,8 @@ public class PortForwarder {
         // tear down this pair
         public void removeMe() {
             try {
-                stream.destroy();
+                if (stream != null)
+                    stream.destroy();
                 s.close();
             } catch (IOException e1) {
                 e1.printStackTrace();
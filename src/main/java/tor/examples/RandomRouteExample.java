@@ -19,6 +19,7 @@
 package tor.examples;
 
 import tor.Consensus;
+import tor.OnionRouter;
 import tor.TorCircuit;
 import tor.TorSocket;
 import tor.TorStream;
@@ -34,8 +35,9 @@ import java.io.InputStreamReader;
 public class RandomRouteExample {
     public static void main(String[] args) throws IOException {
         Consensus con = Consensus.getConsensus();
-        // If you're having speed issues, try adding "Fast" to the lists of flags below.
-        TorSocket sock = new TorSocket(con.getRandomORWithFlag("Guard,Running,Valid"));
+        // bandwidth-weighted guard, middle and exit, no two in the same /16 or family
+        OnionRouter path[] = con.getPathSelector().choosePath(3, 80);
+        TorSocket sock = new TorSocket(path[0]);
         //TorSocket sock = new TorSocket(con.getRouterByName("turtles"));
         TorCircuit circ = sock.createCircuit(true);
 
@@ -44,18 +46,18 @@ public class RandomRouteExample {
         circ.create();
         System.out.println("\n===================");
         System.out.println("Extending to middle");
-        circ.extend(con.getRandomORWithFlag("Running,Valid"));
+        circ.extend(path[1]);
 
         System.out.println("\n=================");
         System.out.println("Extending to exit");
-        circ.extend(con.getRandomORWithFlag("Exit,Running,Valid".split(","), 80));
+        circ.extend(path[2]);
 
-        TorStream stream = circ.createStream("ghowen.me", 80, null);
-        stream.waitForState(TorStream.STATES.READY);
+        // optimistic stream - the request goes out straight behind the BEGIN, without waiting for the connection
+        TorStream stream = circ.createStream("ghowen.me", 80, null, true);
+        stream.sendHTTPGETRequest("/ip", "ghowen.me");
 
         System.out.println("\n====================================");
-        System.out.println("Connected to remote host through Tor");
-        stream.sendHTTPGETRequest("/ip", "ghowen.me");
+        System.out.println("Sent request to remote host through Tor");
 
         BufferedReader rdr = new BufferedReader(new InputStreamReader(stream.getInputStream()));
 
@@ -19,6 +19,8 @@
 package tor.examples;
 
 import tor.*;
+import tor.util.TorChannelSelector;
+import tor.util.TorStreamChannel;
 
 import java.io.IOException;
 import java.net.InetAddress;
@@ -28,39 +30,49 @@ import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.util.Collection;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Created by gho on 27/06/14.
  */
 public class SOCKSProxy {
-    class SocksClient implements TorStream.TorStreamListener {
+    // client->tor bytes are always sent on immediately, so one buffer does for all clients
+    static ByteBuffer fromClient = ByteBuffer.allocateDirect(16384);
+
+    class SocksClient {
         SocketChannel client;
         boolean connected;
         long lastData = 0;
         TorStream stream;
-        TorCircuit circ;
+        TorStreamChannel channel;
+        StreamDispatcher dispatcher;
         InetAddress remoteAddr;
         int port;
+        // tor->client bytes the client socket hasn't accepted yet
+        ByteBuffer toClient = ByteBuffer.allocateDirect(16384);
+        // set by the connector if resolving or opening the stream failed
+        IOException connectError = null;
 
-        SocksClient(SocketChannel c, TorCircuit circ) throws IOException {
+        SocksClient(SocketChannel c, StreamDispatcher dispatcher) throws IOException {
             client = c;
             client.configureBlocking(false);
             lastData = System.currentTimeMillis();
-            this.circ = circ;
+            this.dispatcher = dispatcher;
         }
 
         public void newClientData(Selector selector, SelectionKey sk) throws IOException {
-            if (!connected) {
-                ByteBuffer inbuf = ByteBuffer.allocate(16384);
+            if (stream == null) {
+                ByteBuffer inbuf = fromClient;
+                inbuf.clear();
                 if (client.read(inbuf) < 1)
                     return;
                 inbuf.flip();
-                //inbufinbufinbufinb.get() final DataInputStream in = new DataInputStream(Channels.newInputStream(client));
-//                final DataOutputStream out = new DataOutputStream(Channels.newOutputStream(client));
 
                 // read socks header
                 int ver = inbuf.get();
@@ -82,107 +94,130 @@ public class SOCKSProxy {
 
                 remoteAddr = InetAddress.getByAddress(ip);
 
-                while ((inbuf.get()) != 0) ; // username
+                // username - streams from different usernames are kept on separate circuits
+                String user = "";
+                byte u;
+                while ((u = inbuf.get()) != 0)
+                    user += (char) u;
 
                 // hostname provided, not IP
+                String host = null;
                 if (ip[0] == 0 && ip[1] == 0 && ip[2] == 0 && ip[3] != 0) { // host provided
-                    String host = "";
+                    host = "";
                     byte b;
                     while ((b = inbuf.get()) != 0) {
-                        host += b;
+                        host += (char) b;
                     }
-                    remoteAddr = InetAddress.getByName(host);
-                    System.out.println(host + remoteAddr);
                 }
 
-                stream = circ.createStream(remoteAddr.getHostAddress(), port, this);
+                // resolving and opening the stream can take a while - do it off the select loop, and ignore the
+                // client until it's done (it waits for our reply anyway)
+                sk.interestOps(0);
+                connect(host, user);
             } else {
-                ByteBuffer buf = ByteBuffer.allocate(4096);
-                int nlen = 0;
-                if ((nlen = client.read(buf)) == -1)
+                fromClient.clear();
+                if (client.read(fromClient) == -1)
                     throw new IOException("disconnected");
                 lastData = System.currentTimeMillis();
-                buf.flip();
-                byte b[] = new byte[nlen];
-                buf.get(b);
-                stream.send(b);
+                fromClient.flip();
+                channel.write(fromClient);
             }
         }
 
-        @Override
-        public void dataArrived(TorStream s) {
-            try {
-                if (!client.isConnected())
-                    removeClient(this);
-
-                int availBytes = s.getInputStream().available();
-                byte buf[] = new byte[availBytes];
-                s.getInputStream().read(buf);
-                client.write(ByteBuffer.wrap(buf));
-            } catch (IOException e) {
-                try {
-                    //System.out.println(e);
-                    removeClient(this);
-                } catch (IOException e1) {
-                    //e1.printStackTrace();
+        private void connect(final String host, final String user) {
+            connector.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (host != null) {
+                            // resolved through tor (cached), not by the local resolver
+                            remoteAddr = resolver.resolve(host, user)[0];
+                            System.out.println(host + remoteAddr);
+                        }
+                        stream = dispatcher.createStream(remoteAddr.getHostAddress(), port, null, user);
+                    } catch (IOException e) {
+                        connectError = e;
+                    } catch (RuntimeException e) {
+                        connectError = new IOException(e);
+                    }
+                    connected(SocksClient.this);
                 }
-                //e.printStackTrace();
-            }
-            lastData = System.currentTimeMillis();
+            });
+        }
 
+        // called from the select loop once connect() has finished
+        void connectDone(Selector selector) throws IOException {
+            if (connectError != null)
+                throw connectError;
+            SelectionKey k = client.keyFor(selector);
+            if (k == null || !k.isValid())
+                throw new IOException("client gone");
+            channel = stream.getChannel();
+            channel.register(torSelect, this);
+            k.interestOps(SelectionKey.OP_READ);
         }
 
-        @Override
-        public void connected(TorStream s) {
-            ByteBuffer out = ByteBuffer.allocate(20);
-            out.put((byte) 0);
-            out.put((byte) (0x5a));
-            out.putShort((short) port);
-            out.put(remoteAddr.getAddress());
-            out.flip();
-            try {
-                client.write(out);
-            } catch (IOException e) {
-                try {
-                    removeClient(this);
-                } catch (IOException e1) {
-                    e1.printStackTrace();
+        // called from the select loop when the tor stream connects, has data, or closes
+        public void torData(SelectionKey sk) throws IOException {
+            if (!connected) {
+                if (!channel.isConnected()) {
+                    if (channel.isReadable()) // closed before connecting
+                        throw new IOException("stream failed");
+                    return;
                 }
-                System.out.println(e);
-            }
 
-            connected = true;
-        }
-
-        @Override
-        public void disconnected(TorStream s) {
-            try {
-                removeClient(this);
-            } catch (IOException e) {
-                e.printStackTrace();
+                ByteBuffer out = ByteBuffer.allocate(20);
+                out.put((byte) 0);
+                out.put((byte) (0x5a));
+                out.putShort((short) port);
+                out.put(remoteAddr.getAddress());
+                out.flip();
+                client.write(out);
+                connected = true;
             }
 
-        }
+            // the stream can have a whole window buffered, and won't signal again until another cell arrives,
+            // so keep going while the client takes everything
+            int n;
+            do {
+                n = channel.read(toClient);
+                toClient.flip();
+                client.write(toClient);
+                toClient.compact();
+            } while (n > 0 && toClient.position() == 0);
+            lastData = System.currentTimeMillis();
 
-        @Override
-        public void failure(TorStream s) {
-            disconnected(s);
-            try {
-                removeClient(this);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+            if (n == -1 && toClient.position() == 0)
+                throw new IOException("remote closed");
 
+            // wait for the client socket to drain if it couldn't take everything - the rest is read when it has
+            sk.interestOps(toClient.position() > 0 ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
         }
     }
 
+    // number of circuits to build up front
+    public static int CIRCUITS = 3;
+
     static HashMap<SocketChannel, SocksClient> clients = new HashMap<>();
+    TorChannelSelector torSelect;
+    TorResolver resolver;
+    Selector select;
+    // resolves and stream opens, kept off the select loop
+    ExecutorService connector = Executors.newCachedThreadPool();
+    // clients whose connect has finished, picked up by the select loop
+    ConcurrentLinkedQueue<SocksClient> connects = new ConcurrentLinkedQueue<>();
+
+    // called by the connector when a client's connect has finished (or failed)
+    void connected(SocksClient c) {
+        connects.add(c);
+        select.wakeup();
+    }
 
     // utility function
-    public SocksClient addClient(SocketChannel s, TorCircuit circ) {
+    public SocksClient addClient(SocketChannel s, StreamDispatcher dispatcher) {
         SocksClient cl;
         try {
-            cl = new SocksClient(s, circ);
+            cl = new SocksClient(s, dispatcher);
         } catch (IOException e) {
             e.printStackTrace();
             return null;
@@ -192,9 +227,10 @@ public class SOCKSProxy {
     }
 
     public void removeClient(SocksClient c) throws IOException {
-        c.client.close();
-        c.stream.destroy();
         clients.remove(c.client);
+        c.client.close();
+        if (c.stream != null)
+            c.stream.destroy();
     }
 
     long lastTimeoutCheck = 0;
@@ -202,30 +238,55 @@ public class SOCKSProxy {
     public SOCKSProxy() throws IOException {
         // connect through a guard
         OnionRouter guard = Consensus.getConsensus().getRouterByName("southsea0");
-        TorSocket sock = new TorSocket(guard);
-
-        // establish a circuit
-        TorCircuit circ = sock.createCircuit(false);
-        circ.createRoute("TorLand1");
-        circ.waitForState(TorCircuit.STATES.READY, false);
+        final TorSocket sock = new TorSocket(guard);
+
+        // establish a few circuits and spread client streams over them
+        // (more are built as needed, e.g. for new SOCKS usernames or when existing ones stall)
+        StreamDispatcher.CircuitFactory factory = new StreamDispatcher.CircuitFactory() {
+            @Override
+            public TorCircuit newCircuit() throws IOException {
+                Consensus con = Consensus.getConsensus();
+                TorCircuit circ = sock.createCircuit(true);
+                circ.create();
+                circ.extend(con.getRandomORWithFlag("Exit,Fast,Running,Valid".split(","), 80));
+                return circ;
+            }
+        };
+        StreamDispatcher dispatcher = new StreamDispatcher(factory);
+        for (int i = 0; i < CIRCUITS; i++)
+            dispatcher.addCircuit(factory.newCircuit());
+        resolver = new TorResolver(dispatcher);
 
         System.out.println("READY!!");
 
         ServerSocketChannel serverSock = ServerSocketChannel.open();
         serverSock.socket().bind(new InetSocketAddress(9050));
         serverSock.configureBlocking(false);
-        Selector select = Selector.open();
+        select = Selector.open();
         serverSock.register(select, SelectionKey.OP_ACCEPT);
+        // tor streams wake up the same selector when they have data for us
+        torSelect = new TorChannelSelector(select);
 
         int lastClients = clients.size();
         // select loop
         while (true) {
             select.select(1000);
 
+            // streams opened (or failed) since the last time round
+            SocksClient done;
+            while ((done = connects.poll()) != null) {
+                try {
+                    done.connectDone(select);
+                } catch (IOException e) {
+                    removeClient(done);
+                }
+            }
+
             Set keys = select.selectedKeys();
             Iterator iterator = keys.iterator();
             while (iterator.hasNext()) {
                 SelectionKey k = (SelectionKey) iterator.next();
+                iterator.remove();
 
                 if (!k.isValid())
                     continue;
@@ -236,32 +297,44 @@ public class SOCKSProxy {
                     SocketChannel csock = serverSock.accept();
                     if (csock == null)
                         continue;
-                    addClient(csock, circ);
+                    addClient(csock, dispatcher);
                     csock.register(select, SelectionKey.OP_READ);
-                } else if (k.isReadable()) {
-                    // new data on a client/remote socket
+                } else {
+                    // new data on a client socket, or client socket can take more data
                     SocksClient cl = clients.get(k.channel());
+                    if (cl == null)
+                        continue;
                     try {
-                        cl.newClientData(select, k);
+                        if (k.isReadable())
+                            cl.newClientData(select, k);
+                        if (k.isValid() && k.isWritable())
+                            cl.torData(k);
                     } catch (IOException e) { // error occurred - remove client
-                        cl.client.close();
-                        k.cancel();
-                        clients.remove(cl);
-                        //System.out.println(e);
+                        removeClient(cl);
                     }
 
                 }
             }
 
+            // tor streams that have connected, have data or have closed
+            for (TorStreamChannel ch : torSelect.selectedChannels()) {
+                SocksClient cl = (SocksClient) ch.attachment();
+                SelectionKey k = cl.client.keyFor(select);
+                try {
+                    if (k == null || !k.isValid())
+                        throw new IOException("client gone");
+                    cl.torData(k);
+                } catch (IOException e) {
+                    removeClient(cl);
+                }
+            }
+
             // client timeout check
             if (System.currentTimeMillis() - lastTimeoutCheck > 15000) {
                 lastTimeoutCheck = System.currentTimeMillis();
-                Collection<SocksClient> clientsTmp = clients.values();
-                for (SocksClient cl : clientsTmp) {
+                for (SocksClient cl : new ArrayList<>(clients.values())) {
                     if ((System.currentTimeMillis() - cl.lastData) > 30000L) {
-                        cl.stream.destroy();
-                        cl.client.close();
-                        clients.remove(cl);
+                        removeClient(cl);
                     }
                 }
                 if (clients.size() != lastClients) {
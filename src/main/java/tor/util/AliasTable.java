@@ -0,0 +1,65 @@
+package tor.util;
+
+import java.util.ArrayDeque;
+import java.util.Random;
+
+/**
+ * Walker/Vose alias table - O(n) to build, O(1) per weighted random draw.
+ */
+public class AliasTable {
+    final double prob[];
+    final int alias[];
+
+    /**
+     * @param weights Non-negative weights.  If they're all zero every index is equally likely.
+     */
+    public AliasTable(double weights[]) {
+        int n = weights.length;
+        prob = new double[n];
+        alias = new int[n];
+        if (n == 0)
+            return;
+
+        double total = 0;
+        for (double w : weights)
+            total += Math.max(w, 0);
+
+        double scaled[] = new double[n];
+        ArrayDeque<Integer> small = new ArrayDeque<>(), large = new ArrayDeque<>();
+        for (int i = 0; i < n; i++) {
+            scaled[i] = total > 0 ? Math.max(weights[i], 0) * n / total : 1.0;
+            if (scaled[i] < 1.0)
+                small.add(i);
+            else
+                large.add(i);
+        }
+
+        while (!small.isEmpty() && !large.isEmpty()) {
+            int s = small.poll(), l = large.poll();
+            prob[s] = scaled[s];
+            alias[s] = l;
+            scaled[l] = scaled[l] + scaled[s] - 1.0;
+            if (scaled[l] < 1.0)
+                small.add(l);
+            else
+                large.add(l);
+        }
+        // leftovers are 1 up to rounding error
+        while (!large.isEmpty())
+            prob[large.poll()] = 1.0;
+        while (!small.isEmpty())
+            prob[small.poll()] = 1.0;
+    }
+
+    public int size() {
+        return prob.length;
+    }
+
+    /**
+     * @return a random index, distributed according to the weights
+     */
+    public int next(Random rnd) {
+        int i = rnd.nextInt(prob.length);
+        return rnd.nextDouble() < prob[i] ? i : alias[i];
+    }
+}
@@ -18,7 +18,7 @@
 */
 package tor.util;
 
-import org.bouncycastle.util.Arrays;
+import java.nio.ByteBuffer;
 
 
 public class ByteFifo {
@@ -34,8 +34,18 @@ public class ByteFifo {
 		System.out.println(new String(fifo.get(4)));
 	}*/
 
+    int maxCapacity;
+
     public ByteFifo(int capacity) {
+        this(capacity, capacity);
+    }
+
+    /**
+     * A FIFO that starts at capacity bytes and grows (doubling) as needed up to maxCapacity
+     */
+    public ByteFifo(int capacity, int maxCapacity) {
         buffer = new byte[capacity];
+        this.maxCapacity = Math.max(capacity, maxCapacity);
     }
 
     public boolean isEmpty() {
@@ -43,13 +53,34 @@ public class ByteFifo {
     }
 
     public synchronized void put(byte[] toput) {
-        for (byte b : toput) {
-            buffer[in] = b;
-            in = (in + 1) % buffer.length;
-            count++;
-            if (count >= buffer.length)
-                throw new RuntimeException("buffer overflow");
-        }
+        put(toput, 0, toput.length);
+    }
+
+    public synchronized void put(byte[] toput, int off, int len) {
+        if (count + len >= buffer.length)
+            grow(count + len + 1);
+
+        // copy in at most two chunks - up to the end of the array, then wrap around
+        int first = Math.min(len, buffer.length - in);
+        System.arraycopy(toput, off, buffer, in, first);
+        System.arraycopy(toput, off + first, buffer, 0, len - first);
+        in = (in + len) % buffer.length;
+        count += len;
+    }
+
+    private void grow(int needed) {
+        if (needed > maxCapacity)
+            throw new RuntimeException("buffer overflow");
+        int size = buffer.length;
+        while (size < needed)
+            size = (int) Math.min((long) size * 2, maxCapacity);
+        byte grown[] = new byte[size];
+        int cnt = count;
+        get(grown, 0, cnt);
+        buffer = grown;
+        out = 0;
+        in = cnt;
+        count = cnt;
     }
 
     public int available() {
@@ -58,14 +89,56 @@ public class ByteFifo {
 
     // bytes = -1 for unlimited
     public synchronized byte[] get(int bytes) {
-        byte buf[] = new byte[buffer.length];
-        int cnt = 0;
-        while (count > 0 && (bytes == -1 || cnt < bytes)) {
-            buf[cnt++] = buffer[out];
-            count--;
-            out = (out + 1) % buffer.length;
-        }
-        return Arrays.copyOfRange(buf, 0, cnt);
+        byte buf[] = new byte[bytes == -1 ? count : Math.min(bytes, count)];
+        get(buf, 0, buf.length);
+        return buf;
+    }
+
+    /**
+     * Copies up to len bytes straight into the caller's array, without any intermediate buffer.
+     *
+     * @param dst Destination array
+     * @param off Offset into dst
+     * @param len Maximum number of bytes to copy
+     * @return number of bytes copied
+     */
+    public synchronized int get(byte[] dst, int off, int len) {
+        int cnt = Math.min(len, count);
+        int first = Math.min(cnt, buffer.length - out);
+        System.arraycopy(buffer, out, dst, off, first);
+        System.arraycopy(buffer, 0, dst, off + first, cnt - first);
+        out = (out + cnt) % buffer.length;
+        count -= cnt;
+        return cnt;
+    }
+
+    /**
+     * Copies as many bytes as will fit into the remaining space of dst (heap or direct buffer)
+     *
+     * @param dst Destination buffer
+     * @return number of bytes copied
+     */
+    public synchronized int get(ByteBuffer dst) {
+        int cnt = Math.min(dst.remaining(), count);
+        int first = Math.min(cnt, buffer.length - out);
+        dst.put(buffer, out, first);
+        dst.put(buffer, 0, cnt - first);
+        out = (out + cnt) % buffer.length;
+        count -= cnt;
+        return cnt;
+    }
+
+    /**
+     * Discards up to n bytes
+     *
+     * @param n Maximum number of bytes to discard
+     * @return number of bytes discarded
+     */
+    public synchronized int skip(int n) {
+        int cnt = Math.min(n, count);
+        out = (out + cnt) % buffer.length;
+        count -= cnt;
+        return cnt;
     }
 
 }
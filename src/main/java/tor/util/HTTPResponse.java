@@ -0,0 +1,256 @@
+package tor.util;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.TreeMap;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * A minimal HTTP/1.x response parser for directory responses.
+ *
+ * The status line and headers are read straight off the stream, leaving the stream positioned at the body.
+ * The body is exposed as a stream that ends exactly where the response ends (Content-Length, chunked, or
+ * end-of-stream) and is inflated on the fly if the server sent it deflate-encoded - so further responses can
+ * be read from the same connection afterwards.
+ */
+public class HTTPResponse {
+    public static int INFLATE_BUFFER = 65536;
+
+    public String version;
+    public int status;
+    // header names are lower-case
+    public TreeMap<String, String> headers = new TreeMap<>();
+
+    InputStream body;
+    InputStream framed; // body before decoding, to find the end of the response
+    byte bodyBytes[] = null;
+
+    /**
+     * Reads a response's status line and headers
+     *
+     * @param in Connection stream, positioned at the start of a response (buffer it - it's read a byte at a time)
+     * @return the response, or null if the stream ended before a status line
+     */
+    public static HTTPResponse read(InputStream in) throws IOException {
+        String statusLine = readLine(in);
+        while (statusLine != null && statusLine.isEmpty()) // tolerate stray CRLFs between responses
+            statusLine = readLine(in);
+        if (statusLine == null)
+            return null;
+
+        HTTPResponse r = new HTTPResponse();
+        String sp[] = statusLine.split(" ", 3);
+        if (sp.length < 2 || !sp[0].startsWith("HTTP/"))
+            throw new IOException("invalid HTTP status line: " + statusLine);
+        r.version = sp[0];
+        try {
+            r.status = Integer.parseInt(sp[1]);
+        } catch (NumberFormatException e) {
+            throw new IOException("invalid HTTP status line: " + statusLine);
+        }
+
+        String ln;
+        while ((ln = readLine(in)) != null && !ln.isEmpty()) {
+            int idx = ln.indexOf(':');
+            if (idx > 0)
+                r.headers.put(ln.substring(0, idx).trim().toLowerCase(), ln.substring(idx + 1).trim());
+        }
+
+        // frame the body, then undo any content encoding
+        InputStream b;
+        if ("chunked".equalsIgnoreCase(r.getHeader("transfer-encoding")))
+            b = new ChunkedInputStream(in);
+        else if (r.getHeader("content-length") != null)
+            b = new LengthInputStream(in, Long.parseLong(r.getHeader("content-length")));
+        else if (r.status == 204 || r.status == 304 || r.status / 100 == 1)
+            b = new LengthInputStream(in, 0);
+        else
+            b = new FilterInputStream(in) {
+                @Override
+                public void close() {
+                    // leave connection open - caller owns it
+                }
+            }; // until the connection closes
+
+        r.framed = b;
+        String enc = r.getHeader("content-encoding");
+        if (enc != null && (enc.equalsIgnoreCase("deflate") || enc.equalsIgnoreCase("x-deflate")))
+            b = new InflaterInputStream(b, new Inflater(), INFLATE_BUFFER);
+        r.body = b;
+        return r;
+    }
+
+    public String getHeader(String name) {
+        return headers.get(name.toLowerCase());
+    }
+
+    /**
+     * @return whether the server will accept further requests on this connection after this response
+     */
+    public boolean isKeepAlive() {
+        String conn = getHeader("connection");
+        boolean framed = getHeader("content-length") != null || "chunked".equalsIgnoreCase(getHeader("transfer-encoding"));
+        if (!framed)
+            return false;
+        if (version.equals("HTTP/1.1"))
+            return conn == null || !conn.equalsIgnoreCase("close");
+        return conn != null && conn.equalsIgnoreCase("keep-alive");
+    }
+
+    /**
+     * The (decoded) body as a stream.  It must be read to the end before the next response on the same connection.
+     */
+    public InputStream getBody() {
+        return body;
+    }
+
+    /**
+     * Reads the whole (decoded) body
+     */
+    public byte[] readBody() throws IOException {
+        if (bodyBytes == null) {
+            bodyBytes = IOUtils.toByteArray(body);
+            discardRest();
+        }
+        return bodyBytes;
+    }
+
+    /**
+     * Skips whatever is left of the response, so the connection is positioned at the next one.  Needed after
+     * reading an inflated body - the inflater stops at the end of the deflate stream, which may be before the end
+     * of the response.
+     */
+    public void discardRest() throws IOException {
+        byte skip[] = new byte[512];
+        while (framed.read(skip) != -1) ;
+    }
+
+    public String readBodyAsString() throws IOException {
+        return new String(readBody(), "UTF-8");
+    }
+
+    // reads a CRLF (or LF) terminated line as ISO-8859-1, null at end of stream
+    static String readLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                int len = sb.length();
+                if (len > 0 && sb.charAt(len - 1) == '\r')
+                    sb.setLength(len - 1);
+                return sb.toString();
+            }
+            sb.append((char) c);
+        }
+        return sb.length() == 0 ? null : sb.toString();
+    }
+
+    // body framed by Content-Length
+    static class LengthInputStream extends FilterInputStream {
+        long remaining;
+
+        LengthInputStream(InputStream in, long length) {
+            super(in);
+            remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0)
+                return -1;
+            int c = in.read();
+            if (c == -1)
+                throw new IOException("connection closed before end of body");
+            remaining--;
+            return c;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0)
+                return -1;
+            int n = in.read(b, off, (int) Math.min(len, remaining));
+            if (n == -1)
+                throw new IOException("connection closed before end of body");
+            remaining -= n;
+            return n;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), remaining);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    // Transfer-Encoding: chunked body
+    static class ChunkedInputStream extends FilterInputStream {
+        long chunkRemaining = 0;
+        boolean eof = false;
+
+        ChunkedInputStream(InputStream in) {
+            super(in);
+        }
+
+        private boolean nextChunk() throws IOException {
+            if (eof)
+                return false;
+            if (chunkRemaining > 0)
+                return true;
+
+            String ln = readLine(in);
+            if (ln != null && ln.isEmpty()) // CRLF after previous chunk's data
+                ln = readLine(in);
+            if (ln == null)
+                throw new IOException("connection closed in chunked body");
+
+            int semi = ln.indexOf(';');
+            chunkRemaining = Long.parseLong((semi >= 0 ? ln.substring(0, semi) : ln).trim(), 16);
+            if (chunkRemaining == 0) {
+                // trailers, up to the blank line
+                while ((ln = readLine(in)) != null && !ln.isEmpty()) ;
+                eof = true;
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!nextChunk())
+                return -1;
+            int c = in.read();
+            if (c == -1)
+                throw new IOException("connection closed in chunked body");
+            chunkRemaining--;
+            return c;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (!nextChunk())
+                return -1;
+            int n = in.read(b, off, (int) Math.min(len, chunkRemaining));
+            if (n == -1)
+                throw new IOException("connection closed in chunked body");
+            chunkRemaining -= n;
+            return n;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return eof ? 0 : (int) Math.min(in.available(), chunkRemaining);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
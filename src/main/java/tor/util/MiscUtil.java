@@ -15,4 +15,30 @@ public class MiscUtil {
             output.append(input.subSequence(i, Math.min(i+width,max))+"\n");
         return output.toString().trim();
     }
+
+    private static final char HEX[] = "0123456789abcdef".toCharArray();
+
+    // lower case hex, as used for identity hashes
+    public static String toHex(byte[] b) {
+        char out[] = new char[b.length * 2];
+        for (int i = 0; i < b.length; i++) {
+            out[i * 2] = HEX[(b[i] >> 4) & 0xf];
+            out[i * 2 + 1] = HEX[b[i] & 0xf];
+        }
+        return new String(out);
+    }
+
+    // inverse of toHex (either case); throws IllegalArgumentException on bad input
+    public static byte[] fromHex(String s) {
+        if (s.length() % 2 != 0)
+            throw new IllegalArgumentException("odd length hex: " + s);
+        byte out[] = new byte[s.length() / 2];
+        for (int i = 0; i < out.length; i++) {
+            int hi = Character.digit(s.charAt(i * 2), 16), lo = Character.digit(s.charAt(i * 2 + 1), 16);
+            if (hi < 0 || lo < 0)
+                throw new IllegalArgumentException("bad hex: " + s);
+            out[i] = (byte) ((hi << 4) | lo);
+        }
+        return out;
+    }
 }
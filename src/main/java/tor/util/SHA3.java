@@ -0,0 +1,98 @@
+package tor.util;
+
+/**
+ * FIPS 202 SHA3-256, as used by consensus diffs.  (The Bouncy Castle version we build against only has the
+ * pre-standard Keccak padding, and Java 8 has no SHA3.)
+ */
+public class SHA3 {
+    private static final long RC[] = {
+            0x0000000000000001L, 0x0000000000008082L, 0x800000000000808aL, 0x8000000080008000L,
+            0x000000000000808bL, 0x0000000080000001L, 0x8000000080008081L, 0x8000000000008009L,
+            0x000000000000008aL, 0x0000000000000088L, 0x0000000080008009L, 0x000000008000000aL,
+            0x000000008000808bL, 0x800000000000008bL, 0x8000000000008089L, 0x8000000000008003L,
+            0x8000000000008002L, 0x8000000000000080L, 0x000000000000800aL, 0x800000008000000aL,
+            0x8000000080008081L, 0x8000000000008080L, 0x0000000080000001L, 0x8000000080008008L};
+    private static final int ROT[] = {
+            0, 1, 62, 28, 27, 36, 44, 6, 55, 20, 3, 10, 43, 25, 39, 41, 45, 15, 21, 8, 18, 2, 61, 56, 14};
+
+    private static final int RATE = 136; // bytes, for 256 bit output
+
+    private final long state[] = new long[25];
+    private final byte block[] = new byte[RATE];
+    private int blockLen = 0;
+    private final long c[] = new long[5], b[] = new long[25]; // permutation scratch
+
+    public void update(byte b[], int off, int len) {
+        while (len > 0) {
+            int n = Math.min(len, RATE - blockLen);
+            System.arraycopy(b, off, block, blockLen, n);
+            blockLen += n;
+            off += n;
+            len -= n;
+            if (blockLen == RATE) {
+                absorb();
+                blockLen = 0;
+            }
+        }
+    }
+
+    public void update(byte b[]) {
+        update(b, 0, b.length);
+    }
+
+    /**
+     * @return the 32 byte digest.  The object can't be reused afterwards.
+     */
+    public byte[] digest() {
+        // SHA3 domain bits 01, then pad10*1
+        for (int i = blockLen; i < RATE; i++)
+            block[i] = 0;
+        block[blockLen] ^= 0x06;
+        block[RATE - 1] ^= (byte) 0x80;
+        absorb();
+
+        byte out[] = new byte[32];
+        for (int i = 0; i < 32; i++)
+            out[i] = (byte) (state[i / 8] >>> (8 * (i % 8)));
+        return out;
+    }
+
+    public static byte[] digest(byte b[], int off, int len) {
+        SHA3 s = new SHA3();
+        s.update(b, off, len);
+        return s.digest();
+    }
+
+    private void absorb() {
+        for (int i = 0; i < RATE / 8; i++) {
+            long v = 0;
+            for (int j = 7; j >= 0; j--)
+                v = (v << 8) | (block[i * 8 + j] & 0xff);
+            state[i] ^= v;
+        }
+        keccakF(state);
+    }
+
+    private void keccakF(long a[]) {
+        for (int round = 0; round < 24; round++) {
+            // theta
+            for (int x = 0; x < 5; x++)
+                c[x] = a[x] ^ a[x + 5] ^ a[x + 10] ^ a[x + 15] ^ a[x + 20];
+            for (int x = 0; x < 5; x++) {
+                long d = c[(x + 4) % 5] ^ Long.rotateLeft(c[(x + 1) % 5], 1);
+                for (int y = 0; y < 25; y += 5)
+                    a[y + x] ^= d;
+            }
+            // rho and pi
+            for (int x = 0; x < 5; x++)
+                for (int y = 0; y < 5; y++)
+                    b[y + 5 * ((2 * x + 3 * y) % 5)] = Long.rotateLeft(a[x + 5 * y], ROT[x + 5 * y]);
+            // chi
+            for (int y = 0; y < 25; y += 5)
+                for (int x = 0; x < 5; x++)
+                    a[y + x] = b[y + x] ^ (~b[y + (x + 1) % 5] & b[y + (x + 2) % 5]);
+            // iota
+            a[0] ^= RC[round];
+        }
+    }
+}
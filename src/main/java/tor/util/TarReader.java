@@ -0,0 +1,172 @@
+package tor.util;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Minimal streaming reader for (ustar / GNU) tar archives - just enough to walk regular files, e.g. in CollecTor
+ * bundles.  Call next() for each entry, then read the entry from getInputStream().
+ */
+public class TarReader {
+    final static Charset ASCII = Charset.forName("ISO-8859-1");
+
+    private final InputStream in;
+    private final byte header[] = new byte[512];
+    private long remaining = 0, padding = 0;
+    private String name;
+    private long size;
+
+    public TarReader(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Advances to the next regular file, skipping whatever of the current entry wasn't read
+     *
+     * @return false at the end of the archive
+     */
+    public boolean next() throws IOException {
+        String longName = null;
+        while (true) {
+            skip(remaining + padding);
+            remaining = padding = 0;
+
+            if (!readBlock())
+                return false;
+            if (isZero(header)) // end of archive marker
+                return false;
+
+            long sz = parseOctal(header, 124, 12);
+            byte type = header[156];
+            remaining = sz;
+            padding = (512 - sz % 512) % 512;
+
+            if (type == 'L') { // GNU long name for the next entry
+                byte b[] = new byte[(int) sz];
+                readFully(b);
+                remaining = 0;
+                longName = cString(b, 0, b.length);
+                continue;
+            }
+            if (type != '0' && type != 0) // directories, links, pax headers...
+                continue;
+
+            String n = cString(header, 0, 100);
+            String prefix = cString(header, 345, 155);
+            name = longName != null ? longName : prefix.isEmpty() ? n : prefix + "/" + n;
+            size = sz;
+            return true;
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * The current entry's contents.  Closing it doesn't close the archive.
+     */
+    public InputStream getInputStream() {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                if (remaining <= 0)
+                    return -1;
+                int c = in.read();
+                if (c == -1)
+                    throw new EOFException("truncated tar entry " + name);
+                remaining--;
+                return c;
+            }
+
+            @Override
+            public int read(byte b[], int off, int len) throws IOException {
+                if (remaining <= 0)
+                    return -1;
+                int n = in.read(b, off, (int) Math.min(len, remaining));
+                if (n == -1)
+                    throw new EOFException("truncated tar entry " + name);
+                remaining -= n;
+                return n;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    private boolean readBlock() throws IOException {
+        int off = 0;
+        while (off < 512) {
+            int n = in.read(header, off, 512 - off);
+            if (n == -1) {
+                if (off == 0)
+                    return false;
+                throw new EOFException("truncated tar header");
+            }
+            off += n;
+        }
+        return true;
+    }
+
+    private void readFully(byte b[]) throws IOException {
+        int off = 0;
+        while (off < b.length) {
+            int n = in.read(b, off, b.length - off);
+            if (n == -1)
+                throw new EOFException("truncated tar entry");
+            off += n;
+        }
+    }
+
+    private void skip(long n) throws IOException {
+        byte buf[] = new byte[8192];
+        while (n > 0) {
+            int r = in.read(buf, 0, (int) Math.min(buf.length, n));
+            if (r == -1)
+                throw new EOFException("truncated tar archive");
+            n -= r;
+        }
+    }
+
+    private static boolean isZero(byte b[]) {
+        for (byte x : b)
+            if (x != 0)
+                return false;
+        return true;
+    }
+
+    private static long parseOctal(byte b[], int off, int len) throws IOException {
+        if ((b[off] & 0x80) != 0) { // GNU base-256 for large sizes
+            long v = b[off] & 0x7f;
+            for (int i = 1; i < len; i++)
+                v = (v << 8) | (b[off + i] & 0xff);
+            return v;
+        }
+        long v = 0;
+        for (int i = off; i < off + len; i++) {
+            byte c = b[i];
+            if (c == 0 || c == ' ')
+                continue;
+            if (c < '0' || c > '7')
+                throw new IOException("bad tar header");
+            v = v * 8 + (c - '0');
+        }
+        return v;
+    }
+
+    private static String cString(byte b[], int off, int len) {
+        int end = off;
+        while (end < off + len && b[end] != 0)
+            end++;
+        return new String(b, off, end - off, ASCII);
+    }
+}
@@ -0,0 +1,48 @@
+package tor.util;
+
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Readiness notification for TorStreamChannels that plugs into an existing java.nio Selector loop.
+ *
+ * TorStreams can't be registered with a Selector directly, so instead a channel queues itself here when it
+ * becomes ready and wakes up the Selector.  After each select() call, process selectedChannels() as well as the
+ * Selector's own selected keys:
+ *
+ *     select.select(1000);
+ *     ... handle select.selectedKeys() ...
+ *     for (TorStreamChannel ch : torSelect.selectedChannels())
+ *         ... ch.read(buf) ...
+ */
+public class TorChannelSelector {
+    Selector selector;
+    ConcurrentLinkedQueue<TorStreamChannel> ready = new ConcurrentLinkedQueue<>();
+
+    public TorChannelSelector(Selector selector) {
+        this.selector = selector;
+    }
+
+    void signal(TorStreamChannel ch) {
+        ready.add(ch);
+        selector.wakeup();
+    }
+
+    /**
+     * Removes and returns the channels that have become ready since the last call.
+     * A channel is reported again as soon as anything further happens on its stream.
+     *
+     * @return ready channels, possibly empty
+     */
+    public List<TorStreamChannel> selectedChannels() {
+        List<TorStreamChannel> list = new ArrayList<>();
+        TorStreamChannel ch;
+        while ((ch = ready.poll()) != null) {
+            ch.queued.set(false);
+            list.add(ch);
+        }
+        return list;
+    }
+}
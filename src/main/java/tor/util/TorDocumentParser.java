@@ -19,11 +19,8 @@
 package tor.util;
 
 
-import org.apache.commons.io.IOUtils;
-import org.apache.commons.lang.StringUtils;
-
 import java.io.IOException;
-import java.io.StringReader;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.TreeMap;
 
@@ -31,8 +28,6 @@ import java.util.TreeMap;
  * Created by gho on 25/07/14.
  */
 public class TorDocumentParser {
-    public TreeMap<String, String> map = new TreeMap<>();
-
     // produces a map from a normal tor document, key/value pairs
     // parses block BEGIN-ENDS correctly
     // where same key appears twice, value is the concatenated values with | as a delimiter
@@ -45,6 +40,14 @@ public class TorDocumentParser {
 
     private static TreeMap<String, String> keyReplacementMap;
 
+    // the document is tokenized once into offsets (see TorDocumentTokenizer), 6 per item:
+    // keyword start/end, arguments start/end, object start/end
+    private final CharSequence doc;
+    private int items[] = new int[6 * 32];
+    private int count = 0;
+    // the map view, built on first use (or when an item is added)
+    private TreeMap<String, String> map = null;
+
     public TreeMap<String, String> KeyReplacementMap() {
         if (keyReplacementMap == null) {
             keyReplacementMap = new TreeMap<>();
@@ -54,50 +57,46 @@ public class TorDocumentParser {
         return keyReplacementMap;
     }
 
-    public TorDocumentParser(String doc) throws IOException {
-        //String curKey = null;
-        //String curVal = null;
-        String lns[] = (String[]) IOUtils.readLines(new StringReader(doc)).toArray(new String[0]);
-
-        for (int i = 0; i < lns.length; i++) {
-            String ln = lns[i];
-            if (ln.equals(""))
-                continue;
-
-            String sp[] = ln.split(" ");
-            boolean nextBegin = lns.length > i + 1 ? lns[i + 1].contains("BEGIN") : false;
-
-            if (sp.length == 1 && nextBegin) { // single word and multiline
-                // see if next line contains begin
-                String key = sp[0], val = "";
-
-                i += 2;
-                for (; i < lns.length; i++) {
-                    if (lns[i].contains("END")) {
-                        break;
-                    }
-                    val += lns[i];
-                }
-                addItem(key, val);
-            } else if (sp.length == 1) { // single word but not multiline
-                addItem(sp[0], "");
-            } else { // regular line
-                addItem(sp[0], StringUtils.join(Arrays.copyOfRange(sp, 1, sp.length), " "));
+    public TorDocumentParser(CharSequence doc) throws IOException {
+        this.doc = doc;
+        TorDocumentTokenizer.tokenize(doc, new TorDocumentTokenizer.Handler() {
+            @Override
+            public void item(CharSequence doc, int keywordStart, int keywordEnd, int argsStart, int argsEnd, int objectStart, int objectEnd) {
+                if (6 * count == items.length)
+                    items = Arrays.copyOf(items, items.length * 2);
+                int p = 6 * count++;
+                items[p] = keywordStart;
+                items[p + 1] = keywordEnd;
+                items[p + 2] = argsStart;
+                items[p + 3] = argsEnd;
+                items[p + 4] = objectStart;
+                items[p + 5] = objectEnd;
             }
+        });
+    }
 
-
+    /**
+     * The document as a map from keyword to value (see above), built on first call
+     */
+    public synchronized TreeMap<String, String> getMap() {
+        if (map == null) {
+            map = new TreeMap<>();
+            for (int i = 0; i < count; i++)
+                put(keyword(i), value(i));
         }
-
-//        for (String k : map.keySet()) {
-//            System.out.println(k + "|||= " + map.get(k));
-//        }
+        return map;
     }
 
     public void addItem(String k, String v) {
+        getMap();
+        put(k, v);
+    }
+
+    private synchronized void put(String k, String v) {
         // keys in the replacement map are replaced by the corresponding key in the map
         // the original key is prepended to the value, separated by a space
         if (KeyReplacementMap().containsKey(k)) {
-            addItem(KeyReplacementMap().get(k), k + " " + v);
+            put(KeyReplacementMap().get(k), k + " " + v);
         } else {
             if (!map.containsKey(k))
                 map.put(k, v);
@@ -109,21 +108,77 @@ public class TorDocumentParser {
 
     public String[] getArrayItem(String k) {
         // keys in the replacement map are replaced by the corresponding key in the map
-        if (KeyReplacementMap().containsKey(k)) {
+        if (KeyReplacementMap().containsKey(k))
             return getArrayItem(KeyReplacementMap().get(k));
-        } else {
-            String s[] = map.get(k).split("\\|");
-            if (s.length < 2)
-                throw new RuntimeException("error - not array item");
-            return s;
+        String s[];
+        synchronized (this) {
+            s = map != null ? split(map.get(k)) : values(k);
         }
+        if (s.length < 2)
+            throw new RuntimeException("error - not array item");
+        return s;
     }
 
     public String getItem(String k) {
         // keys in the replacement map are replaced by the corresponding key in the map
         if (KeyReplacementMap().containsKey(k))
             return getItem(KeyReplacementMap().get(k));
-        else
-            return map.get(k);
+        String s[];
+        synchronized (this) {
+            if (map != null)
+                return map.get(k);
+            s = values(k);
+        }
+        if (s.length == 0)
+            return null;
+        if (s.length == 1)
+            return s[0];
+        StringBuilder sb = new StringBuilder(s[0]);
+        for (int i = 1; i < s.length; i++)
+            sb.append('|').append(s[i]);
+        return sb.toString();
+    }
+
+    // the values of the items with key k, in document order, straight from the tokens
+    private String[] values(String k) {
+        ArrayList<String> out = new ArrayList<>(1);
+        boolean policy = k.equals(IPv4PolicyKey);
+        for (int i = 0; i < count; i++) {
+            if (policy ? keywordEquals(i, "accept") || keywordEquals(i, "reject") : keywordEquals(i, k))
+                out.add(policy ? keyword(i) + " " + value(i) : value(i));
+        }
+        return out.toArray(new String[out.size()]);
+    }
+
+    private static String[] split(String v) {
+        return v == null ? new String[0] : v.split("\\|");
+    }
+
+    private boolean keywordEquals(int i, String k) {
+        int s = items[6 * i], e = items[6 * i + 1];
+        if (e - s != k.length())
+            return false;
+        for (int j = 0; j < k.length(); j++)
+            if (doc.charAt(s + j) != k.charAt(j))
+                return false;
+        return true;
+    }
+
+    private String keyword(int i) {
+        return doc.subSequence(items[6 * i], items[6 * i + 1]).toString();
+    }
+
+    // the arguments, or for a keyword alone on its line with an object, the object body without line breaks
+    private String value(int i) {
+        int p = 6 * i;
+        if (items[p + 2] < items[p + 3] || items[p + 4] < 0)
+            return doc.subSequence(items[p + 2], items[p + 3]).toString();
+        StringBuilder sb = new StringBuilder(items[p + 5] - items[p + 4]);
+        for (int j = items[p + 4]; j < items[p + 5]; j++) {
+            char c = doc.charAt(j);
+            if (c != '\n' && c != '\r')
+                sb.append(c);
+        }
+        return sb.toString();
     }
 }
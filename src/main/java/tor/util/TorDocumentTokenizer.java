@@ -0,0 +1,87 @@
+package tor.util;
+
+/**
+ * Single-pass tokenizer for tor's directory document format (dir-spec 1.2): a sequence of items, each a keyword
+ * line with optional arguments, optionally followed by an object between -----BEGIN / -----END lines.
+ * <p/>
+ * Items are reported to a Handler as offsets into the document, so nothing is copied unless the handler asks
+ * for it.  Blank lines are skipped, and CRLF line endings and trailing spaces are tolerated.
+ */
+public class TorDocumentTokenizer {
+    private static final String BEGIN = "-----BEGIN", END = "-----END";
+
+    public interface Handler {
+        /**
+         * One item.  Ranges are [start, end) in doc.
+         *
+         * @param keywordStart Start of the keyword
+         * @param keywordEnd   End of the keyword
+         * @param argsStart    Start of the arguments (after the first space)
+         * @param argsEnd      End of the arguments, == argsStart if there are none
+         * @param objectStart  Start of the object body (the line after -----BEGIN), -1 if there's no object
+         * @param objectEnd    End of the object body (start of the -----END line), -1 if there's no object
+         */
+        void item(CharSequence doc, int keywordStart, int keywordEnd, int argsStart, int argsEnd, int objectStart, int objectEnd);
+    }
+
+    /**
+     * Reports each item of doc to the handler, in document order
+     */
+    public static void tokenize(CharSequence doc, Handler h) {
+        int len = doc.length();
+        int pos = 0;
+        while (pos < len) {
+            int lineEnd = lineEnd(doc, pos);
+            int contentEnd = trimEnd(doc, pos, lineEnd);
+            int next = lineEnd + 1;
+            if (contentEnd == pos) { // blank line
+                pos = next;
+                continue;
+            }
+
+            int keywordEnd = pos;
+            while (keywordEnd < contentEnd && doc.charAt(keywordEnd) != ' ')
+                keywordEnd++;
+            int argsStart = keywordEnd < contentEnd ? keywordEnd + 1 : contentEnd;
+
+            int objectStart = -1, objectEnd = -1;
+            if (next < len && startsWith(doc, next, BEGIN)) {
+                objectStart = lineEnd(doc, next) + 1;
+                objectEnd = objectStart;
+                // a missing END line takes the rest of the document
+                while (objectEnd < len && !startsWith(doc, objectEnd, END))
+                    objectEnd = lineEnd(doc, objectEnd) + 1;
+                objectStart = Math.min(objectStart, len);
+                objectEnd = Math.min(objectEnd, len);
+                next = objectEnd < len ? lineEnd(doc, objectEnd) + 1 : len;
+            }
+
+            h.item(doc, pos, keywordEnd, argsStart, contentEnd, objectStart, objectEnd);
+            pos = next;
+        }
+    }
+
+    // index of the '\n' ending the line at pos, or doc.length()
+    static int lineEnd(CharSequence doc, int pos) {
+        int len = doc.length();
+        while (pos < len && doc.charAt(pos) != '\n')
+            pos++;
+        return pos;
+    }
+
+    // end of the line's content, without a trailing \r or spaces
+    static int trimEnd(CharSequence doc, int start, int end) {
+        while (end > start && (doc.charAt(end - 1) == '\r' || doc.charAt(end - 1) == ' '))
+            end--;
+        return end;
+    }
+
+    static boolean startsWith(CharSequence doc, int pos, String s) {
+        if (pos + s.length() > doc.length())
+            return false;
+        for (int i = 0; i < s.length(); i++)
+            if (doc.charAt(pos + i) != s.charAt(i))
+                return false;
+        return true;
+    }
+}
@@ -23,29 +23,27 @@ public class TorInputStream extends InputStream {
 
     @Override
     public long skip(long n) throws IOException {
-        return hostStream.recv(new byte[(int) n], true);
+        return hostStream.skip(n);
     }
 
     @Override
     public int read() throws IOException {
         byte bytes[] = new byte[1];
-        int received = hostStream.recv(bytes, true);
+        int received = hostStream.recv(bytes, 0, 1, true);
+        if (received < 1)
+            return -1;
 
-        return bytes[0];
+        return bytes[0] & 0xff;
     }
 
     @Override
     public int read(byte[] b) throws IOException {
-        return hostStream.recv(b, true);
+        return hostStream.recv(b, 0, b.length, true);
     }
 
+    // reads go straight from the stream's receive buffer into b
     @Override
     public int read(byte[] b, int off, int len) throws IOException {
-        byte buf[] = new byte[len];
-        int received = hostStream.recv(buf, true);
-        if (received == -1)
-            return -1;
-        System.arraycopy(buf, 0, b, off, received);
-        return received;
+        return hostStream.recv(b, off, len, true);
     }
 }
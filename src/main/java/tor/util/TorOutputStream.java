@@ -1,35 +1,141 @@
 package tor.util;
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import tor.TorStream;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.Arrays;
+import java.util.Timer;
+import java.util.TimerTask;
 
 /**
  * Created by gho on 29/07/14.
+ *
+ * Coalesces writes into full RELAY_DATA payloads (TorStream.MAX_DATA_LEN bytes) before sending them.
+ * A partially filled payload is sent on flush(), close(), or - Nagle-like - once it has waited flushDelay ms.
  */
 public class TorOutputStream extends OutputStream {
+    final static Logger log = LogManager.getLogger();
+
+    // default delay (ms) before a partially filled cell is sent, 0 to only send on explicit flush()
+    public static int DEFAULT_FLUSH_DELAY = 20;
+
+    // shared by all streams - only ever runs short flush tasks
+    private static Timer flushTimer = null;
+
     private TorStream hostStream;
+    private byte buf[] = new byte[TorStream.MAX_DATA_LEN];
+    private int count = 0;
+    private int flushDelay = DEFAULT_FLUSH_DELAY;
+    private TimerTask pendingFlush = null;
 
     public TorOutputStream(TorStream host) {
         hostStream = host;
     }
 
+    /**
+     * Sets the time a partially filled cell may wait for more data before it is sent
+     *
+     * @param ms Delay in milliseconds, or 0 to disable timed flushing (flush() must then be called)
+     */
+    public void setFlushDelay(int ms) {
+        flushDelay = ms;
+    }
+
     @Override
-    public void write(int i) throws IOException {
-        hostStream.send(new byte[]{(byte) i});
+    public synchronized void write(int i) throws IOException {
+        buf[count++] = (byte) i;
+        if (count == buf.length)
+            flushBuffer();
+        else
+            scheduleFlush();
     }
 
     @Override
     public void write(byte[] b) throws IOException {
-        hostStream.send(b);
+        write(b, 0, b.length);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        // top up a partially filled cell first
+        if (count > 0) {
+            int n = Math.min(len, buf.length - count);
+            System.arraycopy(b, off, buf, count, n);
+            count += n;
+            off += n;
+            len -= n;
+            if (count == buf.length)
+                flushBuffer();
+        }
+
+        // whole cells are sent straight from the caller's array
+        int whole = len - len % buf.length;
+        if (whole > 0) {
+            hostStream.send(b, off, whole);
+            off += whole;
+            len -= whole;
+        }
+
+        // keep the remainder back for coalescing
+        if (len > 0) {
+            System.arraycopy(b, off, buf, 0, len);
+            count = len;
+        }
+
+        if (count > 0)
+            scheduleFlush();
     }
 
     @Override
-    public void write(byte[] b, int off, int len) throws IOException {
-        hostStream.send(Arrays.copyOfRange(b, off, off + len));
+    public synchronized void flush() throws IOException {
+        flushBuffer();
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+    }
+
+    private void flushBuffer() throws IOException {
+        if (pendingFlush != null) {
+            pendingFlush.cancel();
+            pendingFlush = null;
+        }
+        if (count == 0)
+            return;
+
+        int len = count;
+        count = 0;
+        hostStream.send(buf, 0, len);
     }
 
+    private void scheduleFlush() {
+        if (flushDelay <= 0 || pendingFlush != null)
+            return;
 
+        pendingFlush = new TimerTask() {
+            @Override
+            public void run() {
+                synchronized (TorOutputStream.this) {
+                    if (pendingFlush != this)
+                        return;
+                    pendingFlush = null;
+                    try {
+                        flushBuffer();
+                    } catch (IOException | RuntimeException e) { // don't let a dead stream kill the shared timer
+                        log.warn("timed flush failed: " + e);
+                    }
+                }
+            }
+        };
+        getFlushTimer().schedule(pendingFlush, flushDelay);
+    }
+
+    private static synchronized Timer getFlushTimer() {
+        if (flushTimer == null)
+            flushTimer = new Timer("TorOutputStream flush", true);
+        return flushTimer;
+    }
 }
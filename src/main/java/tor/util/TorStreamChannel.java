@@ -0,0 +1,118 @@
+package tor.util;
+
+import tor.TorStream;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * ByteChannel view of a TorStream.
+ *
+ * Reads copy straight from the stream's receive buffer into the caller's (heap or direct) buffer and writes are
+ * packed straight into relay cells, so bytes can be moved between a SocketChannel and a TorStream with reusable
+ * buffers.  Channels are non-blocking by default: read() returns 0 when nothing has arrived yet.
+ *
+ * Register with a TorChannelSelector to find out which channels are readable from a Selector loop, instead of
+ * using TorStreamListener callbacks on the TorSocket receive thread.
+ */
+public class TorStreamChannel implements ByteChannel {
+    TorStream hostStream;
+    boolean blocking = false;
+    boolean open = true;
+
+    TorChannelSelector selector = null;
+    Object attachment = null;
+    // whether we're already waiting in the selector's ready queue
+    final AtomicBoolean queued = new AtomicBoolean(false);
+
+    public TorStreamChannel(TorStream st) {
+        hostStream = st;
+    }
+
+    public void configureBlocking(boolean block) {
+        blocking = block;
+    }
+
+    public boolean isBlocking() {
+        return blocking;
+    }
+
+    /**
+     * Ask to be reported by sel.selectedChannels() whenever data arrives, the stream connects or the stream closes.
+     *
+     * @param sel        Selector to report to
+     * @param attachment Arbitrary object, returned by attachment()
+     */
+    public void register(TorChannelSelector sel, Object attachment) {
+        this.attachment = attachment;
+        this.selector = sel;
+
+        // anything that happened before registration would otherwise be missed
+        if (isReadable() || isConnected())
+            signalReady();
+    }
+
+    public Object attachment() {
+        return attachment;
+    }
+
+    public TorStream getStream() {
+        return hostStream;
+    }
+
+    public boolean isConnected() {
+        return hostStream.getState() == TorStream.STATES.READY;
+    }
+
+    /**
+     * @return whether a read would return data or end-of-stream without blocking
+     */
+    public boolean isReadable() {
+        return hostStream.recvBuffer.available() > 0 || hostStream.getState() == TorStream.STATES.DESTROYED;
+    }
+
+    /**
+     * Internal function.  Called by TorStream on the receive thread when this channel's readiness changes.
+     */
+    public void signalReady() {
+        TorChannelSelector sel = selector;
+        if (sel != null && queued.compareAndSet(false, true))
+            sel.signal(this);
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (!open)
+            throw new ClosedChannelException();
+        return hostStream.recv(dst, blocking);
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        if (!open)
+            throw new ClosedChannelException();
+
+        // keep ordering with anything written through the OutputStream view
+        hostStream.getOutputStream().flush();
+
+        int len = src.remaining();
+        hostStream.send(src);
+        return len;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!open)
+            return;
+        open = false;
+        hostStream.destroy();
+    }
+}